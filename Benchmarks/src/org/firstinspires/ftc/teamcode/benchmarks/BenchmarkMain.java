@@ -0,0 +1,22 @@
+package org.firstinspires.ftc.teamcode.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the gc profiler, which adds the allocation rate
+// (gc.alloc.rate.norm is bytes per operation) to each result. Takes the
+// standard JMH command line, e.g. "RecognizerBenchmark.coneStack -p path=COLOR"
+// or "-rf json -rff results.json". Run from the project directory so that
+// the benchmarks find Files/xml, with java.library.path set for OpenCV.
+public class BenchmarkMain {
+
+    public static void main(String[] pArgs) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(pArgs))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.firstinspires.ftc.teamcode.benchmarks;
+
+import org.firstinspires.ftc.ftcdevcommon.Pair;
+import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+import org.firstinspires.ftc.teamcode.auto.vision.*;
+import org.firstinspires.ftc.teamcode.auto.xml.*;
+import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+// Shared inputs for the benchmarks: the synthetic frame and depth array,
+// the ROIs cut from them, and the recognition parameters read from the
+// project's XML files (Files/xml by default; override with
+// -Dbenchmarks.xml_dir=<dir>/). Logging is limited to INFO and no
+// debugging images are written so that neither shows up in the timings.
+@State(Scope.Benchmark)
+public class Fixture {
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    public Path workDirectory;
+    public String outputFilenamePreamble;
+    public String tiledDepthFilename; // the synthetic depth as a .tdepth file
+
+    public Mat frame;
+    public DepthFrame depthFrame;
+
+    public VisionParameters.ImageParameters coneStackImageParameters;
+    public VisionParameters.ImageParameters junctionImageParameters;
+    public ConeStackParameters coneStackParameters;
+    public JunctionParameters junctionParameters;
+    public D405Configuration d405Configuration;
+
+    public Mat coneStackROI; // submatrix of frame
+    public Mat coneStackDepthROI; // background removed
+    public Mat coneStackThresholded; // input to getAngleAndDistance
+    public Mat coneStackRedChannel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workDirectory = Files.createTempDirectory("benchmarks");
+        RobotLogCommon.initialize(RobotLogCommon.LogIdentifier.TEST_LOG, workDirectory.toString() + File.separator);
+        RobotLogCommon.setMostDetailedLogLevel(java.util.logging.Level.INFO);
+        VisionLog.setLogLevel(java.util.logging.Level.INFO);
+        VisionLog.setCaptureLevel(java.util.logging.Level.INFO);
+
+        // The image source is absolute so that the recognizers find the
+        // synthetic .depth file in the temporary directory.
+        String imageSource = workDirectory.resolve("synthetic.png").toString();
+        outputFilenamePreamble = workDirectory.resolve("synthetic").toString();
+        frame = SyntheticFrames.createColorFrame();
+        SyntheticFrames.writeDepthFile(RealSenseUtils.getDepthFilename(imageSource), SyntheticFrames.createDepthArray());
+
+        // Under a different name so that the recognizers still read the
+        // .depth file.
+        tiledDepthFilename = workDirectory.resolve("synthetic_tiled" + TiledDepthFile.EXTENSION).toString();
+        TiledDepthFile.write(ShortBuffer.wrap(SyntheticFrames.createDepthArray()), SyntheticFrames.WIDTH, SyntheticFrames.HEIGHT,
+                TiledDepthFile.DEFAULT_TILE_SIZE, TiledDepthFile.DEFAULT_TILE_SIZE, tiledDepthFilename);
+
+        String xmlDir = System.getProperty("benchmarks.xml_dir", "Files/xml/");
+        coneStackImageParameters = withImageSource(getImageParameters(xmlDir + "RobotAction ConeStack.xml", "CONE_STACK"), imageSource);
+        junctionImageParameters = withImageSource(getImageParameters(xmlDir + "RobotAction Junction.xml", "JUNCTION"), imageSource);
+        coneStackParameters = new ConeStackParametersXML(xmlDir).getConeStackParameters();
+        junctionParameters = new JunctionParametersXML(xmlDir).getJunctionParameters();
+        d405Configuration = new D405ConfigurationXML(xmlDir).getD405Configuration();
+        depthFrame = DepthFrame.fromFile(coneStackImageParameters, d405Configuration, getCameraId()); // mapped, as in the recognizers
+
+        coneStackROI = ImageUtils.getImageROI(frame, coneStackImageParameters.image_roi);
+        coneStackDepthROI = RealSenseUtils.removeBackground(coneStackROI, coneStackImageParameters,
+                depthFrame, coneStackParameters.depthParameters.minDepth, coneStackParameters.depthParameters.maxDepth);
+        coneStackThresholded = ImageUtils.applyInRange(coneStackROI, outputFilenamePreamble, coneStackParameters.redHSVParameters, null);
+        coneStackRedChannel = new Mat();
+        Core.extractChannel(coneStackDepthROI, coneStackRedChannel, 2);
+    }
+
+    // Per-thread, so that the benchmarks may also be run with -t > 1.
+    @Setup(Level.Iteration)
+    public void setDiagnostics() {
+        Diagnostics.setLevel(Diagnostics.Level.NONE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        DebugImageWriter.shutdownShared();
+        VisionLog.flush();
+        RobotLogCommon.i("Benchmarks", MatPool.getShared().getStatistics().toString());
+        RobotLogCommon.i("Benchmarks", DepthFrameCache.getShared().getStatistics());
+        RobotLogCommon.i("Benchmarks", DecodedImageCache.getShared().getStatistics());
+        RobotLogCommon.closeLog();
+    }
+
+    // Every call returns the same synthetic frame, which the recognizers
+    // only read.
+    public ImageProvider getImageProvider() {
+        return new ImageProvider() {
+            @Override
+            public Pair<Mat, LocalDateTime> getImage() {
+                return Pair.create(frame, LocalDateTime.now());
+            }
+
+            @Override
+            public ImageFormat getImageFormat() {
+                return ImageFormat.BGR;
+            }
+        };
+    }
+
+    public RobotConstantsPowerPlay.D405CameraId getCameraId() {
+        return RobotConstantsPowerPlay.D405CameraId.SWIVEL;
+    }
+
+    private static VisionParameters.ImageParameters getImageParameters(String pActionXMLFilename, String pOpMode) throws Exception {
+        RobotActionXMLStandard actionXML = new RobotActionXMLStandard(pActionXMLFilename);
+        return actionXML.getImageParametersFromXPath(actionXML.getOpModeData(pOpMode).actions.get(0), "image_parameters");
+    }
+
+    private static VisionParameters.ImageParameters withImageSource(VisionParameters.ImageParameters pImageParameters, String pImageSource) {
+        return new VisionParameters.ImageParameters(pImageSource, pImageParameters.resolution_width,
+                pImageParameters.resolution_height, pImageParameters.image_roi);
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.firstinspires.ftc.teamcode.benchmarks;
+
+import org.firstinspires.ftc.teamcode.auto.vision.ImageUtils;
+import org.firstinspires.ftc.teamcode.auto.vision.MatPool;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The ImageUtils entry points on the cone stack ROI of the synthetic
+// frame. Outputs leased from the MatPool are released after each call so
+// that the pool stays in its steady state, as it would in a frame loop.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageUtilsBenchmark {
+
+    @Benchmark
+    public Mat preProcessImage(Fixture pFixture) throws InterruptedException {
+        return ImageUtils.preProcessImage(pFixture.getImageProvider().getFrame(),
+                pFixture.outputFilenamePreamble, pFixture.coneStackImageParameters);
+    }
+
+    @Benchmark
+    public void applyInRange(Fixture pFixture, Blackhole pBlackhole) {
+        Mat thresholded = ImageUtils.applyInRange(pFixture.coneStackROI, pFixture.outputFilenamePreamble,
+                pFixture.coneStackParameters.redHSVParameters, null);
+        pBlackhole.consume(thresholded);
+        MatPool.getShared().release(thresholded);
+    }
+
+    @Benchmark
+    public List<MatOfPoint> applyInRangeAndFindContours(Fixture pFixture) {
+        return ImageUtils.applyInRangeAndFindContours(pFixture.coneStackROI, pFixture.outputFilenamePreamble,
+                pFixture.coneStackParameters.redHSVParameters);
+    }
+
+    @Benchmark
+    public void performThreshold(Fixture pFixture, Blackhole pBlackhole) {
+        Mat thresholded = ImageUtils.performThreshold(pFixture.coneStackDepthROI, pFixture.outputFilenamePreamble,
+                pFixture.coneStackParameters.redGrayscaleParameters.median_target,
+                pFixture.coneStackParameters.redGrayscaleParameters.threshold_low);
+        pBlackhole.consume(thresholded);
+        MatPool.getShared().release(thresholded);
+    }
+
+    @Benchmark
+    public void performThresholdOnGray(Fixture pFixture, Blackhole pBlackhole) {
+        Mat thresholded = ImageUtils.performThresholdOnGray(pFixture.coneStackRedChannel, pFixture.outputFilenamePreamble,
+                pFixture.coneStackParameters.redGrayscaleParameters.median_target,
+                pFixture.coneStackParameters.redGrayscaleParameters.threshold_low);
+        pBlackhole.consume(thresholded);
+        MatPool.getShared().release(thresholded);
+    }
+
+    @Benchmark
+    public int getSingleChannelMedian(Fixture pFixture) {
+        return ImageUtils.getSingleChannelMedian(pFixture.coneStackRedChannel);
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.firstinspires.ftc.teamcode.benchmarks;
+
+import org.firstinspires.ftc.teamcode.auto.vision.MatPool;
+import org.firstinspires.ftc.teamcode.auto.vision.RealSenseReturn;
+import org.firstinspires.ftc.teamcode.auto.vision.RealSenseUtils;
+import org.firstinspires.ftc.teamcode.auto.vision.TiledDepthFile;
+import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+// The RealSenseUtils entry points: reading the .depth file (and the ROI of
+// the equivalent .tdepth file), removing the background from the cone
+// stack ROI, and finding the angle and distance to the cone stack in the
+// thresholded ROI.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RealSenseUtilsBenchmark {
+
+    @Benchmark
+    public ShortBuffer getDepthBufferFromFile(Fixture pFixture) throws IOException {
+        return RealSenseUtils.getDepthBufferFromFile(pFixture.coneStackImageParameters);
+    }
+
+    @Benchmark
+    public ByteBuffer readTiledDepthRegion(Fixture pFixture) throws IOException {
+        return TiledDepthFile.readRegion(pFixture.tiledDepthFilename, SyntheticFrames.WIDTH, SyntheticFrames.HEIGHT,
+                pFixture.coneStackImageParameters.image_roi);
+    }
+
+    @Benchmark
+    public void removeBackground(Fixture pFixture, Blackhole pBlackhole) {
+        Mat depthROI = RealSenseUtils.removeBackground(pFixture.coneStackROI, pFixture.coneStackImageParameters,
+                pFixture.depthFrame,
+                pFixture.coneStackParameters.depthParameters.minDepth,
+                pFixture.coneStackParameters.depthParameters.maxDepth);
+        pBlackhole.consume(depthROI);
+        MatPool.getShared().release(depthROI);
+    }
+
+    @Benchmark
+    public RealSenseReturn getAngleAndDistance(Fixture pFixture) {
+        return RealSenseUtils.getAngleAndDistance(pFixture.coneStackROI, pFixture.coneStackThresholded,
+                pFixture.d405Configuration, pFixture.getCameraId(), pFixture.depthFrame,
+                RobotConstantsPowerPlay.WIDTH_OF_CONE_STACK, pFixture.outputFilenamePreamble,
+                pFixture.coneStackImageParameters, pFixture.coneStackParameters.depthParameters);
+    }
+
+}
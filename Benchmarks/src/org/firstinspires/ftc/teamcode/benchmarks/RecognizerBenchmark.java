@@ -0,0 +1,89 @@
+package org.firstinspires.ftc.teamcode.benchmarks;
+
+import org.firstinspires.ftc.teamcode.auto.vision.ConeStackRecognition;
+import org.firstinspires.ftc.teamcode.auto.vision.EnsembleReturn;
+import org.firstinspires.ftc.teamcode.auto.vision.FrameContext;
+import org.firstinspires.ftc.teamcode.auto.vision.ImageFrame;
+import org.firstinspires.ftc.teamcode.auto.vision.JunctionRecognition;
+import org.firstinspires.ftc.teamcode.auto.vision.RealSenseReturn;
+import org.firstinspires.ftc.teamcode.common.RobotConstants;
+import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The full recognizer paths from the image provider to the angle and
+// distance, including the read of the .depth file, for each recognition
+// path of the cone stack and the junction; and all of the junction paths
+// on one frame, each with its own FrameContext, sharing one, or running
+// at the same time as an ensemble.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecognizerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ConeStack {
+        @Param({"COLOR", "RED_CHANNEL_GRAYSCALE", "BLUE_CHANNEL_GRAYSCALE", "DEPTH"})
+        public RobotConstantsPowerPlay.ConeStackRecognitionPath path;
+
+        // The COLOR path needs an alliance to choose the HSV parameters.
+        public final ConeStackRecognition recognition = new ConeStackRecognition(RobotConstants.Alliance.RED);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Junction {
+        @Param({"GRAYSCALE", "TWO_CHANNEL_GRAYSCALE", "COLOR", "DEPTH"})
+        public RobotConstantsPowerPlay.JunctionRecognitionPath path;
+
+        public final JunctionRecognition recognition = new JunctionRecognition(RobotConstants.Alliance.RED);
+    }
+
+    @Benchmark
+    public RealSenseReturn coneStack(Fixture pFixture, ConeStack pConeStack) throws InterruptedException, IOException {
+        return pConeStack.recognition.recognizeConeStack(pFixture.getImageProvider(), pFixture.d405Configuration,
+                pFixture.getCameraId(), pFixture.coneStackImageParameters, pFixture.coneStackParameters,
+                pConeStack.path, true);
+    }
+
+    @Benchmark
+    public RealSenseReturn junction(Fixture pFixture, Junction pJunction) throws InterruptedException, IOException {
+        return pJunction.recognition.recognizeJunction(pFixture.getImageProvider(), pFixture.d405Configuration,
+                pFixture.getCameraId(), pFixture.junctionImageParameters, pFixture.junctionParameters,
+                pJunction.path);
+    }
+
+    @Benchmark
+    public void junctionAllPaths(Fixture pFixture, Blackhole pBlackhole) throws InterruptedException, IOException {
+        JunctionRecognition recognition = new JunctionRecognition(RobotConstants.Alliance.RED);
+        for (RobotConstantsPowerPlay.JunctionRecognitionPath path : RobotConstantsPowerPlay.JunctionRecognitionPath.values())
+            pBlackhole.consume(recognition.recognizeJunction(pFixture.getImageProvider(), pFixture.d405Configuration,
+                    pFixture.getCameraId(), pFixture.junctionImageParameters, pFixture.junctionParameters, path));
+    }
+
+    @Benchmark
+    public void junctionAllPathsSharedContext(Fixture pFixture, Blackhole pBlackhole) throws InterruptedException, IOException {
+        JunctionRecognition recognition = new JunctionRecognition(RobotConstants.Alliance.RED);
+        ImageFrame frame = pFixture.getImageProvider().getFrame();
+        try (FrameContext frameContext = new FrameContext(frame)) {
+            for (RobotConstantsPowerPlay.JunctionRecognitionPath path : RobotConstantsPowerPlay.JunctionRecognitionPath.values())
+                pBlackhole.consume(recognition.recognizeJunction(frameContext, pFixture.d405Configuration,
+                        pFixture.getCameraId(), pFixture.junctionImageParameters, pFixture.junctionParameters, path));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Benchmark
+    public EnsembleReturn<RobotConstantsPowerPlay.JunctionRecognitionPath> junctionEnsemble(Fixture pFixture) throws InterruptedException, IOException {
+        return new JunctionRecognition(RobotConstants.Alliance.RED).recognizeJunction(pFixture.getImageProvider(),
+                pFixture.d405Configuration, pFixture.getCameraId(), pFixture.junctionImageParameters,
+                pFixture.junctionParameters, List.of(RobotConstantsPowerPlay.JunctionRecognitionPath.values()));
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.firstinspires.ftc.teamcode.benchmarks;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+// Deterministic 640x480 test frames and matching D405 depth arrays for the
+// benchmarks. The same seed always produces the same pixels, so timings
+// from different runs (and different commits) are comparable.
+//
+// The color frame is a noisy gray background with a red cone stack in the
+// middle, a yellow junction pole to its left, and two blue rails along the
+// bottom edge of the cone stack ROI. In the depth array the cone stack and
+// the pole are within the depth filter ranges of ConeStackParameters.xml
+// and JunctionParameters.xml and everything else is beyond them.
+public class SyntheticFrames {
+
+    public static final int WIDTH = 640;
+    public static final int HEIGHT = 480;
+    public static final long SEED = 1903L;
+
+    // Raw depth values; with the D405 depth scale of .0001 these are
+    // 0.35m (the objects) and 1.5m (the background).
+    public static final short OBJECT_DEPTH = 3500;
+    public static final short BACKGROUND_DEPTH = 15000;
+
+    public static final Rect CONE_STACK = new Rect(290, 150, 60, 170);
+    public static final Rect JUNCTION_POLE = new Rect(200, 60, 24, 190);
+    public static final Rect LEFT_RAIL = new Rect(160, 330, 120, 16);
+    public static final Rect RIGHT_RAIL = new Rect(360, 330, 120, 16);
+
+    public static Mat createColorFrame() {
+        Random random = new Random(SEED);
+        byte[] pixels = new byte[WIDTH * HEIGHT * 3];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (byte) (110 + random.nextInt(40)); // gray +- noise
+
+        Mat frame = new Mat(HEIGHT, WIDTH, CvType.CV_8UC3);
+        frame.put(0, 0, pixels);
+
+        // BGR
+        Imgproc.rectangle(frame, CONE_STACK, new Scalar(40, 40, 210), Imgproc.FILLED);
+        Imgproc.rectangle(frame, JUNCTION_POLE, new Scalar(30, 200, 220), Imgproc.FILLED);
+        Imgproc.rectangle(frame, LEFT_RAIL, new Scalar(200, 90, 40), Imgproc.FILLED);
+        Imgproc.rectangle(frame, RIGHT_RAIL, new Scalar(200, 90, 40), Imgproc.FILLED);
+        return frame;
+    }
+
+    public static short[] createDepthArray() {
+        Random random = new Random(SEED);
+        short[] depth = new short[WIDTH * HEIGHT];
+        for (int i = 0; i < depth.length; i++)
+            depth[i] = (short) (BACKGROUND_DEPTH + random.nextInt(200));
+
+        fillDepth(depth, CONE_STACK, random);
+        fillDepth(depth, JUNCTION_POLE, random);
+        return depth;
+    }
+
+    private static void fillDepth(short[] pDepth, Rect pRect, Random pRandom) {
+        for (int y = pRect.y; y < pRect.y + pRect.height; y++)
+            for (int x = pRect.x; x < pRect.x + pRect.width; x++)
+                pDepth[(y * WIDTH) + x] = (short) (OBJECT_DEPTH + pRandom.nextInt(100));
+    }
+
+    // Write the depth array in the format of a .depth file: 16-bit
+    // little-endian values in row order.
+    public static void writeDepthFile(String pFilename, short[] pDepth) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(pDepth.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(pDepth);
+        try (FileChannel channel = new FileOutputStream(pFilename).getChannel()) {
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,393 @@
+package org.firstinspires.ftc.teamcode.auto;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.firstinspires.ftc.ftcdevcommon.Pair;
+import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+import org.firstinspires.ftc.teamcode.auto.vision.*;
+import org.firstinspires.ftc.teamcode.common.RobotConstants;
+import org.opencv.core.Mat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs a single recognition action over every image in a directory, every
+// image that matches a glob such as /frames/cone_*.png, or every frame of
+// a video (which has no depth values), on a pool of worker threads, and
+// writes one NDJSON line per image (png, jpg or capture bundle) or frame:
+// the file name, whether depth values were present, the recognition
+// result, and the elapsed time of each stage (see StageTimings).
+//
+// Memory use does not grow with the number of images. The directory is
+// read lazily through a DirectoryStream, the frames of a video are decoded
+// ahead into a bounded queue, at most two images per worker are queued or
+// in progress at any time, and each result line is written out as soon as
+// the image has been processed. Because the workers finish in
+// no particular order neither are the result lines in any particular
+// order; each line identifies its image.
+public class BatchRunner {
+
+    private static final String TAG = BatchRunner.class.getSimpleName();
+
+    private static final String DEFAULT_GLOB = "*.{png,jpg,cbundle}";
+
+    // Supplied by the RecognitionDispatcher for the action in the
+    // RobotAction XML file. Runs the recognition on one image and returns
+    // the result as named fields for the NDJSON line. Called concurrently
+    // from the worker threads.
+    @FunctionalInterface
+    public interface FrameRecognizer {
+        Map<String, Object> recognize(ImageProvider pImageProvider, VisionParameters.ImageParameters pImageParameters,
+                                      boolean pDepthFileExists) throws Exception;
+    }
+
+    private final Path directory;
+    private final String glob; // null for a video
+    private final Path video; // null unless the batch is a video
+    private final int workers;
+    private final Path resultsFile;
+    private final Diagnostics.Level diagnosticsLevel;
+
+    // pBatch is a directory, a path whose last element is a glob, or a
+    // video file.
+    public BatchRunner(String pBatch, int pWorkers, String pResultsFile, Diagnostics.Level pDiagnosticsLevel) {
+        Path batchPath = Paths.get(pBatch).toAbsolutePath();
+        if (Files.isDirectory(batchPath)) {
+            directory = batchPath;
+            glob = DEFAULT_GLOB;
+            video = null;
+        } else if (SequenceImageProvider.isVideo(batchPath)) {
+            directory = batchPath.getParent();
+            glob = null;
+            video = batchPath;
+        } else {
+            video = null;
+            directory = batchPath.getParent();
+            glob = batchPath.getFileName().toString();
+            if (directory == null || !Files.isDirectory(directory))
+                throw new AutonomousRobotException(TAG, "Batch directory not found: " + pBatch);
+        }
+
+        if (pWorkers < 1)
+            throw new AutonomousRobotException(TAG, "The number of workers must be at least 1");
+
+        workers = pWorkers;
+        resultsFile = Paths.get(pResultsFile);
+        diagnosticsLevel = pDiagnosticsLevel;
+    }
+
+    // Every image takes the ROI of pImageParameters, scaled if the image is
+    // not at the resolution of pImageParameters (see ImageParameters); only
+    // the image source changes.
+    public void run(VisionParameters.ImageParameters pImageParameters, FrameRecognizer pRecognizer) throws IOException, InterruptedException {
+        RobotLogCommon.i(TAG, "Batch " + (video != null ? video : directory + ", files " + glob) +
+                ", workers " + workers + ", results " + resultsFile);
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        Semaphore inFlight = new Semaphore(workers * 2);
+        Map<String, AtomicInteger> resultCounts = new ConcurrentHashMap<>();
+        AtomicInteger frames = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        long batchStartNanos = System.nanoTime();
+
+        try (BufferedWriter results = Files.newBufferedWriter(resultsFile, StandardCharsets.UTF_8);
+             ImageSequence images = video != null ? new VideoSequence(video) : new FileSequence(directory, glob)) {
+            ImageSequence.Frame image;
+            while ((image = images.next()) != null) {
+                ImageSequence.Frame frame = image;
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        Map<String, Object> fields = processImage(frame, pImageParameters, pRecognizer);
+                        frames.incrementAndGet();
+                        if (fields.containsKey("error"))
+                            errors.incrementAndGet();
+                        else
+                            resultCounts.computeIfAbsent(String.valueOf(fields.get("result")), k -> new AtomicInteger()).incrementAndGet();
+
+                        String line = toJSON(fields);
+                        synchronized (results) {
+                            results.write(line);
+                            results.newLine();
+                        }
+                    } catch (IOException iox) {
+                        RobotLogCommon.e(TAG, "Error writing the result for " + frame.imageSource + ": " + iox.getMessage());
+                    } finally {
+                        frame.release();
+                        inFlight.release();
+                    }
+                });
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double elapsedSeconds = (System.nanoTime() - batchStartNanos) / 1_000_000_000.0;
+        RobotLogCommon.i(TAG, "Batch complete: " + frames.get() + " images in " + String.format("%.2f", elapsedSeconds) +
+                " sec, errors " + errors.get() + ", results " + resultCounts);
+        RobotLogCommon.i(TAG, DepthFrameCache.getShared().getStatistics());
+        RobotLogCommon.i(TAG, DecodedImageCache.getShared().getStatistics());
+    }
+
+    private Map<String, Object> processImage(ImageSequence.Frame pFrame, VisionParameters.ImageParameters pImageParameters,
+                                             FrameRecognizer pRecognizer) {
+        // The diagnostics level and the stage timings are per-thread.
+        if (Diagnostics.getLevel() != diagnosticsLevel)
+            Diagnostics.setLevel(diagnosticsLevel);
+        StageTimings.reset();
+
+        String imageSource = pFrame.imageSource;
+        VisionParameters.ImageParameters frameParameters =
+                new VisionParameters.ImageParameters(imageSource,
+                        pImageParameters.resolution_width, pImageParameters.resolution_height,
+                        pImageParameters.image_roi);
+        boolean depthFileExists;
+        try {
+            if (pFrame.videoFrame != null)
+                depthFileExists = false; // a video frame
+            else if (imageSource.endsWith(CaptureBundle.EXTENSION))
+                depthFileExists = CaptureBundle.hasDepth(imageSource);
+            else
+                depthFileExists = Files.isRegularFile(Paths.get(RealSenseUtils.findDepthFilename(imageSource)));
+        } catch (IOException iox) {
+            depthFileExists = false; // the recognizer reports the error
+        }
+
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("image", Paths.get(imageSource).getFileName().toString());
+        fields.put("depth_file", depthFileExists);
+
+        long startNanos = System.nanoTime();
+        try {
+            fields.putAll(pRecognizer.recognize(pFrame.getImageProvider(), frameParameters, depthFileExists));
+        } catch (Exception ex) {
+            RobotLogCommon.e(TAG, "Exception processing " + imageSource + ": " + ex);
+            fields.put("error", ex.getMessage() != null ? ex.getMessage() : ex.toString());
+        }
+
+        Map<String, Object> stageTimings = new LinkedHashMap<>();
+        for (StageTimings.Stage stage : StageTimings.Stage.values())
+            if (StageTimings.getNanos(stage) != 0)
+                stageTimings.put(stage.toString().toLowerCase(Locale.ROOT) + "_ms", StageTimings.getMillis(stage));
+        stageTimings.put("total_ms", (System.nanoTime() - startNanos) / 1_000_000.0);
+        fields.put("timings", stageTimings);
+
+        return fields;
+    }
+
+    // The result fields for the recognizers that return a RealSenseReturn.
+    public static Map<String, Object> resultFields(RealSenseReturn pRealSenseReturn) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("result", pRealSenseReturn.recognitionResults);
+        if (pRealSenseReturn.recognitionResults == RobotConstants.RecognitionResults.RECOGNITION_SUCCESSFUL) {
+            fields.put("angle_from_camera", pRealSenseReturn.angleFromCamera);
+            fields.put("distance_from_camera", pRealSenseReturn.distanceFromCamera);
+            fields.put("angle_from_robot_center", pRealSenseReturn.angleFromRobotCenter);
+            fields.put("distance_from_robot_center", pRealSenseReturn.distanceFromRobotCenter);
+        }
+
+        return fields;
+    }
+
+    // The result fields for a frame that has no depth data, for the
+    // recognizers that cannot run without it.
+    public static Map<String, Object> noDepthFields() {
+        Map<String, Object> fields = resultFields(new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR));
+        fields.put("reason", "no depth data for this frame");
+        return fields;
+    }
+
+    // The fields of the ensemble's decision, the path it came from and the
+    // fields of each path.
+    public static <P extends Enum<P>> Map<String, Object> resultFields(EnsembleReturn<P> pEnsembleReturn) {
+        Map<String, Object> fields = resultFields(pEnsembleReturn.decision);
+        fields.put("decision_path", pEnsembleReturn.decisionPath);
+        Map<String, Object> paths = new LinkedHashMap<>();
+        for (Map.Entry<P, RealSenseReturn> pathResult : pEnsembleReturn.pathResults.entrySet())
+            paths.put(pathResult.getKey().toString(), resultFields(pathResult.getValue()));
+        fields.put("paths", paths);
+        return fields;
+    }
+
+    public static Map<String, Object> resultFields(SignalSleeveReturn pSignalSleeveReturn) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("result", pSignalSleeveReturn.openCVResults);
+        fields.put("signal_sleeve_location", pSignalSleeveReturn.signalSleeveLocation);
+        return fields;
+    }
+
+    // Minimal JSON for the values produced here: strings, enums, numbers,
+    // booleans, and nested maps.
+    private static String toJSON(Map<String, Object> pFields) {
+        StringBuilder json = new StringBuilder(256);
+        appendJSON(json, pFields);
+        return json.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendJSON(StringBuilder pJSON, Object pValue) {
+        if (pValue == null)
+            pJSON.append("null");
+        else if (pValue instanceof Map) {
+            pJSON.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) pValue).entrySet()) {
+                if (!first)
+                    pJSON.append(',');
+                first = false;
+                appendJSONString(pJSON, entry.getKey());
+                pJSON.append(':');
+                appendJSON(pJSON, entry.getValue());
+            }
+            pJSON.append('}');
+        } else if (pValue instanceof Double || pValue instanceof Float) {
+            double d = ((Number) pValue).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d))
+                pJSON.append("null");
+            else
+                pJSON.append(pValue);
+        } else if (pValue instanceof Number || pValue instanceof Boolean)
+            pJSON.append(pValue);
+        else
+            appendJSONString(pJSON, pValue.toString());
+    }
+
+    private static void appendJSONString(StringBuilder pJSON, String pString) {
+        pJSON.append('"');
+        for (int i = 0; i < pString.length(); i++) {
+            char c = pString.charAt(i);
+            switch (c) {
+                case '"' -> pJSON.append("\\\"");
+                case '\\' -> pJSON.append("\\\\");
+                case '\n' -> pJSON.append("\\n");
+                case '\r' -> pJSON.append("\\r");
+                case '\t' -> pJSON.append("\\t");
+                default -> {
+                    if (c < 0x20)
+                        pJSON.append(String.format("\\u%04x", (int) c));
+                    else
+                        pJSON.append(c);
+                }
+            }
+        }
+        pJSON.append('"');
+    }
+
+    // The images of a batch, one at a time. The images in a directory are
+    // decoded by the workers; the frames of a video are decoded ahead by a
+    // SequenceImageProvider and handed to the workers ready to use.
+    private interface ImageSequence extends AutoCloseable {
+
+        class Frame {
+            private final String imageSource;
+            private final ImageFrame videoFrame; // null for a file
+
+            private Frame(String pImageSource, ImageFrame pVideoFrame) {
+                imageSource = pImageSource;
+                videoFrame = pVideoFrame;
+            }
+
+            // Each recognition takes its own reference to a video frame and
+            // releases it when it is done; release() below drops the
+            // sequence's reference, after which the frame buffer goes back
+            // to the decoder.
+            private ImageProvider getImageProvider() {
+                if (videoFrame == null)
+                    return FileImage.open(imageSource);
+
+                return new ImageProvider() {
+                    @Override
+                    public Pair<Mat, LocalDateTime> getImage() {
+                        return Pair.create(videoFrame.getImage(), videoFrame.timestamp);
+                    }
+
+                    @Override
+                    public ImageFrame getFrame() {
+                        return videoFrame.retain();
+                    }
+
+                    @Override
+                    public ImageFormat getImageFormat() {
+                        return videoFrame.imageFormat;
+                    }
+                };
+            }
+
+            private void release() {
+                if (videoFrame != null)
+                    videoFrame.release();
+            }
+        }
+
+        // Null at the end of the sequence.
+        Frame next() throws InterruptedException;
+
+        void close() throws IOException;
+    }
+
+    private static class FileSequence implements ImageSequence {
+        private final DirectoryStream<Path> files;
+        private final Iterator<Path> fileIterator;
+
+        private FileSequence(Path pDirectory, String pGlob) throws IOException {
+            files = Files.newDirectoryStream(pDirectory, pGlob);
+            fileIterator = files.iterator();
+        }
+
+        @Override
+        public Frame next() {
+            while (fileIterator.hasNext()) {
+                Path file = fileIterator.next();
+                if (Files.isRegularFile(file))
+                    return new Frame(file.toString(), null);
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            files.close();
+        }
+    }
+
+    private static class VideoSequence implements ImageSequence {
+        private final SequenceImageProvider videoFrames;
+
+        private VideoSequence(Path pVideo) {
+            videoFrames = new SequenceImageProvider(pVideo.toString());
+        }
+
+        @Override
+        public Frame next() throws InterruptedException {
+            ImageFrame videoFrame = videoFrames.getFrame();
+            if (videoFrame == null)
+                return null;
+            return new Frame(videoFrames.getCurrentSource(), videoFrame);
+        }
+
+        @Override
+        public void close() {
+            RobotLogCommon.i(TAG, videoFrames.getStatistics());
+            videoFrames.close();
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.firstinspires.ftc.teamcode.auto;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+import org.firstinspires.ftc.ftcdevcommon.intellij.WorkingDirectory;
+import org.firstinspires.ftc.teamcode.auto.vision.CaptureBundle;
+import org.firstinspires.ftc.teamcode.auto.vision.ImageUtils;
+import org.firstinspires.ftc.teamcode.auto.vision.RealSenseUtils;
+import org.firstinspires.ftc.teamcode.auto.vision.TiledDepthFile;
+import org.firstinspires.ftc.teamcode.common.RobotConstants;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+// Converts png and jpg images, together with their .depth or .tdepth
+// files if they have them, to capture bundles (see CaptureBundle) next to
+// the originals. The timestamp of a bundle is the modification time of
+// its image file. Each bundle is read back and compared with its sources
+// before it is kept. The originals are not removed.
+//
+// Usage:
+//   CaptureBundleConverter [--camera=<camera id>] [<image file or directory> ...]
+//
+// The camera id, e.g. SWIVEL, is recorded in every bundle written in one
+// run; it is empty by default. With no files or directories the images in
+// the images directory are converted.
+public class CaptureBundleConverter {
+
+    private static final String TAG = CaptureBundleConverter.class.getSimpleName();
+
+    private static final String IMAGE_GLOB = "*.{png,jpg}";
+
+    public static void main(String[] args) throws IOException {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        RobotLogCommon.initialize(RobotLogCommon.LogIdentifier.TEST_LOG, WorkingDirectory.getWorkingDirectory() + RobotConstants.logDir);
+
+        String cameraId = "";
+        List<Path> imageFiles = new ArrayList<>();
+        List<String> sources = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--camera="))
+                cameraId = arg.substring("--camera=".length());
+            else if (arg.startsWith("--"))
+                throw new AutonomousRobotException(TAG, "Unrecognized argument " + arg);
+            else
+                sources.add(arg);
+        }
+
+        if (sources.isEmpty())
+            sources.add(WorkingDirectory.getWorkingDirectory() + RobotConstants.imageDir);
+
+        for (String source : sources) {
+            Path sourcePath = Paths.get(source);
+            if (Files.isDirectory(sourcePath)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(sourcePath, IMAGE_GLOB)) {
+                    for (Path file : files)
+                        imageFiles.add(file);
+                }
+            } else if (Files.isRegularFile(sourcePath))
+                imageFiles.add(sourcePath);
+            else
+                throw new AutonomousRobotException(TAG, "Image file or directory not found: " + source);
+        }
+
+        int withDepth = 0;
+        try {
+            for (Path imageFile : imageFiles) {
+                String imageFilename = imageFile.toAbsolutePath().toString();
+                String bundleFilename = imageFilename.substring(0, imageFilename.lastIndexOf('.')) + CaptureBundle.EXTENSION;
+                if (convert(imageFilename, bundleFilename, cameraId))
+                    withDepth++;
+                report("Converted " + imageFilename + " to " + bundleFilename);
+            }
+
+            report("Converted " + imageFiles.size() + " images, " + withDepth + " with depth");
+        } finally {
+            RobotLogCommon.closeLog();
+        }
+    }
+
+    // Write the capture bundle and check that it reads back as the
+    // originals. Returns true if the image has depth values.
+    public static boolean convert(String pImageFilename, String pBundleFilename, String pCameraId) throws IOException {
+        Mat color = ImageUtils.loadImage(pImageFilename);
+        if (color == null)
+            throw new AutonomousRobotException(TAG, "Could not read image " + pImageFilename);
+
+        int width = color.cols();
+        int height = color.rows();
+
+        // An absolute image source finds its depth file next to it.
+        String depthFilename = RealSenseUtils.findDepthFilename(pImageFilename);
+        ByteBuffer depthBytes = null;
+        if (Files.isRegularFile(Paths.get(depthFilename)))
+            depthBytes = depthFilename.endsWith(TiledDepthFile.EXTENSION) ?
+                    TiledDepthFile.readRegion(depthFilename, width, height, null) :
+                    RealSenseUtils.mapDepthBytes(depthFilename, width, height);
+
+        LocalDateTime timestamp = LocalDateTime.ofInstant(Files.getLastModifiedTime(Paths.get(pImageFilename)).toInstant(),
+                ZoneId.systemDefault());
+        CaptureBundle.write(pBundleFilename, color, depthBytes != null ? depthBytes.asShortBuffer() : null,
+                timestamp, pCameraId);
+
+        CaptureBundle bundle = CaptureBundle.open(pBundleFilename);
+        Mat bundleColor = bundle.getColorMat();
+        boolean matches = bundle.width == width && bundle.height == height &&
+                bundle.hasDepth == (depthBytes != null) &&
+                Core.norm(color, bundleColor, Core.NORM_INF) == 0.0 &&
+                (depthBytes == null || bundle.getDepthBytes().equals(depthBytes));
+        bundleColor.release();
+        color.release();
+        if (!matches) {
+            Files.deleteIfExists(Paths.get(pBundleFilename));
+            throw new AutonomousRobotException(TAG, "Conversion of " + pImageFilename + " did not read back correctly");
+        }
+
+        return depthBytes != null;
+    }
+
+    private static void report(String pMessage) {
+        RobotLogCommon.i(TAG, pMessage);
+        System.out.println(pMessage);
+    }
+
+}
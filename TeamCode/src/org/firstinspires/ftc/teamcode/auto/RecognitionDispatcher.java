@@ -1,6 +1,7 @@
 package org.firstinspires.ftc.teamcode.auto;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
@@ -26,6 +27,7 @@ import org.opencv.core.Rect;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
@@ -50,6 +52,7 @@ public class RecognitionDispatcher extends Application {
     private RobotActionXMLStandard robotActionXMLConeStack;
     private RobotActionXMLStandard robotActionXMLJunction;
     private boolean includeDepthProcessing = true;
+    private BatchRunner batchRunner; // null unless --batch is present
 
     // Load OpenCV.
     private static final boolean openCVInitialized;
@@ -95,6 +98,44 @@ public class RecognitionDispatcher extends Application {
 
         RobotLogCommon.c(TAG, "Alliance " + alliance);
 
+        // Optional format and PNG compression level for the debugging
+        // images, which are written out on a background thread.
+        DebugImageWriter.Format debugImageFormat = DebugImageWriter.Format.PNG;
+        String debugImageFormatParameter = namedParameters.get("debug_image_format"); // optional
+        if (debugImageFormatParameter != null)
+            debugImageFormat = DebugImageWriter.Format.valueOf(debugImageFormatParameter.toUpperCase());
+
+        int pngCompression = DebugImageWriter.DEFAULT_PNG_COMPRESSION;
+        String pngCompressionParameter = namedParameters.get("png_compression"); // optional
+        if (pngCompressionParameter != null)
+            pngCompression = Integer.parseInt(pngCompressionParameter);
+
+        DebugImageWriter.configure(debugImageFormat, pngCompression, DebugImageWriter.DEFAULT_QUEUE_CAPACITY);
+
+        // Optional batch mode: run the action over a directory (or glob) of
+        // images, or a video, instead of the single image named in the XML
+        // file and write the results to an NDJSON file instead of displaying
+        // them. Unless overridden, no debugging images are written in batch
+        // mode.
+        String batchParameter = namedParameters.get("batch"); // optional
+        if (batchParameter != null) {
+            int workers = Runtime.getRuntime().availableProcessors();
+            String workersParameter = namedParameters.get("workers"); // optional
+            if (workersParameter != null)
+                workers = Integer.parseInt(workersParameter);
+
+            String resultsParameter = namedParameters.get("results"); // optional
+            if (resultsParameter == null)
+                resultsParameter = WorkingDirectory.getWorkingDirectory() + RobotConstants.logDir + "batch_results.ndjson";
+
+            Diagnostics.Level batchDiagnostics = Diagnostics.Level.NONE;
+            String batchDiagnosticsParameter = namedParameters.get("batch_diagnostics"); // optional
+            if (batchDiagnosticsParameter != null)
+                batchDiagnostics = Diagnostics.Level.valueOf(batchDiagnosticsParameter.toUpperCase());
+
+            batchRunner = new BatchRunner(batchParameter, workers, resultsParameter, batchDiagnostics);
+        }
+
         // Get the name of the file that contains the robot's actions,
         // e.g. RobotAction.xml.
         String actionXMLFilenameParameter = namedParameters.get("xml");
@@ -185,9 +226,22 @@ public class RecognitionDispatcher extends Application {
         RobotXMLElement actionElement = actions.get(0);
         XPathAccess actionXPath = new XPathAccess(actionElement);
 
+        // The optional <diagnostics> element selects the debugging images
+        // written out during this recognition: none, summary, or full.
+        String diagnosticsString = actionXPath.getStringInRange("diagnostics", "full",
+                actionXPath.validRange("none", "summary", "full"));
+        Diagnostics.setLevel(Diagnostics.Level.valueOf(diagnosticsString.toUpperCase()));
+
+        // Messages from the per-frame vision code go through VisionLog at
+        // the same level as everything else.
+        VisionLog.setLogLevel(RobotLogCommon.getMostDetailedLogLevel());
+
         //**TODO all OpModes - if return == NPOS display "unable to determine"
         String actionName = actionElement.getRobotXMLElementName().toUpperCase();
         RobotLogCommon.d(TAG, "Executing action " + actionName);
+        if (batchRunner != null && !Set.of("ANALYZE_SIGNAL_SLEEVE", "CONE_STACK_DEPTH", "JUNCTION_DEPTH", "GOLD_CUBE_DEPTH").contains(actionName))
+            throw new AutonomousRobotException(TAG, "Batch mode is not supported for action " + actionName);
+
         String imageFilename;
         switch (actionName) {
             case "ANALYZE_SIGNAL_SLEEVE" -> {
@@ -201,11 +255,12 @@ public class RecognitionDispatcher extends Application {
 
                 // Make sure that this tester is reading the image from a file.
                 if (!(signalSleeveImageParameters.image_source.endsWith(".png") ||
-                        signalSleeveImageParameters.image_source.endsWith(".jpg")))
+                        signalSleeveImageParameters.image_source.endsWith(".jpg") ||
+                        signalSleeveImageParameters.image_source.endsWith(CaptureBundle.EXTENSION)))
                     throw new AutonomousRobotException(TAG, "Invalid image file name");
 
                 imageFilename = signalSleeveImageParameters.image_source;
-                ImageProvider fileImage = new FileImage(imagePath + imageFilename);
+                ImageProvider fileImage = FileImage.open(imagePath + imageFilename);
 
                 // Get the recognition path from the XML file.
                 String recognitionPathString = actionXPath.getRequiredString("signal_sleeve_recognition/recognition_path");
@@ -214,6 +269,14 @@ public class RecognitionDispatcher extends Application {
 
                 RobotLogCommon.d(TAG, "Recognition path " + signalSleeveRecognitionPath);
 
+                if (batchRunner != null) {
+                    RobotConstants.Alliance batchAlliance = alliance;
+                    batchRunner.run(signalSleeveImageParameters, (provider, imageParameters, depthFileExists) ->
+                            BatchRunner.resultFields(new SignalSleeveRecognition().recognizeSignalSleeve(provider, imageParameters,
+                                    signalSleeveParameters, batchAlliance, signalSleeveRecognitionPath)));
+                    break;
+                }
+
                 // Perform image recognition and depth mapping.
                 SignalSleeveRecognition recognition = new SignalSleeveRecognition();
                 SignalSleeveReturn signalSleeveReturn = recognition.recognizeSignalSleeve(fileImage, signalSleeveImageParameters, signalSleeveParameters, alliance, signalSleeveRecognitionPath);
@@ -242,28 +305,68 @@ public class RecognitionDispatcher extends Application {
 
                 // Make sure that this tester is reading the image from a file.
                 if (!(coneStackImageParameters.image_source.endsWith(".png") ||
-                        coneStackImageParameters.image_source.endsWith(".jpg")))
+                        coneStackImageParameters.image_source.endsWith(".jpg") ||
+                        coneStackImageParameters.image_source.endsWith(CaptureBundle.EXTENSION)))
                     throw new AutonomousRobotException(TAG, "Invalid image file name");
 
                 imageFilename = coneStackImageParameters.image_source;
-                ImageProvider fileImage = new FileImage(imagePath + imageFilename);
+                ImageProvider fileImage = FileImage.open(imagePath + imageFilename);
 
                 // Get the recognition path from the XML file.
+                // A comma-separated list of paths, e.g. color, depth, runs
+                // all of them on the image as an ensemble.
                 String recognitionPathString = actionXPath.getRequiredString("cone_stack_recognition/recognition_path");
-                RobotConstantsPowerPlay.ConeStackRecognitionPath coneStackRecognitionPath =
-                        RobotConstantsPowerPlay.ConeStackRecognitionPath.valueOf(recognitionPathString.toUpperCase());
-
-                RobotLogCommon.d(TAG, "Recognition path " + coneStackRecognitionPath);
+                List<RobotConstantsPowerPlay.ConeStackRecognitionPath> coneStackRecognitionPaths =
+                        parseRecognitionPaths(recognitionPathString, RobotConstantsPowerPlay.ConeStackRecognitionPath.class);
+                RobotConstantsPowerPlay.ConeStackRecognitionPath coneStackRecognitionPath = coneStackRecognitionPaths.get(0);
+                boolean coneStackEnsemble = coneStackRecognitionPaths.size() > 1;
+
+                RobotLogCommon.d(TAG, "Recognition path(s) " + coneStackRecognitionPaths);
+
+                // In batch mode an image without a .depth file is processed
+                // without depth.
+                if (batchRunner != null) {
+                    RobotConstants.Alliance batchAlliance = alliance;
+                    batchRunner.run(coneStackImageParameters, (provider, imageParameters, depthFileExists) -> {
+                        ConeStackRecognition batchRecognition = new ConeStackRecognition(batchAlliance);
+                        if (coneStackEnsemble)
+                            return BatchRunner.resultFields(batchRecognition.recognizeConeStack(provider,
+                                    d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                                    imageParameters, coneStackParameters, coneStackRecognitionPaths,
+                                    includeDepthProcessing && depthFileExists));
+                        return BatchRunner.resultFields(batchRecognition.recognizeConeStack(provider,
+                                d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                                imageParameters, coneStackParameters, coneStackRecognitionPath,
+                                includeDepthProcessing && depthFileExists));
+                    });
+                    break;
+                }
 
                 // Perform image recognition and depth mapping.
                 ConeStackRecognition coneStackRecognition = new ConeStackRecognition(alliance);
-                RealSenseReturn coneStackReturn =
-                        coneStackRecognition.recognizeConeStack(fileImage, d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
-                                coneStackImageParameters, coneStackParameters, coneStackRecognitionPath,
-                                includeDepthProcessing);
+                RealSenseReturn coneStackReturn;
+                String ensembleText = "";
+                if (coneStackEnsemble) {
+                    EnsembleReturn<RobotConstantsPowerPlay.ConeStackRecognitionPath> ensembleReturn =
+                            coneStackRecognition.recognizeConeStack(fileImage, d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                                    coneStackImageParameters, coneStackParameters, coneStackRecognitionPaths,
+                                    includeDepthProcessing);
+                    coneStackReturn = ensembleReturn.decision;
+                    ensembleText = buildEnsembleDisplayText(ensembleReturn);
+                }
+                else
+                    coneStackReturn =
+                            coneStackRecognition.recognizeConeStack(fileImage, d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                                    coneStackImageParameters, coneStackParameters, coneStackRecognitionPath,
+                                    includeDepthProcessing);
+
+                // On failure write out the detail of the recognition even if
+                // debug logging is off.
+                if (coneStackReturn.recognitionResults != RobotConstants.RecognitionResults.RECOGNITION_SUCCESSFUL)
+                    VisionLog.dumpFrames(1);
 
                 displayResults(imagePath + coneStackImageParameters.image_source,
-                        buildAngleAndDepthDisplayText(imageFilename, coneStackReturn),
+                        buildAngleAndDepthDisplayText(imageFilename, coneStackReturn) + ensembleText,
                         "Test cone stack recognition");
             }
 
@@ -283,27 +386,66 @@ public class RecognitionDispatcher extends Application {
 
                 // Make sure that this tester is reading the image from a file.
                 if (!(junctionImageParameters.image_source.endsWith(".png") ||
-                        junctionImageParameters.image_source.endsWith(".jpg")))
+                        junctionImageParameters.image_source.endsWith(".jpg") ||
+                        junctionImageParameters.image_source.endsWith(CaptureBundle.EXTENSION)))
                     throw new AutonomousRobotException(TAG, "Invalid image file name");
 
                 imageFilename = junctionImageParameters.image_source;
-                ImageProvider fileImage = new FileImage(imagePath + junctionImageParameters.image_source);
+                ImageProvider fileImage = FileImage.open(imagePath + junctionImageParameters.image_source);
 
                 // Perform image recognition and depth mapping.
                 // Get the recognition path from the XML file.
+                // A comma-separated list of paths, e.g. color, depth, runs
+                // all of them on the image as an ensemble.
                 String recognitionPathString = actionXPath.getRequiredString("junction_recognition/recognition_path");
-                RobotConstantsPowerPlay.JunctionRecognitionPath junctionRecognitionPath =
-                        RobotConstantsPowerPlay.JunctionRecognitionPath.valueOf(recognitionPathString.toUpperCase());
-
-                RobotLogCommon.d(TAG, "Recognition path " + junctionRecognitionPath);
+                List<RobotConstantsPowerPlay.JunctionRecognitionPath> junctionRecognitionPaths =
+                        parseRecognitionPaths(recognitionPathString, RobotConstantsPowerPlay.JunctionRecognitionPath.class);
+                RobotConstantsPowerPlay.JunctionRecognitionPath junctionRecognitionPath = junctionRecognitionPaths.get(0);
+                boolean junctionEnsemble = junctionRecognitionPaths.size() > 1;
+
+                RobotLogCommon.d(TAG, "Recognition path(s) " + junctionRecognitionPaths);
+
+                // In batch mode an image without a .depth file is reported
+                // as an internal error: the recognition needs the depth.
+                if (batchRunner != null) {
+                    RobotConstants.Alliance batchAlliance = alliance;
+                    batchRunner.run(junctionImageParameters, (provider, imageParameters, depthFileExists) -> {
+                        if (!depthFileExists)
+                            return BatchRunner.noDepthFields();
+
+                        JunctionRecognition batchRecognition = new JunctionRecognition(batchAlliance);
+                        if (junctionEnsemble)
+                            return BatchRunner.resultFields(batchRecognition.recognizeJunction(provider,
+                                    d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                                    imageParameters, junctionParameters, junctionRecognitionPaths));
+                        return BatchRunner.resultFields(batchRecognition.recognizeJunction(provider,
+                                d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                                imageParameters, junctionParameters, junctionRecognitionPath));
+                    });
+                    break;
+                }
 
                 // Perform image recognition and depth mapping.
                 JunctionRecognition junctionRecognition = new JunctionRecognition(alliance);
-                RealSenseReturn junctionReturn =
-                        junctionRecognition.recognizeJunction(fileImage, d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL, junctionImageParameters, junctionParameters, junctionRecognitionPath);
+                RealSenseReturn junctionReturn;
+                String ensembleText = "";
+                if (junctionEnsemble) {
+                    EnsembleReturn<RobotConstantsPowerPlay.JunctionRecognitionPath> ensembleReturn =
+                            junctionRecognition.recognizeJunction(fileImage, d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL, junctionImageParameters, junctionParameters, junctionRecognitionPaths);
+                    junctionReturn = ensembleReturn.decision;
+                    ensembleText = buildEnsembleDisplayText(ensembleReturn);
+                }
+                else
+                    junctionReturn =
+                            junctionRecognition.recognizeJunction(fileImage, d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL, junctionImageParameters, junctionParameters, junctionRecognitionPath);
+
+                // On failure write out the detail of the recognition even if
+                // debug logging is off.
+                if (junctionReturn.recognitionResults != RobotConstants.RecognitionResults.RECOGNITION_SUCCESSFUL)
+                    VisionLog.dumpFrames(1);
 
                 displayResults(imagePath + junctionImageParameters.image_source,
-                        buildAngleAndDepthDisplayText(imageFilename, junctionReturn),
+                        buildAngleAndDepthDisplayText(imageFilename, junctionReturn) + ensembleText,
                         "Test junction recognition");
             }
 
@@ -324,11 +466,12 @@ public class RecognitionDispatcher extends Application {
 
                 // Make sure that this tester is reading the image from a file.
                 if (!(goldCubeImageParameters.image_source.endsWith(".png") ||
-                        goldCubeImageParameters.image_source.endsWith(".jpg")))
+                        goldCubeImageParameters.image_source.endsWith(".jpg") ||
+                        goldCubeImageParameters.image_source.endsWith(CaptureBundle.EXTENSION)))
                     throw new AutonomousRobotException(TAG, "Invalid image file name");
 
                 imageFilename = goldCubeImageParameters.image_source;
-                ImageProvider fileImage = new FileImage(imagePath + goldCubeImageParameters.image_source);
+                ImageProvider fileImage = FileImage.open(imagePath + goldCubeImageParameters.image_source);
 
                 // Perform image recognition and depth mapping.
                 // Get the recognition path from the XML file.
@@ -338,11 +481,31 @@ public class RecognitionDispatcher extends Application {
 
                 RobotLogCommon.d(TAG, "Recognition path " + goldCubeRecognitionPath);
 
+                // In batch mode an image without a .depth file is reported
+                // as an internal error: the recognition needs the depth.
+                if (batchRunner != null) {
+                    RobotConstants.Alliance batchAlliance = alliance;
+                    batchRunner.run(goldCubeImageParameters, (provider, imageParameters, depthFileExists) -> {
+                        if (!depthFileExists)
+                            return BatchRunner.noDepthFields();
+
+                        return BatchRunner.resultFields(new GoldCubeRecognition(batchAlliance).recognizeGoldCube(provider,
+                                d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                                imageParameters, goldCubeParameters, goldCubeRecognitionPath));
+                    });
+                    break;
+                }
+
                 // Perform image recognition and depth mapping.
                 GoldCubeRecognition goldCubeRecognition = new GoldCubeRecognition(alliance);
                 RealSenseReturn goldCubeReturn =
                         goldCubeRecognition.recognizeGoldCube(fileImage, d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL, goldCubeImageParameters, goldCubeParameters, goldCubeRecognitionPath);
 
+                // On failure write out the detail of the recognition even if
+                // debug logging is off.
+                if (goldCubeReturn.recognitionResults != RobotConstants.RecognitionResults.RECOGNITION_SUCCESSFUL)
+                    VisionLog.dumpFrames(1);
+
                 displayResults(imagePath + goldCubeImageParameters.image_source,
                         buildAngleAndDepthDisplayText(imageFilename, goldCubeReturn),
                         "Test gold cube recognition");
@@ -361,10 +524,11 @@ public class RecognitionDispatcher extends Application {
 
                 // Make sure that this tester is reading the image from a file.
                 if (!(barcodeImageParameters.image_source.endsWith(".png") ||
-                        barcodeImageParameters.image_source.endsWith(".jpg")))
+                        barcodeImageParameters.image_source.endsWith(".jpg") ||
+                        barcodeImageParameters.image_source.endsWith(CaptureBundle.EXTENSION)))
                     throw new AutonomousRobotException(TAG, "Invalid image file name");
 
-                ImageProvider fileImage = new FileImage(imagePath + barcodeImageParameters.image_source);
+                ImageProvider fileImage = FileImage.open(imagePath + barcodeImageParameters.image_source);
 
                 // Get the recognition path from the XML file.
                 String recognitionPathString = actionXPath.getRequiredString("barcode_recognition/recognition_path");
@@ -446,10 +610,11 @@ public class RecognitionDispatcher extends Application {
 
                 // Make sure that this tester is reading the image from a file.
                 if (!(shippingHubImageParameters.image_source.endsWith(".png") ||
-                        shippingHubImageParameters.image_source.endsWith(".jpg")))
+                        shippingHubImageParameters.image_source.endsWith(".jpg") ||
+                        shippingHubImageParameters.image_source.endsWith(CaptureBundle.EXTENSION)))
                     throw new AutonomousRobotException(TAG, "Invalid image file name");
 
-                ImageProvider fileImage = new FileImage(imagePath + shippingHubImageParameters.image_source);
+                ImageProvider fileImage = FileImage.open(imagePath + shippingHubImageParameters.image_source);
 
                 // Depending on the OpMode get the BLUE or RED HSV parameters.
                 VisionParameters.HSVParameters shHSVParameters;
@@ -494,7 +659,7 @@ public class RecognitionDispatcher extends Application {
                 RingRecognition ringRecognition = new RingRecognition();
 
                 // Call the OpenCV subsystem.
-                ImageProvider fileImage = new FileImage(imagePath + ringParameters.imageParameters.image_source);
+                ImageProvider fileImage = FileImage.open(imagePath + ringParameters.imageParameters.image_source);
                 RingReturn ringReturn = ringRecognition.findGoldRings(fileImage, ringParameters);
                 if (ringReturn.fatalComputerVisionError)
                     throw new AutonomousRobotException(TAG, "Error in computer vision subsystem");
@@ -507,7 +672,15 @@ public class RecognitionDispatcher extends Application {
             default -> throw new AutonomousRobotException(TAG, "Unrecognized image recognition action");
         }
 
+        // Make sure all of the debugging images are on disk before exiting.
+        DebugImageWriter.shutdownShared();
+        VisionLog.flush();
+        RobotLogCommon.d(TAG, MatPool.getShared().getStatistics().toString());
         RobotLogCommon.closeLog();
+
+        // There is no window to close in batch mode.
+        if (batchRunner != null)
+            Platform.exit();
     }
 
     public String buildAngleAndDepthDisplayText(String pImageFilename, RealSenseReturn pRecognitionReturn) {
@@ -546,6 +719,41 @@ public class RecognitionDispatcher extends Application {
         return displayTextBuilder.toString();
     }
 
+    // Which path the ensemble's decision came from and the result of each
+    // path.
+    public <P extends Enum<P>> String buildEnsembleDisplayText(EnsembleReturn<P> pEnsembleReturn) {
+        StringBuilder displayTextBuilder = new StringBuilder();
+
+        displayTextBuilder.append('\n');
+        displayTextBuilder.append("Ensemble: ");
+        displayTextBuilder.append(pEnsembleReturn.getSuccessfulPaths());
+        displayTextBuilder.append(" of ");
+        displayTextBuilder.append(pEnsembleReturn.pathResults.size());
+        displayTextBuilder.append(" paths successful, decision from ");
+        displayTextBuilder.append(pEnsembleReturn.decisionPath);
+        displayTextBuilder.append('\n');
+        for (Map.Entry<P, RealSenseReturn> pathResult : pEnsembleReturn.pathResults.entrySet()) {
+            displayTextBuilder.append("  ");
+            displayTextBuilder.append(pathResult.getKey());
+            if (pathResult.getValue().recognitionResults != RobotConstants.RecognitionResults.RECOGNITION_SUCCESSFUL)
+                displayTextBuilder.append(" unsuccessful");
+            else
+                displayTextBuilder.append(String.format(" angle %.2f, distance %.2f",
+                        pathResult.getValue().angleFromCamera, pathResult.getValue().distanceFromCamera));
+            displayTextBuilder.append('\n');
+        }
+
+        return displayTextBuilder.toString();
+    }
+
+    // A comma-separated list of recognition paths, e.g. "color, depth".
+    private static <P extends Enum<P>> List<P> parseRecognitionPaths(String pRecognitionPaths, Class<P> pPathClass) {
+        List<P> recognitionPaths = new ArrayList<>();
+        for (String recognitionPath : pRecognitionPaths.split(","))
+            recognitionPaths.add(Enum.valueOf(pPathClass, recognitionPath.trim().toUpperCase()));
+        return recognitionPaths;
+    }
+
     // Display the image in the Pane.
     //**TODO make this larger so you can display both the angle and distance from
     // the camera as well as those from the center of the robot.
@@ -0,0 +1,76 @@
+package org.firstinspires.ftc.teamcode.auto;
+
+import org.firstinspires.ftc.teamcode.auto.vision.VisionParameters;
+import org.firstinspires.ftc.teamcode.common.RobotConstants;
+import org.opencv.core.Rect;
+
+import java.util.List;
+
+// The contents of a regression manifest (see RegressionManifestXML): the
+// recorded frames to run, the result expected from each, and the latency
+// baseline that the corpus as a whole is checked against.
+public class RegressionManifest {
+
+    public final String latencyBaselineFile; // relative to the xml directory
+    public final double latencyTolerancePercent;
+    public final int repetitions; // timed runs per case after the first
+    public final List<Case> cases;
+
+    public RegressionManifest(String pLatencyBaselineFile, double pLatencyTolerancePercent,
+                              int pRepetitions, List<Case> pCases) {
+        latencyBaselineFile = pLatencyBaselineFile;
+        latencyTolerancePercent = pLatencyTolerancePercent;
+        repetitions = pRepetitions;
+        cases = pCases;
+    }
+
+    public static class Case {
+        public final String id;
+        public final String action; // e.g. CONE_STACK_DEPTH
+        public final String recognitionPath;
+        public final RobotConstants.Alliance alliance;
+        public final VisionParameters.ImageParameters imageParameters;
+        public final Rect barcodeLeftWindow; // ANALYZE_BARCODE only
+        public final int barcodeRightWindowWidth; // ANALYZE_BARCODE only
+        public final Expected expected;
+
+        public Case(String pId, String pAction, String pRecognitionPath, RobotConstants.Alliance pAlliance,
+                    VisionParameters.ImageParameters pImageParameters,
+                    Rect pBarcodeLeftWindow, int pBarcodeRightWindowWidth, Expected pExpected) {
+            id = pId;
+            action = pAction;
+            recognitionPath = pRecognitionPath;
+            alliance = pAlliance;
+            imageParameters = pImageParameters;
+            barcodeLeftWindow = pBarcodeLeftWindow;
+            barcodeRightWindowWidth = pBarcodeRightWindowWidth;
+            expected = pExpected;
+        }
+    }
+
+    // The expected result. Angles (degrees) and distances (inches) are
+    // those from the center of the robot and are checked only if present;
+    // the location and window only for the signal sleeve and the barcode.
+    public static class Expected {
+        public final String result; // RECOGNITION_SUCCESSFUL etc.
+        public final Double angle;
+        public final double angleTolerance;
+        public final Double distance;
+        public final double distanceTolerance;
+        public final String signalSleeveLocation;
+        public final String barcodeElementWindow;
+
+        public Expected(String pResult, Double pAngle, double pAngleTolerance,
+                        Double pDistance, double pDistanceTolerance,
+                        String pSignalSleeveLocation, String pBarcodeElementWindow) {
+            result = pResult;
+            angle = pAngle;
+            angleTolerance = pAngleTolerance;
+            distance = pDistance;
+            distanceTolerance = pDistanceTolerance;
+            signalSleeveLocation = pSignalSleeveLocation;
+            barcodeElementWindow = pBarcodeElementWindow;
+        }
+    }
+
+}
@@ -0,0 +1,426 @@
+package org.firstinspires.ftc.teamcode.auto;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+import org.firstinspires.ftc.ftcdevcommon.intellij.WorkingDirectory;
+import org.firstinspires.ftc.teamcode.auto.vision.*;
+import org.firstinspires.ftc.teamcode.auto.xml.*;
+import org.firstinspires.ftc.teamcode.common.RobotConstants;
+import org.firstinspires.ftc.teamcode.common.RobotConstantsFreightFrenzy;
+import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
+import org.opencv.core.Core;
+import org.opencv.core.Rect;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+// Golden-result regression suite. Runs every case in a regression manifest
+// (see RegressionManifestXML) against the current recognition parameters
+// (ConeStackParameters.xml etc.) and fails if any result has drifted from
+// its expected value or if the 95th percentile latency of any action has
+// grown beyond the tolerance of the stored baseline.
+//
+// Usage:
+//   RegressionRunner [--manifest=<file in the xml directory>] [--workers=<n>] [--update_baseline]
+//
+// The cases run in parallel on a pool of worker threads; each worker runs
+// one case at a time, first once to check the result (which also serves as
+// a warm-up) and then the number of <repetitions> in the manifest to
+// measure latency. Because the latencies depend on the number of workers
+// the baseline records it; a run with a different number of workers is
+// reported but not checked against the baseline. Run with
+// --update_baseline to write a new baseline from the current latencies,
+// e.g. after a deliberate change to the recognition code.
+//
+// The process exits with 0 if all cases pass and 1 otherwise.
+public class RegressionRunner {
+
+    private static final String TAG = RegressionRunner.class.getSimpleName();
+
+    private static final String DEFAULT_MANIFEST = "RegressionManifest.xml";
+    private static final double PERCENTILE = 95.0;
+
+    // The result of a single recognition in a form that is common to all
+    // of the return types.
+    private static class Outcome {
+        private final String result;
+        private final Double angle;
+        private final Double distance;
+        private final String signalSleeveLocation;
+        private final String barcodeElementWindow;
+
+        private Outcome(String pResult, Double pAngle, Double pDistance,
+                        String pSignalSleeveLocation, String pBarcodeElementWindow) {
+            result = pResult;
+            angle = pAngle;
+            distance = pDistance;
+            signalSleeveLocation = pSignalSleeveLocation;
+            barcodeElementWindow = pBarcodeElementWindow;
+        }
+    }
+
+    private static class CaseResult {
+        private final RegressionManifest.Case regressionCase;
+        private final Outcome outcome;
+        private final long[] latencyNanos;
+        private final String error;
+
+        private CaseResult(RegressionManifest.Case pCase, Outcome pOutcome, long[] pLatencyNanos, String pError) {
+            regressionCase = pCase;
+            outcome = pOutcome;
+            latencyNanos = pLatencyNanos;
+            error = pError;
+        }
+    }
+
+    private final String xmlDir;
+    private final String imageDir;
+
+    // Recognition parameters, read once for all cases of the actions that
+    // need them.
+    private ConeStackParameters coneStackParameters;
+    private JunctionParameters junctionParameters;
+    private GoldCubeParameters goldCubeParameters;
+    private SignalSleeveParameters signalSleeveParameters;
+    private BarcodeParameters barcodeParameters;
+    private D405Configuration d405Configuration;
+
+    public RegressionRunner() {
+        xmlDir = WorkingDirectory.getWorkingDirectory() + RobotConstants.xmlDir;
+        imageDir = WorkingDirectory.getWorkingDirectory() + RobotConstants.imageDir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        RobotLogCommon.initialize(RobotLogCommon.LogIdentifier.TEST_LOG, WorkingDirectory.getWorkingDirectory() + RobotConstants.logDir);
+
+        String manifestFilename = DEFAULT_MANIFEST;
+        int workers = Runtime.getRuntime().availableProcessors();
+        boolean updateBaseline = false;
+        for (String arg : args) {
+            if (arg.startsWith("--manifest="))
+                manifestFilename = arg.substring("--manifest=".length());
+            else if (arg.startsWith("--workers="))
+                workers = Integer.parseInt(arg.substring("--workers=".length()));
+            else if (arg.equals("--update_baseline"))
+                updateBaseline = true;
+            else
+                throw new AutonomousRobotException(TAG, "Unrecognized argument " + arg);
+        }
+
+        if (workers < 1)
+            throw new AutonomousRobotException(TAG, "The number of workers must be at least 1");
+
+        boolean passed;
+        try {
+            passed = new RegressionRunner().run(manifestFilename, workers, updateBaseline);
+        } finally {
+            DebugImageWriter.shutdownShared();
+            VisionLog.flush();
+            RobotLogCommon.i(TAG, DecodedImageCache.getShared().getStatistics());
+            RobotLogCommon.closeLog();
+        }
+
+        System.exit(passed ? 0 : 1);
+    }
+
+    // Returns true if all cases passed.
+    public boolean run(String pManifestFilename, int pWorkers, boolean pUpdateBaseline) throws Exception {
+        RegressionManifestXML manifestXML = new RegressionManifestXML(xmlDir + pManifestFilename);
+        RegressionManifest manifest = manifestXML.getRegressionManifest();
+        readParameters(manifest);
+
+        // Keep logging out of the timings.
+        RobotLogCommon.setMostDetailedLogLevel(Level.INFO);
+        VisionLog.setLogLevel(Level.INFO);
+
+        report("Regression run: " + manifest.cases.size() + " cases, " + manifest.repetitions +
+                " timed repetitions each, " + pWorkers + " workers");
+
+        ExecutorService executor = Executors.newFixedThreadPool(pWorkers);
+        List<CaseResult> caseResults = new ArrayList<>();
+        try {
+            List<Future<CaseResult>> futures = new ArrayList<>();
+            for (RegressionManifest.Case oneCase : manifest.cases)
+                futures.add(executor.submit(() -> runCase(oneCase, manifest.repetitions)));
+
+            for (Future<CaseResult> future : futures) {
+                try {
+                    caseResults.add(future.get());
+                } catch (ExecutionException eex) {
+                    throw new AutonomousRobotException(TAG, "Regression case failed: " + eex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Check each result against its expected value.
+        int failures = 0;
+        Map<String, List<Long>> latenciesByAction = new TreeMap<>();
+        for (CaseResult caseResult : caseResults) {
+            List<String> drift = caseResult.error != null ?
+                    List.of("exception: " + caseResult.error) :
+                    checkOutcome(caseResult.regressionCase.expected, caseResult.outcome);
+
+            if (drift.isEmpty())
+                report("PASS " + caseResult.regressionCase.id);
+            else {
+                failures++;
+                report("FAIL " + caseResult.regressionCase.id + ": " + String.join("; ", drift));
+            }
+
+            List<Long> latencies = latenciesByAction.computeIfAbsent(caseResult.regressionCase.action, k -> new ArrayList<>());
+            for (long nanos : caseResult.latencyNanos)
+                latencies.add(nanos);
+        }
+
+        // Compare the p95 latency of each action against the baseline.
+        Map<String, Double> p95ByAction = new TreeMap<>();
+        for (Map.Entry<String, List<Long>> entry : latenciesByAction.entrySet())
+            if (!entry.getValue().isEmpty())
+                p95ByAction.put(entry.getKey(), percentileMillis(entry.getValue(), PERCENTILE));
+
+        Path baselinePath = Paths.get(xmlDir + manifest.latencyBaselineFile);
+        if (pUpdateBaseline) {
+            writeBaseline(baselinePath, pWorkers, p95ByAction);
+            report("Latency baseline written to " + baselinePath);
+        } else
+            failures += checkLatency(baselinePath, pWorkers, manifest.latencyTolerancePercent, p95ByAction);
+
+        report("Regression run " + (failures == 0 ? "PASSED" : "FAILED with " + failures + " failure(s)"));
+        return failures == 0;
+    }
+
+    // Read the parameters for the actions in the manifest.
+    private void readParameters(RegressionManifest pManifest) throws Exception {
+        Set<String> actions = new HashSet<>();
+        for (RegressionManifest.Case oneCase : pManifest.cases)
+            actions.add(oneCase.action);
+
+        for (String action : actions) {
+            switch (action) {
+                case "CONE_STACK_DEPTH" -> coneStackParameters = new ConeStackParametersXML(xmlDir).getConeStackParameters();
+                case "JUNCTION_DEPTH" -> junctionParameters = new JunctionParametersXML(xmlDir).getJunctionParameters();
+                case "GOLD_CUBE_DEPTH" -> goldCubeParameters = new GoldCubeParametersXML(xmlDir).getGoldCubeParameters();
+                case "ANALYZE_SIGNAL_SLEEVE" -> signalSleeveParameters = new SignalSleeveParametersXML(xmlDir).getSignalSleeveParameters();
+                case "ANALYZE_BARCODE" -> barcodeParameters = new BarcodeParametersXML(xmlDir).getBarcodeParameters();
+                default -> throw new AutonomousRobotException(TAG, "Action " + action + " is not supported in a regression run");
+            }
+        }
+
+        if (actions.contains("CONE_STACK_DEPTH") || actions.contains("JUNCTION_DEPTH") || actions.contains("GOLD_CUBE_DEPTH"))
+            d405Configuration = new D405ConfigurationXML(xmlDir).getD405Configuration();
+    }
+
+    private CaseResult runCase(RegressionManifest.Case pCase, int pRepetitions) {
+        // The diagnostics level is per-thread.
+        Diagnostics.setLevel(Diagnostics.Level.NONE);
+
+        Outcome outcome;
+        try {
+            outcome = recognize(pCase);
+        } catch (Exception ex) {
+            RobotLogCommon.e(TAG, "Exception in case " + pCase.id + ": " + ex);
+            return new CaseResult(pCase, null, new long[0], ex.getMessage() != null ? ex.getMessage() : ex.toString());
+        }
+
+        long[] latencyNanos = new long[pRepetitions];
+        try {
+            for (int i = 0; i < pRepetitions; i++) {
+                long startNanos = System.nanoTime();
+                recognize(pCase);
+                latencyNanos[i] = System.nanoTime() - startNanos;
+            }
+        } catch (Exception ex) {
+            RobotLogCommon.e(TAG, "Exception in a timed run of case " + pCase.id + ": " + ex);
+            return new CaseResult(pCase, outcome, new long[0], ex.getMessage() != null ? ex.getMessage() : ex.toString());
+        }
+
+        return new CaseResult(pCase, outcome, latencyNanos, null);
+    }
+
+    private Outcome recognize(RegressionManifest.Case pCase) throws Exception {
+        String imageSource = pCase.imageParameters.image_source;
+        ImageProvider fileImage = FileImage.open(Paths.get(imageSource).isAbsolute() ? imageSource : imageDir + imageSource);
+
+        switch (pCase.action) {
+            case "CONE_STACK_DEPTH" -> {
+                RealSenseReturn coneStackReturn = new ConeStackRecognition(pCase.alliance).recognizeConeStack(fileImage,
+                        d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                        pCase.imageParameters, coneStackParameters,
+                        RobotConstantsPowerPlay.ConeStackRecognitionPath.valueOf(pCase.recognitionPath), true);
+                return outcome(coneStackReturn);
+            }
+            case "JUNCTION_DEPTH" -> {
+                RealSenseReturn junctionReturn = new JunctionRecognition(pCase.alliance).recognizeJunction(fileImage,
+                        d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                        pCase.imageParameters, junctionParameters,
+                        RobotConstantsPowerPlay.JunctionRecognitionPath.valueOf(pCase.recognitionPath));
+                return outcome(junctionReturn);
+            }
+            case "GOLD_CUBE_DEPTH" -> {
+                RealSenseReturn goldCubeReturn = new GoldCubeRecognition(pCase.alliance).recognizeGoldCube(fileImage,
+                        d405Configuration, RobotConstantsPowerPlay.D405CameraId.SWIVEL,
+                        pCase.imageParameters, goldCubeParameters,
+                        RobotConstants.RecognitionPath.valueOf(pCase.recognitionPath));
+                return outcome(goldCubeReturn);
+            }
+            case "ANALYZE_SIGNAL_SLEEVE" -> {
+                SignalSleeveReturn signalSleeveReturn = new SignalSleeveRecognition().recognizeSignalSleeve(fileImage,
+                        pCase.imageParameters, signalSleeveParameters, pCase.alliance,
+                        RobotConstantsPowerPlay.SignalSleeveRecognitionPath.valueOf(pCase.recognitionPath));
+                return new Outcome(signalSleeveReturn.openCVResults.toString(), null, null,
+                        signalSleeveReturn.signalSleeveLocation.toString(), null);
+            }
+            case "ANALYZE_BARCODE" -> {
+                // The barcode windows differ from case to case so each
+                // recognition gets its own copy of the parameters.
+                BarcodeParameters caseBarcodeParameters = new BarcodeParameters(barcodeParameters.grayParameters,
+                        barcodeParameters.hsvParameters, barcodeParameters.minWhitePixels);
+                EnumMap<RobotConstantsFreightFrenzy.BarcodeElementWindow, Rect> barcodeElements =
+                        new EnumMap<>(RobotConstantsFreightFrenzy.BarcodeElementWindow.class);
+                Rect left = pCase.barcodeLeftWindow;
+                barcodeElements.put(RobotConstantsFreightFrenzy.BarcodeElementWindow.LEFT, left);
+                barcodeElements.put(RobotConstantsFreightFrenzy.BarcodeElementWindow.RIGHT,
+                        new Rect(left.x + left.width + 1, left.y, pCase.barcodeRightWindowWidth, left.height));
+                caseBarcodeParameters.setBarcodeElements(barcodeElements);
+
+                BarcodeReturn barcodeReturn = new BarcodeRecognition().findTeamScoringElement(fileImage,
+                        pCase.imageParameters, caseBarcodeParameters,
+                        RobotConstantsFreightFrenzy.RecognitionPath.valueOf(pCase.recognitionPath));
+                return new Outcome(barcodeReturn.openCVResults.toString(), null, null,
+                        null, barcodeReturn.barcodeElementWindow.toString());
+            }
+            default -> throw new AutonomousRobotException(TAG, "Unsupported action " + pCase.action);
+        }
+    }
+
+    private static Outcome outcome(RealSenseReturn pRealSenseReturn) {
+        if (pRealSenseReturn.recognitionResults != RobotConstants.RecognitionResults.RECOGNITION_SUCCESSFUL)
+            return new Outcome(pRealSenseReturn.recognitionResults.toString(), null, null, null, null);
+
+        return new Outcome(pRealSenseReturn.recognitionResults.toString(),
+                pRealSenseReturn.angleFromRobotCenter, pRealSenseReturn.distanceFromRobotCenter, null, null);
+    }
+
+    // Returns a description of each difference between the expected and
+    // the actual outcome.
+    private static List<String> checkOutcome(RegressionManifest.Expected pExpected, Outcome pOutcome) {
+        List<String> drift = new ArrayList<>();
+        if (!pExpected.result.equals(pOutcome.result))
+            drift.add("result " + pOutcome.result + ", expected " + pExpected.result);
+
+        if (pExpected.angle != null) {
+            if (pOutcome.angle == null)
+                drift.add("no angle, expected " + pExpected.angle);
+            else if (Math.abs(pOutcome.angle - pExpected.angle) > pExpected.angleTolerance)
+                drift.add(String.format("angle %.2f, expected %.2f +/- %.2f", pOutcome.angle, pExpected.angle, pExpected.angleTolerance));
+        }
+
+        if (pExpected.distance != null) {
+            if (pOutcome.distance == null)
+                drift.add("no distance, expected " + pExpected.distance);
+            else if (Math.abs(pOutcome.distance - pExpected.distance) > pExpected.distanceTolerance)
+                drift.add(String.format("distance %.2f, expected %.2f +/- %.2f", pOutcome.distance, pExpected.distance, pExpected.distanceTolerance));
+        }
+
+        if (pExpected.signalSleeveLocation != null && !pExpected.signalSleeveLocation.equals(pOutcome.signalSleeveLocation))
+            drift.add("signal sleeve location " + pOutcome.signalSleeveLocation + ", expected " + pExpected.signalSleeveLocation);
+
+        if (pExpected.barcodeElementWindow != null && !pExpected.barcodeElementWindow.equals(pOutcome.barcodeElementWindow))
+            drift.add("barcode element window " + pOutcome.barcodeElementWindow + ", expected " + pExpected.barcodeElementWindow);
+
+        return drift;
+    }
+
+    // Nearest-rank percentile.
+    private static double percentileMillis(List<Long> pNanos, double pPercentile) {
+        long[] sorted = new long[pNanos.size()];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = pNanos.get(i);
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil((pPercentile / 100.0) * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1_000_000.0;
+    }
+
+    // Returns the number of latency failures.
+    private int checkLatency(Path pBaselinePath, int pWorkers, double pTolerancePercent,
+                             Map<String, Double> pP95ByAction) throws Exception {
+        if (!Files.exists(pBaselinePath)) {
+            report("No latency baseline at " + pBaselinePath + "; run with --update_baseline to create one");
+            pP95ByAction.forEach((action, p95) -> report(String.format("p95 %s %.2f ms", action, p95)));
+            return 0;
+        }
+
+        Document baseline = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(pBaselinePath.toFile());
+        Element root = baseline.getDocumentElement();
+        int baselineWorkers = Integer.parseInt(root.getAttribute("workers"));
+        Map<String, Double> baselineP95 = new HashMap<>();
+        NodeList actionNodes = root.getElementsByTagName("action");
+        for (int i = 0; i < actionNodes.getLength(); i++) {
+            Element actionElement = (Element) actionNodes.item(i);
+            baselineP95.put(actionElement.getAttribute("name"), Double.parseDouble(actionElement.getAttribute("p95_ms")));
+        }
+
+        boolean comparable = baselineWorkers == pWorkers;
+        if (!comparable)
+            report("The latency baseline was recorded with " + baselineWorkers + " workers, this run used " +
+                    pWorkers + "; latency not checked");
+
+        int failures = 0;
+        for (Map.Entry<String, Double> entry : pP95ByAction.entrySet()) {
+            Double baselineValue = baselineP95.get(entry.getKey());
+            double p95 = entry.getValue();
+            if (baselineValue == null) {
+                report(String.format("p95 %s %.2f ms (no baseline)", entry.getKey(), p95));
+                continue;
+            }
+
+            double limit = baselineValue * (1.0 + (pTolerancePercent / 100.0));
+            String verdict;
+            if (!comparable)
+                verdict = "SKIPPED (worker count mismatch)";
+            else if (p95 > limit) {
+                verdict = "FAIL";
+                failures++;
+            }
+            else
+                verdict = "PASS";
+            report(String.format("%s p95 %s %.2f ms, baseline %.2f ms, limit %.2f ms",
+                    verdict, entry.getKey(), p95, baselineValue, limit));
+        }
+
+        return failures;
+    }
+
+    private static void writeBaseline(Path pBaselinePath, int pWorkers, Map<String, Double> pP95ByAction) throws IOException {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<regression_baseline workers=\"").append(pWorkers).append("\">\n");
+        pP95ByAction.forEach((action, p95) ->
+                xml.append(String.format(Locale.ROOT, "    <action name=\"%s\" p95_ms=\"%.3f\"/>%n", action, p95))); // read back with parseDouble
+        xml.append("</regression_baseline>\n");
+        Files.writeString(pBaselinePath, xml.toString(), StandardCharsets.UTF_8);
+    }
+
+    private static void report(String pMessage) {
+        RobotLogCommon.i(TAG, pMessage);
+        System.out.println(pMessage);
+    }
+
+}
@@ -0,0 +1,115 @@
+package org.firstinspires.ftc.teamcode.auto;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+import org.firstinspires.ftc.ftcdevcommon.intellij.WorkingDirectory;
+import org.firstinspires.ftc.teamcode.auto.vision.RealSenseUtils;
+import org.firstinspires.ftc.teamcode.auto.vision.TiledDepthFile;
+import org.firstinspires.ftc.teamcode.common.RobotConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Converts .depth files to tiled, compressed .tdepth files (see
+// TiledDepthFile) next to the originals. Each converted file is read back
+// and compared with the original before it is kept. The originals are not
+// removed; where both exist the recognizers read the .tdepth file.
+//
+// Usage:
+//   TiledDepthConverter [--width=<pixels>] [--height=<pixels>] [--tile=<pixels>] [<.depth file or directory> ...]
+//
+// A .depth file does not record its resolution, so all of the files
+// converted in one run must have the resolution given by --width and
+// --height (640x480 by default). With no files or directories the .depth
+// files in the images directory are converted.
+public class TiledDepthConverter {
+
+    private static final String TAG = TiledDepthConverter.class.getSimpleName();
+
+    private static final int DEFAULT_WIDTH = 640;
+    private static final int DEFAULT_HEIGHT = 480;
+
+    public static void main(String[] args) throws IOException {
+        RobotLogCommon.initialize(RobotLogCommon.LogIdentifier.TEST_LOG, WorkingDirectory.getWorkingDirectory() + RobotConstants.logDir);
+
+        int width = DEFAULT_WIDTH;
+        int height = DEFAULT_HEIGHT;
+        int tileSize = TiledDepthFile.DEFAULT_TILE_SIZE;
+        List<Path> depthFiles = new ArrayList<>();
+        List<String> sources = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--width="))
+                width = Integer.parseInt(arg.substring("--width=".length()));
+            else if (arg.startsWith("--height="))
+                height = Integer.parseInt(arg.substring("--height=".length()));
+            else if (arg.startsWith("--tile="))
+                tileSize = Integer.parseInt(arg.substring("--tile=".length()));
+            else if (arg.startsWith("--"))
+                throw new AutonomousRobotException(TAG, "Unrecognized argument " + arg);
+            else
+                sources.add(arg);
+        }
+
+        if (sources.isEmpty())
+            sources.add(WorkingDirectory.getWorkingDirectory() + RobotConstants.imageDir);
+
+        for (String source : sources) {
+            Path sourcePath = Paths.get(source);
+            if (Files.isDirectory(sourcePath)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(sourcePath, "*.depth")) {
+                    for (Path file : files)
+                        depthFiles.add(file);
+                }
+            } else if (Files.isRegularFile(sourcePath))
+                depthFiles.add(sourcePath);
+            else
+                throw new AutonomousRobotException(TAG, "Depth file or directory not found: " + source);
+        }
+
+        long depthBytes = 0;
+        long tiledBytes = 0;
+        try {
+            for (Path depthFile : depthFiles) {
+                String depthFilename = depthFile.toString();
+                String tiledFilename = depthFilename.substring(0, depthFilename.lastIndexOf('.')) + TiledDepthFile.EXTENSION;
+                convert(depthFilename, tiledFilename, width, height, tileSize);
+
+                depthBytes += Files.size(depthFile);
+                tiledBytes += Files.size(Paths.get(tiledFilename));
+                report("Converted " + depthFilename + " to " + tiledFilename + ", " + Files.size(depthFile) +
+                        " to " + Files.size(Paths.get(tiledFilename)) + " bytes");
+            }
+
+            report("Converted " + depthFiles.size() + " files, " + depthBytes + " to " + tiledBytes + " bytes" +
+                    (tiledBytes == 0 ? "" : String.format(", ratio %.2f", (double) depthBytes / tiledBytes)));
+        } finally {
+            RobotLogCommon.closeLog();
+        }
+    }
+
+    // Write the .tdepth file and check that it reads back as the original.
+    public static void convert(String pDepthFilename, String pTiledDepthFilename,
+                               int pWidth, int pHeight, int pTileSize) throws IOException {
+        ByteBuffer original = RealSenseUtils.mapDepthBytes(pDepthFilename, pWidth, pHeight);
+        TiledDepthFile.write(original.asShortBuffer(), pWidth, pHeight, pTileSize, pTileSize, pTiledDepthFilename);
+
+        ByteBuffer converted = TiledDepthFile.readRegion(pTiledDepthFilename, pWidth, pHeight, null);
+        if (!converted.order(ByteOrder.LITTLE_ENDIAN).equals(original)) {
+            Files.deleteIfExists(Paths.get(pTiledDepthFilename));
+            throw new AutonomousRobotException(TAG, "Conversion of " + pDepthFilename + " did not read back correctly");
+        }
+    }
+
+    private static void report(String pMessage) {
+        RobotLogCommon.i(TAG, pMessage);
+        System.out.println(pMessage);
+    }
+
+}
@@ -0,0 +1,209 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+// A recorded frame in one file (.cbundle): the color image as raw BGR
+// pixels, the depth values if the frame came from a depth camera, and
+// the resolution, timestamp and camera id. Nothing in the file is
+// compressed, so the file is memory-mapped and the image and the depth
+// values are used in place, with no decode.
+//
+// The layout, all values little-endian:
+//   header   int magic "CBUN", int version, int width, int height,
+//            long timestamp (milliseconds since the epoch), int flags
+//            (bit 0: depth present), 32 bytes camera id (ASCII, padded
+//            with 0), int reserved; 64 bytes in all
+//   color    width * height * 3 bytes, BGR, in row order
+//   depth    at the next multiple of 64 bytes after the color: width *
+//            height 16-bit values in row order, as in a .depth file
+//
+// Use CaptureBundleConverter to convert a png or jpg image and its .depth
+// file.
+public class CaptureBundle {
+
+    private static final String TAG = CaptureBundle.class.getSimpleName();
+
+    public static final String EXTENSION = ".cbundle";
+
+    private static final int MAGIC = 0x4E554243; // "CBUN" little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int CAMERA_ID_BYTES = 32;
+    private static final int FLAG_DEPTH = 1;
+
+    public final int width;
+    public final int height;
+    public final LocalDateTime timestamp;
+    public final String cameraId;
+    public final boolean hasDepth;
+
+    private final ByteBuffer bundleBytes; // mapped, read-only
+
+    private CaptureBundle(ByteBuffer pBundleBytes, int pWidth, int pHeight, LocalDateTime pTimestamp,
+                          String pCameraId, boolean pHasDepth) {
+        bundleBytes = pBundleBytes;
+        width = pWidth;
+        height = pHeight;
+        timestamp = pTimestamp;
+        cameraId = pCameraId;
+        hasDepth = pHasDepth;
+    }
+
+    // Map a bundle into memory. The mapping stays valid after the file is
+    // closed and is released when neither this object, nor a Mat from
+    // getColorMat, nor a buffer from getDepthBytes is referenced.
+    public static CaptureBundle open(String pFilename) throws IOException {
+        ByteBuffer bundleBytes;
+        try (FileChannel channel = FileChannel.open(Paths.get(pFilename), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES)
+                throw new AutonomousRobotException(TAG, "Capture bundle " + pFilename + " is truncated");
+            bundleBytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        checkHeader(bundleBytes, pFilename);
+        int width = bundleBytes.getInt(8);
+        int height = bundleBytes.getInt(12);
+        long timestampMillis = bundleBytes.getLong(16);
+        boolean hasDepth = (bundleBytes.getInt(24) & FLAG_DEPTH) != 0;
+        byte[] cameraIdBytes = new byte[CAMERA_ID_BYTES];
+        bundleBytes.get(28, cameraIdBytes);
+        int cameraIdLength = 0;
+        while (cameraIdLength < CAMERA_ID_BYTES && cameraIdBytes[cameraIdLength] != 0)
+            cameraIdLength++;
+
+        if (width < 1 || height < 1 || bundleBytes.capacity() != getBundleBytes(width, height, hasDepth))
+            throw new AutonomousRobotException(TAG, "Capture bundle " + pFilename + " has " + bundleBytes.capacity() +
+                    " bytes, which does not match its resolution " + width + "x" + height);
+
+        return new CaptureBundle(bundleBytes, width, height,
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.systemDefault()),
+                new String(cameraIdBytes, 0, cameraIdLength, StandardCharsets.US_ASCII), hasDepth);
+    }
+
+    // Whether a bundle contains depth values, from its header alone; the
+    // rest of the file is neither read nor mapped.
+    public static boolean hasDepth(String pFilename) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(Paths.get(pFilename), StandardOpenOption.READ)) {
+            while (header.hasRemaining())
+                if (channel.read(header) == -1)
+                    throw new AutonomousRobotException(TAG, "Capture bundle " + pFilename + " is truncated");
+        }
+
+        checkHeader(header, pFilename);
+        return (header.getInt(24) & FLAG_DEPTH) != 0;
+    }
+
+    // The color image, a CV_8UC3 BGR Mat that refers to the mapped file.
+    // The Mat is read-only: copy it before modifying it. It keeps the
+    // mapping alive but a submat of it does not, so keep the Mat itself
+    // for as long as any submat is in use.
+    public Mat getColorMat() {
+        return new MappedMat(height, width, CvType.CV_8UC3, getSlice(HEADER_BYTES, width * height * 3));
+    }
+
+    // The depth values in little-endian order, as in a .depth file, for
+    // use with DepthFrame.
+    public ByteBuffer getDepthBytes() {
+        if (!hasDepth)
+            throw new AutonomousRobotException(TAG, "The capture bundle has no depth values");
+        return getSlice(getDepthOffset(width, height), width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Write a bundle. pColor is a CV_8UC3 BGR image; pDepth holds the
+    // depth values of the full image in row order, or is null if there
+    // are none. The file is written under a temporary name and then
+    // renamed so that a reader never sees a partial file.
+    public static void write(String pFilename, Mat pColor, ShortBuffer pDepth, LocalDateTime pTimestamp,
+                             String pCameraId) throws IOException {
+        if (pColor.type() != CvType.CV_8UC3)
+            throw new AutonomousRobotException(TAG, "The color image must be CV_8UC3");
+        int width = pColor.cols();
+        int height = pColor.rows();
+        if (pDepth != null && pDepth.remaining() != width * height)
+            throw new AutonomousRobotException(TAG, "Depth data has " + pDepth.remaining() +
+                    " values, expected " + (width * height) + " for resolution " + width + "x" + height);
+
+        byte[] cameraIdBytes = pCameraId.getBytes(StandardCharsets.US_ASCII);
+        if (cameraIdBytes.length > CAMERA_ID_BYTES)
+            throw new AutonomousRobotException(TAG, "Camera id " + pCameraId + " is longer than " + CAMERA_ID_BYTES + " characters");
+
+        ByteBuffer bundle = ByteBuffer.allocate(getBundleBytes(width, height, pDepth != null)).order(ByteOrder.LITTLE_ENDIAN);
+        bundle.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height)
+                .putLong(pTimestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli())
+                .putInt(pDepth != null ? FLAG_DEPTH : 0)
+                .put(cameraIdBytes);
+
+        Mat color = pColor.isContinuous() ? pColor : pColor.clone();
+        byte[] colorBytes = new byte[width * height * 3];
+        color.get(0, 0, colorBytes);
+        if (color != pColor)
+            color.release();
+        bundle.put(HEADER_BYTES, colorBytes);
+
+        if (pDepth != null) {
+            bundle.position(getDepthOffset(width, height));
+            bundle.asShortBuffer().put(pDepth.duplicate());
+        }
+
+        bundle.clear();
+        Path target = Paths.get(pFilename);
+        Path temporary = Paths.get(pFilename + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (bundle.hasRemaining())
+                channel.write(bundle);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private ByteBuffer getSlice(int pOffset, int pLength) {
+        return bundleBytes.slice(pOffset, pLength);
+    }
+
+    private static void checkHeader(ByteBuffer pHeader, String pFilename) {
+        if (pHeader.getInt(0) != MAGIC)
+            throw new AutonomousRobotException(TAG, "Not a capture bundle: " + pFilename);
+        int version = pHeader.getInt(4);
+        if (version != VERSION)
+            throw new AutonomousRobotException(TAG, "Unsupported capture bundle version " + version + " in " + pFilename);
+    }
+
+    private static int getDepthOffset(int pWidth, int pHeight) {
+        return (HEADER_BYTES + (pWidth * pHeight * 3) + 63) & ~63;
+    }
+
+    private static int getBundleBytes(int pWidth, int pHeight, boolean pHasDepth) {
+        return pHasDepth ? getDepthOffset(pWidth, pHeight) + (pWidth * pHeight * 2) : HEADER_BYTES + (pWidth * pHeight * 3);
+    }
+
+    // A Mat over a mapped buffer. OpenCV does not keep a reference to the
+    // buffer that a Mat is constructed on, so without one here the
+    // mapping could be released while the Mat is still in use.
+    private static class MappedMat extends Mat {
+        private final ByteBuffer mappedBytes;
+
+        private MappedMat(int pRows, int pCols, int pType, ByteBuffer pMappedBytes) {
+            super(pRows, pCols, pType, pMappedBytes);
+            mappedBytes = pMappedBytes;
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.firstinspires.ftc.ftcdevcommon.Pair;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+
+// Supplies the image in a capture bundle (see CaptureBundle) without
+// decoding it. The timestamp is the one recorded in the bundle. The Mat
+// from getImage() is a copy that belongs to the caller, as in FileImage;
+// getFrame() shares the mapped file itself, which is read-only, as the
+// image of the frame is (see ImageFrame).
+public class CaptureBundleImage implements ImageProvider {
+
+    private static final String TAG = CaptureBundleImage.class.getSimpleName();
+
+    private final String pathToBundleFile;
+
+    public CaptureBundleImage(String pPathToBundleFile) {
+        pathToBundleFile = pPathToBundleFile;
+    }
+
+    @Override
+    public Pair<Mat, LocalDateTime> getImage() {
+        CaptureBundle bundle = openBundle();
+        if (bundle == null)
+            return null; // let the caller decide what to do, as in FileImage
+
+        Mat mappedImage = bundle.getColorMat();
+        Mat image = mappedImage.clone();
+        mappedImage.release();
+        return Pair.create(image, bundle.timestamp);
+    }
+
+    // The frame refers to the mapped file, which stays mapped until the
+    // frame is released.
+    @Override
+    public ImageFrame getFrame() {
+        CaptureBundle bundle = openBundle();
+        if (bundle == null)
+            return null;
+
+        return new ImageFrame(bundle.getColorMat(), bundle.timestamp, ImageFormat.BGR, Mat::release);
+    }
+
+    @Override
+    public ImageFormat getImageFormat() {
+        return ImageFormat.BGR;
+    }
+
+    private CaptureBundle openBundle() {
+        if (!Files.isRegularFile(Paths.get(pathToBundleFile)))
+            return null;
+
+        try {
+            CaptureBundle bundle = CaptureBundle.open(pathToBundleFile);
+            VisionLog.d(TAG, "Capture bundle from camera {}", bundle.cameraId);
+            return bundle;
+        } catch (IOException iox) {
+            throw new AutonomousRobotException(TAG, "Error reading capture bundle " + pathToBundleFile + ": " + iox.getMessage());
+        }
+    }
+
+}
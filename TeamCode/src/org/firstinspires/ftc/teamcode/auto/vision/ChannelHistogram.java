@@ -0,0 +1,129 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Collections;
+
+// Median and percentile engine for one 8-bit channel of an image.
+// A single pass (OpenCV calcHist) fills a 256-bin histogram; the
+// median and any percentile are then read from the cumulative counts
+// with no per-pixel copy into Java and no sort.
+// An optional mask restricts the statistics to the pixels where the
+// mask is non-zero, e.g. the depth-in-range pixels of an image ROI.
+public class ChannelHistogram {
+
+    private static final String TAG = ChannelHistogram.class.getSimpleName();
+
+    public static final int BINS = 256;
+
+    private final int[] counts = new int[BINS];
+    private int pixelCount;
+
+    // Histogram of a single-channel 8-bit Mat over all of its pixels.
+    public ChannelHistogram(Mat pSingleChannelMat) {
+        this(pSingleChannelMat, 0, null);
+    }
+
+    // Histogram of channel pChannel of an 8-bit Mat with one or more
+    // channels, e.g. channel 1 (saturation) of an HSV image. This avoids
+    // a Core.split just to get at one channel. If pMask is null or empty
+    // all pixels are counted; otherwise only those pixels for which the
+    // mask (CV_8UC1, same size as the image) is non-zero are counted.
+    public ChannelHistogram(Mat pImage, int pChannel, Mat pMask) {
+        if (pImage.depth() != CvType.CV_8U)
+            throw new AutonomousRobotException(TAG, "Expected an 8-bit image");
+
+        if (pChannel < 0 || pChannel >= pImage.channels())
+            throw new AutonomousRobotException(TAG, "Channel " + pChannel + " out of range");
+
+        Mat mask = (pMask == null || pMask.empty()) ? new Mat() : pMask;
+        Mat hist = new Mat();
+        Imgproc.calcHist(Collections.singletonList(pImage), new MatOfInt(pChannel), mask, hist,
+                new MatOfInt(BINS), new MatOfFloat(0, BINS), false);
+
+        // calcHist accumulates in floats; the counts for a single image
+        // are well within the range in which floats hold exact integers.
+        float[] bins = new float[BINS];
+        hist.get(0, 0, bins);
+        hist.release();
+
+        for (int i = 0; i < BINS; i++) {
+            counts[i] = (int) bins[i];
+            pixelCount += counts[i];
+        }
+    }
+
+    // The number of pixels in the histogram, i.e. the number of pixels
+    // in the image or, if a mask was supplied, the number of pixels under
+    // the mask.
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    public int getCount(int pValue) {
+        return counts[pValue];
+    }
+
+    // Returns the pixel value that would be at position pRank (0-based)
+    // if all of the pixels were sorted in ascending order.
+    public int getValueAtRank(int pRank) {
+        if (pixelCount == 0)
+            throw new AutonomousRobotException(TAG, "No pixels in histogram");
+
+        if (pRank < 0 || pRank >= pixelCount)
+            throw new AutonomousRobotException(TAG, "Rank " + pRank + " out of range");
+
+        int cumulative = 0;
+        for (int i = 0; i < BINS; i++) {
+            cumulative += counts[i];
+            if (cumulative > pRank)
+                return i;
+        }
+
+        throw new AutonomousRobotException(TAG, "Histogram is inconsistent"); // can't happen
+    }
+
+    // The median is the average of the two middle elements, i.e. the
+    // elements at [n / 2] and [(n / 2) - 1] of the sorted pixels.
+    public int getMedian() {
+        int upper = getValueAtRank(pixelCount / 2);
+        int lower = getValueAtRank(Math.max((pixelCount / 2) - 1, 0));
+        return (upper + lower) / 2;
+    }
+
+    // Nearest-rank percentile; pPercentile is in the range 0.0 - 100.0.
+    public int getPercentile(double pPercentile) {
+        if (pPercentile < 0.0 || pPercentile > 100.0)
+            throw new AutonomousRobotException(TAG, "Percentile " + pPercentile + " out of range");
+
+        int rank = (int) Math.ceil((pPercentile / 100.0) * pixelCount) - 1;
+        return getValueAtRank(Math.max(rank, 0));
+    }
+
+    // Any number of percentiles from a single walk of the histogram.
+    // The requested percentiles must be in ascending order.
+    public int[] getPercentiles(double... pPercentiles) {
+        if (pixelCount == 0)
+            throw new AutonomousRobotException(TAG, "No pixels in histogram");
+
+        int[] values = new int[pPercentiles.length];
+        int bin = 0;
+        int cumulative = counts[0];
+        double previous = 0.0;
+        for (int i = 0; i < pPercentiles.length; i++) {
+            if (pPercentiles[i] < previous || pPercentiles[i] > 100.0)
+                throw new AutonomousRobotException(TAG, "Percentiles must be ascending and in the range 0 - 100");
+            previous = pPercentiles[i];
+
+            int rank = Math.max((int) Math.ceil((pPercentiles[i] / 100.0) * pixelCount) - 1, 0);
+            while (cumulative <= rank)
+                cumulative += counts[++bin];
+            values[i] = bin;
+        }
+
+        return values;
+    }
+
+}
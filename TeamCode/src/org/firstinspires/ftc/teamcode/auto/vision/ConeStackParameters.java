@@ -10,17 +10,28 @@ public class ConeStackParameters {
     public final VisionParameters.HSVParameters blueHSVParameters;
 
     public final DepthParameters depthParameters;
+    public final int pyramidScale; // see RealSenseRecognition
 
     public ConeStackParameters(VisionParameters.GrayParameters pRedGrayscaleParameters,
                                VisionParameters.HSVParameters pRedHSVParameters,
                                VisionParameters.GrayParameters pBlueGrayscaleParameters,
                                VisionParameters.HSVParameters pBlueHSVParameters,
                                DepthParameters pDepthParameters) {
+        this(pRedGrayscaleParameters, pRedHSVParameters, pBlueGrayscaleParameters, pBlueHSVParameters,
+                pDepthParameters, VisionParameters.NO_PYRAMID);
+    }
+
+    public ConeStackParameters(VisionParameters.GrayParameters pRedGrayscaleParameters,
+                               VisionParameters.HSVParameters pRedHSVParameters,
+                               VisionParameters.GrayParameters pBlueGrayscaleParameters,
+                               VisionParameters.HSVParameters pBlueHSVParameters,
+                               DepthParameters pDepthParameters, int pPyramidScale) {
         redGrayscaleParameters = pRedGrayscaleParameters;
         redHSVParameters = pRedHSVParameters;
         blueGrayscaleParameters = pBlueGrayscaleParameters;
         blueHSVParameters = pBlueHSVParameters;
         depthParameters = pDepthParameters;
+        pyramidScale = pPyramidScale;
     }
 
 }
\ No newline at end of file
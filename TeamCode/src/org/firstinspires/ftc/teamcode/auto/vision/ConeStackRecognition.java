@@ -3,17 +3,16 @@ package org.firstinspires.ftc.teamcode.auto.vision;
 //!! IntelliJ only
 
 import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
-import org.firstinspires.ftc.ftcdevcommon.Pair;
-import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
 import org.firstinspires.ftc.ftcdevcommon.intellij.TimeStamp;
 import org.firstinspires.ftc.ftcdevcommon.intellij.WorkingDirectory;
 import org.firstinspires.ftc.teamcode.common.RobotConstants;
 import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
 import org.opencv.core.*;
-import org.opencv.imgcodecs.Imgcodecs;
 
 import java.io.IOException;
-import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 // This class uses ConeStackParameters, which include parameters for red
 // grayscale, red hsv and blue grayscale, blue hsv. Both grayscale paths
@@ -43,57 +42,143 @@ public class ConeStackRecognition {
                                               ConeStackParameters pConeStackParameters,
                                               RobotConstantsPowerPlay.ConeStackRecognitionPath pConeStackRecognitionPath,
                                               boolean pIncludeDepthProcessing) throws InterruptedException, IOException {
+        ImageFrame frame = pImageProvider.getFrame();
+        if (frame == null)
+            return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR); // don't crash
 
-        RobotLogCommon.d(TAG, "In ConeStackRecognition.recognizeConeStack");
+        try (FrameContext frameContext = new FrameContext(frame)) {
+            return recognizeConeStack(frameContext, pD405Configuration, pCameraId, pImageParameters, pConeStackParameters, pConeStackRecognitionPath, pIncludeDepthProcessing);
+        } finally {
+            frame.release();
+        }
+    }
 
-        // LocalDateTime requires Android minSdkVersion 26  public Pair<Mat, LocalDateTime> getImage() throws InterruptedException;
-        Pair<Mat, LocalDateTime> coneStackImage = pImageProvider.getImage();
-        if (coneStackImage == null)
-            return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR); // don't crash
+    // Same as above for a frame whose intermediate images may be shared
+    // with other recognitions of it (see FrameContext).
+    public RealSenseReturn recognizeConeStack(FrameContext pFrameContext,
+                                              D405Configuration pD405Configuration,
+                                              RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                              VisionParameters.ImageParameters pImageParameters,
+                                              ConeStackParameters pConeStackParameters,
+                                              RobotConstantsPowerPlay.ConeStackRecognitionPath pConeStackRecognitionPath,
+                                              boolean pIncludeDepthProcessing) throws IOException {
+
+        VisionLog.d(TAG, "In ConeStackRecognition.recognizeConeStack");
+
+        PreparedFrame prepared = prepareFrame(pFrameContext, pD405Configuration, pCameraId, pImageParameters,
+                pConeStackParameters, pIncludeDepthProcessing);
+        return recognizePath(pFrameContext, prepared, prepared.outputFilenamePreamble, pD405Configuration, pCameraId,
+                pConeStackParameters, pConeStackRecognitionPath);
+    }
+
+    // Runs all of pConeStackRecognitionPaths on one frame at the same time
+    // (see RecognitionEnsemble) and returns all of their results together
+    // with the combined decision. The ROI and the depth filtering are done
+    // once for all of the paths; each path writes its debugging images
+    // under its own name, e.g. ..._COLOR_CON.png.
+    public EnsembleReturn<RobotConstantsPowerPlay.ConeStackRecognitionPath> recognizeConeStack(ImageProvider pImageProvider,
+                                              D405Configuration pD405Configuration,
+                                              RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                              VisionParameters.ImageParameters pImageParameters,
+                                              ConeStackParameters pConeStackParameters,
+                                              List<RobotConstantsPowerPlay.ConeStackRecognitionPath> pConeStackRecognitionPaths,
+                                              boolean pIncludeDepthProcessing) throws InterruptedException, IOException {
+        VisionLog.d(TAG, "In ConeStackRecognition.recognizeConeStack, ensemble of {}", pConeStackRecognitionPaths);
+
+        ImageFrame frame = pImageProvider.getFrame();
+        if (frame == null) { // don't crash
+            Map<RobotConstantsPowerPlay.ConeStackRecognitionPath, RealSenseReturn> internalErrors = new LinkedHashMap<>();
+            for (RobotConstantsPowerPlay.ConeStackRecognitionPath path : pConeStackRecognitionPaths)
+                internalErrors.put(path, new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR));
+            return new EnsembleReturn<>(internalErrors);
+        }
+
+        try (FrameContext frameContext = new FrameContext(frame)) {
+            PreparedFrame prepared = prepareFrame(frameContext, pD405Configuration, pCameraId, pImageParameters,
+                    pConeStackParameters, pIncludeDepthProcessing);
+            return RecognitionEnsemble.getShared().run(pConeStackRecognitionPaths,
+                    path -> recognizePath(frameContext, prepared, prepared.outputFilenamePreamble + "_" + path,
+                            pD405Configuration, pCameraId, pConeStackParameters, path));
+        } finally {
+            frame.release();
+        }
+    }
+
+    // The images and depth that all of the recognition paths start from.
+    private static class PreparedFrame {
+        private final String outputFilenamePreamble;
+        private final VisionParameters.ImageParameters imageParameters; // at the resolution of the frame
+        private final Mat imageROI;
+        private final DepthFrame depthFrame; // null without depth processing
+        private final Mat depthImageROI; // null without depth processing
+
+        private PreparedFrame(String pOutputFilenamePreamble, VisionParameters.ImageParameters pImageParameters,
+                              Mat pImageROI, DepthFrame pDepthFrame, Mat pDepthImageROI) {
+            outputFilenamePreamble = pOutputFilenamePreamble;
+            imageParameters = pImageParameters;
+            imageROI = pImageROI;
+            depthFrame = pDepthFrame;
+            depthImageROI = pDepthImageROI;
+        }
+    }
+
+    private PreparedFrame prepareFrame(FrameContext pFrameContext,
+                                       D405Configuration pD405Configuration,
+                                       RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                       VisionParameters.ImageParameters pImageParameters,
+                                       ConeStackParameters pConeStackParameters,
+                                       boolean pIncludeDepthProcessing) throws IOException {
+        ImageFrame frame = pFrameContext.getFrame();
 
         // The image may be RGB (from a camera) or BGR (OpenCV imread from a file).
         // OpenCV wants BGR; the possible conversion is taken care of in ImageUtils.preProcessImage.
-        Mat imgOriginal = coneStackImage.first.clone();
-        String fileDate = TimeStamp.getLocalDateTimeStamp(coneStackImage.second);
+        // The image is not copied: the recognition paths only read the ROI
+        // and draw on copies of it. The ROI, the depth-filtered ROI and
+        // their conversions belong to the frame context.
+        String fileDate = TimeStamp.getLocalDateTimeStamp(frame.timestamp);
         String outputFilenamePreamble = ImageUtils.createOutputFilePreamble(pImageParameters.image_source, workingDirectory, fileDate);
-        Mat imageROI = ImageUtils.preProcessImage(pImageProvider, imgOriginal, outputFilenamePreamble, pImageParameters);
+
+        // The ROI and the depth lookups at the resolution of the frame.
+        VisionParameters.ImageParameters imageParameters = pImageParameters.forFrame(frame);
+        Mat imageROI = pFrameContext.getImageROI(outputFilenamePreamble, imageParameters);
 
         // Subject the ROI to depth filtering on all paths un less we're experimenting
         // with image recognition only.
-        short[] depthArray;
-        Mat depthImageROI;
-        if (pIncludeDepthProcessing) {
-            depthArray = RealSenseUtils.getDepthArrayFromFile(pImageParameters);
-            depthImageROI = RealSenseUtils.removeBackground(imageROI, pImageParameters,
-                    pD405Configuration, depthArray,
-                    pConeStackParameters.depthParameters.minDepth,
-                    pConeStackParameters.depthParameters.maxDepth);
-
-            Imgcodecs.imwrite(outputFilenamePreamble + "_ROI_RANGE.png", depthImageROI);
-            RobotLogCommon.d(TAG, "Writing " + outputFilenamePreamble + "_ROI_RANGE.png");
-        }
-        else {
-            depthArray = null;
-            depthImageROI = null;
-        }
+        if (!pIncludeDepthProcessing)
+            return new PreparedFrame(outputFilenamePreamble, imageParameters, imageROI, null, null);
+
+        DepthFrame depthFrame = DepthFrame.fromFile(imageParameters, pD405Configuration, pCameraId);
+        Mat depthImageROI = pFrameContext.getDepthImageROI(imageROI, imageParameters, depthFrame,
+                pConeStackParameters.depthParameters.minDepth,
+                pConeStackParameters.depthParameters.maxDepth);
+
+        Diagnostics.writeImage(Diagnostics.Level.SUMMARY, outputFilenamePreamble + "_ROI_RANGE.png", depthImageROI);
+        return new PreparedFrame(outputFilenamePreamble, imageParameters, imageROI, depthFrame, depthImageROI);
+    }
 
-        RobotLogCommon.d(TAG, "Recognition path " + pConeStackRecognitionPath);
+    private RealSenseReturn recognizePath(FrameContext pFrameContext, PreparedFrame pPrepared,
+                                          String pOutputFilenamePreamble,
+                                          D405Configuration pD405Configuration,
+                                          RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                          ConeStackParameters pConeStackParameters,
+                                          RobotConstantsPowerPlay.ConeStackRecognitionPath pConeStackRecognitionPath) {
+        VisionLog.d(TAG, "Recognition path {}", pConeStackRecognitionPath);
         switch (pConeStackRecognitionPath) {
             case RED_CHANNEL_GRAYSCALE -> {
                 //## Use the depth image ROI for grayscale recognition.
-                return realSenseRecognition.redChannelPath(depthImageROI,
+                return realSenseRecognition.redChannelPath(pFrameContext, pPrepared.depthImageROI,
                         pD405Configuration, pCameraId,
-                        depthArray, RobotConstantsPowerPlay.WIDTH_OF_CONE_STACK,
-                        outputFilenamePreamble,
-                pImageParameters, pConeStackParameters.redGrayscaleParameters, pConeStackParameters.depthParameters);
+                        pPrepared.depthFrame, RobotConstantsPowerPlay.WIDTH_OF_CONE_STACK,
+                        pOutputFilenamePreamble,
+                pPrepared.imageParameters, pConeStackParameters.redGrayscaleParameters, pConeStackParameters.depthParameters, pConeStackParameters.pyramidScale);
             }
             case BLUE_CHANNEL_GRAYSCALE -> {
                 //**TODO *experimental*.
-                return realSenseRecognition.blueChannelPath(imageROI, depthImageROI,
+                return realSenseRecognition.blueChannelPath(pFrameContext, pPrepared.imageROI, pPrepared.depthImageROI,
                         pD405Configuration, pCameraId,
-                        depthArray, RobotConstantsPowerPlay.WIDTH_OF_CONE_STACK,
-                        outputFilenamePreamble,
-                        pImageParameters, pConeStackParameters.blueHSVParameters, pConeStackParameters.blueGrayscaleParameters,
+                        pPrepared.depthFrame, RobotConstantsPowerPlay.WIDTH_OF_CONE_STACK,
+                        pOutputFilenamePreamble,
+                        pPrepared.imageParameters, pConeStackParameters.blueHSVParameters, pConeStackParameters.blueGrayscaleParameters,
                         pConeStackParameters.depthParameters);
             }
             case COLOR -> {
@@ -106,11 +191,26 @@ public class ConeStackRecognition {
                 else
                     return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR); // don't crash
 
-                return realSenseRecognition.colorPath(imageROI,
+                return realSenseRecognition.colorPath(pFrameContext, pPrepared.imageROI,
+                        pD405Configuration, pCameraId,
+                        pPrepared.depthFrame, RobotConstantsPowerPlay.WIDTH_OF_CONE_STACK,
+                        pOutputFilenamePreamble,
+                pPrepared.imageParameters, hsvParameters, pConeStackParameters.depthParameters, pConeStackParameters.pyramidScale);
+            }
+            case DEPTH -> {
+                if (pPrepared.depthFrame == null) {
+                    VisionLog.d(TAG, "The depth path needs depth processing");
+                    return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR); // don't crash
+                }
+
+                Mat depthMask = pFrameContext.getDepthMask(pPrepared.imageParameters, pPrepared.depthFrame,
+                        pConeStackParameters.depthParameters.minDepth,
+                        pConeStackParameters.depthParameters.maxDepth);
+                return realSenseRecognition.depthPath(pPrepared.imageROI, depthMask,
                         pD405Configuration, pCameraId,
-                        depthArray, RobotConstantsPowerPlay.WIDTH_OF_CONE_STACK,
-                        outputFilenamePreamble,
-                pImageParameters, hsvParameters, pConeStackParameters.depthParameters);
+                        pPrepared.depthFrame, RobotConstantsPowerPlay.WIDTH_OF_CONE_STACK,
+                        pOutputFilenamePreamble,
+                        pPrepared.imageParameters, pConeStackParameters.depthParameters);
             }
             default -> throw new AutonomousRobotException(TAG, "Unrecognized recognition path");
         }
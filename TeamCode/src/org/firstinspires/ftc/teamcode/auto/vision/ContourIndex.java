@@ -0,0 +1,143 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
+
+import java.util.List;
+
+// The metrics of a list of contours (the output of findContours), computed
+// once per contour and kept in primitive arrays: area, bounding rectangle,
+// and centroid. Queries for the largest contour, the k largest contours,
+// and the contour nearest to a point make no further native calls and do
+// not sort the list.
+//
+// The area is the zeroth moment, which is what Imgproc.contourArea returns
+// for a contour, so a single call to Imgproc.moments yields both the area
+// and the centroid. A contour with an area of 0 has no centroid; its
+// centroid coordinates are NaN and it is never the nearest to a point.
+public class ContourIndex {
+
+    private final List<MatOfPoint> contours;
+    private final double[] area;
+    private final double[] centroidX;
+    private final double[] centroidY;
+    private final int[] rectX;
+    private final int[] rectY;
+    private final int[] rectWidth;
+    private final int[] rectHeight;
+
+    public ContourIndex(List<MatOfPoint> pContours) {
+        contours = pContours;
+        int count = pContours.size();
+        area = new double[count];
+        centroidX = new double[count];
+        centroidY = new double[count];
+        rectX = new int[count];
+        rectY = new int[count];
+        rectWidth = new int[count];
+        rectHeight = new int[count];
+
+        Moments moments;
+        Rect boundingRect;
+        for (int i = 0; i < count; i++) {
+            MatOfPoint contour = pContours.get(i);
+            moments = Imgproc.moments(contour);
+            area[i] = Math.abs(moments.get_m00());
+            centroidX[i] = moments.get_m10() / moments.get_m00();
+            centroidY[i] = moments.get_m01() / moments.get_m00();
+
+            boundingRect = Imgproc.boundingRect(contour);
+            rectX[i] = boundingRect.x;
+            rectY[i] = boundingRect.y;
+            rectWidth[i] = boundingRect.width;
+            rectHeight[i] = boundingRect.height;
+        }
+    }
+
+    public int size() {
+        return area.length;
+    }
+
+    public MatOfPoint getContour(int pIndex) {
+        return contours.get(pIndex);
+    }
+
+    public double getArea(int pIndex) {
+        return area[pIndex];
+    }
+
+    public Rect getBoundingRect(int pIndex) {
+        return new Rect(rectX[pIndex], rectY[pIndex], rectWidth[pIndex], rectHeight[pIndex]);
+    }
+
+    public Point getCentroid(int pIndex) {
+        return new Point(centroidX[pIndex], centroidY[pIndex]);
+    }
+
+    // Returns the index of the contour with the largest area or -1 if
+    // there are no contours.
+    public int largest() {
+        int largestIndex = -1;
+        double largestArea = -1.0;
+        for (int i = 0; i < area.length; i++) {
+            if (area[i] > largestArea) {
+                largestArea = area[i];
+                largestIndex = i;
+            }
+        }
+
+        return largestIndex;
+    }
+
+    // Returns the indexes of the pK contours with the largest areas in
+    // descending order of area; fewer than pK if there are fewer contours.
+    // Each contour is inserted into a running list of the pK largest, so
+    // for the small values of pK used here this is linear in the number
+    // of contours.
+    public int[] topK(int pK) {
+        int k = Math.min(pK, area.length);
+        if (k <= 0)
+            return new int[0];
+
+        int[] top = new int[k];
+        int filled = 0;
+        for (int i = 0; i < area.length; i++) {
+            if (filled == k && area[i] <= area[top[k - 1]])
+                continue;
+
+            // Shift the smaller entries down and insert.
+            int position = filled < k ? filled++ : k - 1;
+            while (position > 0 && area[top[position - 1]] < area[i]) {
+                top[position] = top[position - 1];
+                position--;
+            }
+            top[position] = i;
+        }
+
+        return top;
+    }
+
+    // Returns the index of the contour whose centroid is nearest to the
+    // point (pX, pY) and less than pMaxDistance away from it, or -1 if
+    // there is none.
+    public int nearestTo(double pX, double pY, double pMaxDistance) {
+        int nearestIndex = -1;
+        double nearestDistanceSquared = pMaxDistance * pMaxDistance;
+        double dx, dy, distanceSquared;
+        for (int i = 0; i < area.length; i++) {
+            dx = centroidX[i] - pX;
+            dy = centroidY[i] - pY;
+            distanceSquared = (dx * dx) + (dy * dy);
+            if (distanceSquared < nearestDistanceSquared) { // false for NaN
+                nearestDistanceSquared = distanceSquared;
+                nearestIndex = i;
+            }
+        }
+
+        return nearestIndex;
+    }
+
+}
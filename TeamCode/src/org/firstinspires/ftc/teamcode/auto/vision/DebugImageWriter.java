@@ -0,0 +1,243 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Sink for the debugging images (_ROI, _ADJ, _ADJ_THR, _CON, etc.) that
+// the recognizers write out. The caller's Mat is copied into a Mat leased
+// from the MatPool and queued; a background thread encodes and writes it.
+// This keeps PNG compression and disk i/o off the recognition path.
+//
+// The queue is bounded. If the writer falls behind, the oldest queued
+// image is dropped to make room for the newest one, so a recognizer
+// never blocks on the disk.
+//
+// The output format is configurable: PNG with a selectable compression
+// level (0 = none, 9 = maximum), BMP (uncompressed), or RAW. A RAW file
+// is a 12-byte little-endian header of rows, cols, and OpenCV type,
+// followed by the pixel bytes in row order. The filenames passed in by
+// the recognizers always end in .png; for BMP and RAW the extension is
+// replaced.
+public class DebugImageWriter {
+
+    private static final String TAG = DebugImageWriter.class.getSimpleName();
+
+    public enum Format {PNG, BMP, RAW}
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+    public static final int DEFAULT_PNG_COMPRESSION = 1; // the OpenCV default
+
+    private static DebugImageWriter sharedWriter;
+
+    private final Format format;
+    private final MatOfInt pngParameters;
+    private final ArrayBlockingQueue<DebugImage> queue;
+    private final Thread writerThread;
+
+    // Pending counts images that have been submitted but not yet written
+    // or dropped; flush() waits for it to reach zero.
+    private final Object pendingLock = new Object();
+    private int pending;
+    private long written;
+    private long dropped;
+    private long failed;
+
+    private static class DebugImage {
+        private final String filename;
+        private final Mat image;
+
+        private DebugImage(String pFilename, Mat pImage) {
+            filename = pFilename;
+            image = pImage;
+        }
+    }
+
+    public DebugImageWriter(Format pFormat, int pPNGCompression, int pQueueCapacity) {
+        format = pFormat;
+        pngParameters = new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, Math.max(0, Math.min(pPNGCompression, 9)));
+        queue = new ArrayBlockingQueue<>(pQueueCapacity);
+
+        writerThread = new Thread(this::writeLoop, TAG);
+        writerThread.setDaemon(true); // don't hold up the exit of the application
+        writerThread.start();
+
+        RobotLogCommon.d(TAG, "Debug image format " + format + ", PNG compression " + pPNGCompression +
+                ", queue capacity " + pQueueCapacity);
+    }
+
+    // Replace the shared writer; any images queued on the previous writer
+    // are written out first.
+    public static synchronized void configure(Format pFormat, int pPNGCompression, int pQueueCapacity) throws InterruptedException {
+        if (sharedWriter != null)
+            sharedWriter.shutdown();
+        sharedWriter = new DebugImageWriter(pFormat, pPNGCompression, pQueueCapacity);
+    }
+
+    public static synchronized DebugImageWriter getShared() {
+        if (sharedWriter == null)
+            sharedWriter = new DebugImageWriter(Format.PNG, DEFAULT_PNG_COMPRESSION, DEFAULT_QUEUE_CAPACITY);
+        return sharedWriter;
+    }
+
+    // Write out everything queued on the shared writer and stop it. A
+    // later call to write() starts a new shared writer with the defaults.
+    public static synchronized void shutdownShared() throws InterruptedException {
+        if (sharedWriter != null) {
+            sharedWriter.shutdown();
+            sharedWriter = null;
+        }
+    }
+
+    // Drop-in replacement for Imgcodecs.imwrite.
+    public static void write(String pFilename, Mat pImage) {
+        getShared().submit(pFilename, pImage);
+    }
+
+    // Queue a copy of pImage for writing. The caller keeps ownership of
+    // pImage and may modify or release it as soon as this returns.
+    public void submit(String pFilename, Mat pImage) {
+        if (pImage == null || pImage.empty()) {
+            RobotLogCommon.d(TAG, "Empty image not written: " + pFilename);
+            return;
+        }
+
+        Mat copy = MatPool.getShared().leaseLike(pImage);
+        pImage.copyTo(copy);
+        submitOwned(pFilename, copy);
+    }
+
+    // Queue pImage for writing without copying it. The writer takes
+    // ownership: the caller must not touch pImage again, and the writer
+    // releases it to the MatPool once it has been written.
+    public void submitOwned(String pFilename, Mat pImage) {
+        if (pImage == null || pImage.empty()) {
+            RobotLogCommon.d(TAG, "Empty image not written: " + pFilename);
+            return;
+        }
+
+        DebugImage debugImage = new DebugImage(pFilename, pImage);
+        synchronized (pendingLock) {
+            pending++;
+        }
+
+        // Drop-oldest: make room by discarding the head of the queue.
+        while (!queue.offer(debugImage)) {
+            DebugImage oldest = queue.poll();
+            if (oldest != null) {
+                RobotLogCommon.d(TAG, "Queue full; dropped " + oldest.filename);
+                MatPool.getShared().release(oldest.image);
+                synchronized (pendingLock) {
+                    dropped++;
+                    pending--;
+                    pendingLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Wait until every image submitted so far has been written (or dropped).
+    public void flush() throws InterruptedException {
+        synchronized (pendingLock) {
+            while (pending > 0)
+                pendingLock.wait();
+        }
+    }
+
+    // Write out everything in the queue and stop the background thread.
+    public void shutdown() throws InterruptedException {
+        flush();
+        writerThread.interrupt();
+        writerThread.join();
+        RobotLogCommon.d(TAG, getStatistics());
+    }
+
+    public String getStatistics() {
+        synchronized (pendingLock) {
+            return TAG + " written " + written + ", dropped " + dropped + ", failed " + failed + ", pending " + pending;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            DebugImage debugImage;
+            try {
+                debugImage = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            boolean success = false;
+            try {
+                success = writeImage(debugImage.filename, debugImage.image);
+            } catch (Exception ex) {
+                RobotLogCommon.e(TAG, "Exception writing " + debugImage.filename + ": " + ex.getMessage());
+            } finally {
+                MatPool.getShared().release(debugImage.image);
+                synchronized (pendingLock) {
+                    if (success)
+                        written++;
+                    else
+                        failed++;
+                    pending--;
+                    pendingLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean writeImage(String pFilename, Mat pImage) throws IOException {
+        switch (format) {
+            case PNG -> {
+                return Imgcodecs.imwrite(pFilename, pImage, pngParameters);
+            }
+            case BMP -> {
+                return Imgcodecs.imwrite(replaceExtension(pFilename, ".bmp"), pImage);
+            }
+            case RAW -> {
+                // Only 8-bit images can be fetched as bytes; fall back to
+                // PNG for anything else.
+                if (pImage.depth() != CvType.CV_8U)
+                    return Imgcodecs.imwrite(pFilename, pImage, pngParameters);
+
+                writeRaw(replaceExtension(pFilename, ".raw"), pImage);
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    private static void writeRaw(String pFilename, Mat pImage) throws IOException {
+        byte[] pixels = MatPool.getShared().leaseBytes((int) (pImage.total() * pImage.elemSize()));
+        try (FileChannel channel = new FileOutputStream(pFilename).getChannel()) {
+            pImage.get(0, 0, pixels);
+
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(pImage.rows()).putInt(pImage.cols()).putInt(pImage.type()).flip();
+            channel.write(header);
+
+            ByteBuffer body = ByteBuffer.wrap(pixels);
+            while (body.hasRemaining())
+                channel.write(body);
+        } finally {
+            MatPool.getShared().releaseBytes(pixels);
+        }
+    }
+
+    private static String replaceExtension(String pFilename, String pExtension) {
+        int dot = pFilename.lastIndexOf('.');
+        return (dot == -1 ? pFilename : pFilename.substring(0, dot)) + pExtension;
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A byte-bounded, least-recently-used cache of decoded image files keyed
+// by the real path of the file, its size and its modification time, so
+// that an image that is recognized repeatedly, as in a parameter sweep or
+// a regression run, is decoded only once. A file that has been rewritten
+// since it was cached has a new key and is decoded again; the stale entry
+// ages out.
+//
+// A hit is handed out as a read-only ImageFrame (see getFrame) that
+// shares the cached Mat. Each cached image is itself held as a frame with
+// one reference belonging to the cache, and every frame handed out holds
+// another, so an image that is evicted while a recognizer is still
+// reading it is released only when the recognizer releases its frame.
+public class DecodedImageCache {
+
+    private static final String TAG = DecodedImageCache.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+    private static final DecodedImageCache sharedCache = new DecodedImageCache(DEFAULT_MAX_BYTES);
+
+    private static class CachedImage {
+        private final ImageFrame frame;
+        private final long bytes;
+
+        private CachedImage(ImageFrame pFrame, long pBytes) {
+            frame = pFrame;
+            bytes = pBytes;
+        }
+    }
+
+    private final long maxBytes;
+    private final Map<String, CachedImage> images = new LinkedHashMap<>(16, 0.75f, true); // access order
+
+    private long residentBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public DecodedImageCache(long pMaxBytes) {
+        maxBytes = pMaxBytes;
+    }
+
+    // The cache shared by all of the FileImage providers.
+    public static DecodedImageCache getShared() {
+        return sharedCache;
+    }
+
+    // A read-only BGR frame of the image in pImageFilename with the
+    // current time as its timestamp, as for a newly decoded file, or null
+    // if the file does not exist or cannot be decoded. The caller releases
+    // the frame when it is done with it.
+    public ImageFrame getFrame(String pImageFilename) {
+        String key;
+        try {
+            Path imagePath = Paths.get(pImageFilename).toRealPath();
+            BasicFileAttributes attributes = Files.readAttributes(imagePath, BasicFileAttributes.class);
+            key = imagePath + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+        } catch (IOException iox) {
+            VisionLog.d(TAG, "Could not find the image {}", pImageFilename);
+            return null; // let the caller decide what to do
+        }
+
+        synchronized (this) {
+            CachedImage cached = images.get(key);
+            if (cached != null) {
+                hits++;
+                return share(cached);
+            }
+            misses++;
+        }
+
+        // Decode outside the lock; if two threads miss on the same image at
+        // the same time both decode it and the second uses the first's.
+        Mat image = ImageUtils.loadImage(pImageFilename);
+        if (image == null)
+            return null;
+
+        long bytes = image.total() * image.elemSize();
+        CachedImage decoded = new CachedImage(new ImageFrame(image, LocalDateTime.now(), ImageProvider.ImageFormat.BGR, Mat::release), bytes);
+        synchronized (this) {
+            CachedImage cached = images.get(key);
+            if (cached == null) {
+                if (bytes > maxBytes)
+                    return decoded.frame; // too big to keep; the caller has the only reference
+
+                images.put(key, decoded);
+                residentBytes += bytes;
+                evict();
+                return share(decoded);
+            }
+
+            decoded.frame.release();
+            return share(cached);
+        }
+    }
+
+    public synchronized void clear() {
+        for (CachedImage cached : images.values())
+            cached.frame.release();
+        images.clear();
+        residentBytes = 0;
+    }
+
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public synchronized String getStatistics() {
+        return TAG + " hits " + hits + ", misses " + misses +
+                ", hit ratio " + String.format("%.3f", getHitRatio()) +
+                ", images " + images.size() + ", resident bytes " + residentBytes +
+                " of " + maxBytes + ", evictions " + evictions;
+    }
+
+    // A new frame on the cached image that holds a reference to the cached
+    // frame until it is released. Must be called with the lock held so
+    // that the image cannot be evicted in between.
+    private ImageFrame share(CachedImage pCached) {
+        ImageFrame cachedFrame = pCached.frame.retain();
+        return new ImageFrame(cachedFrame.getImage(), LocalDateTime.now(), ImageProvider.ImageFormat.BGR,
+                image -> cachedFrame.release());
+    }
+
+    // Evict the least recently used images until the resident bytes are
+    // within the bound. Must be called with the lock held.
+    private void evict() {
+        Iterator<CachedImage> eldest = images.values().iterator();
+        while (residentBytes > maxBytes && eldest.hasNext()) {
+            CachedImage cached = eldest.next();
+            eldest.remove();
+            residentBytes -= cached.bytes;
+            evictions++;
+            cached.frame.release();
+        }
+    }
+
+}
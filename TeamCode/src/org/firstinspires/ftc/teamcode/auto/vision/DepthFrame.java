@@ -0,0 +1,105 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+// One frame of depth data from a D405 camera: the raw 16-bit depth value
+// of every pixel in the full image in row order, together with the
+// resolution, the depth scale (meters per raw unit) and the camera that
+// produced it. A frame read from a .tdepth file may hold only the depth
+// values around the image ROI; the rest are 0 (no depth). Immutable, and
+// so may be shared by any number of recognizers and threads; see
+// DepthFrameCache.
+public class DepthFrame {
+
+    private static final String TAG = DepthFrame.class.getSimpleName();
+
+    public final int width;
+    public final int height;
+    public final float depthScale;
+    public final RobotConstantsPowerPlay.D405CameraId cameraId;
+    public final DepthScaleTable scaleTable; // for depthScale
+
+    private final ByteBuffer depthBytes; // little-endian
+    private final ShortBuffer depth; // read-only; only absolute gets
+    private Mat depthMat; // created on first use
+
+    // pDepthBytes holds the 16-bit depth values in little-endian order,
+    // as in a .depth file.
+    public DepthFrame(ByteBuffer pDepthBytes, int pWidth, int pHeight, float pDepthScale,
+                      RobotConstantsPowerPlay.D405CameraId pCameraId) {
+        if (pDepthBytes.remaining() != pWidth * pHeight * 2)
+            throw new AutonomousRobotException(TAG, "Depth data has " + pDepthBytes.remaining() +
+                    " bytes, expected " + (pWidth * pHeight * 2) + " for resolution " + pWidth + "x" + pHeight);
+
+        depthBytes = pDepthBytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+        depth = depthBytes.asShortBuffer().asReadOnlyBuffer();
+        width = pWidth;
+        height = pHeight;
+        depthScale = pDepthScale;
+        cameraId = pCameraId;
+        scaleTable = DepthScaleTable.forScale(pDepthScale);
+    }
+
+    // Returns the depth frame for the depth file that corresponds to the
+    // image source in pImageParameters, from the shared cache if it has
+    // already been read. If the depth file is a .tdepth file only the
+    // depth values in the image ROI are read (see TiledDepthFile).
+    public static DepthFrame fromFile(VisionParameters.ImageParameters pImageParameters,
+                                      D405Configuration pD405Configuration,
+                                      RobotConstantsPowerPlay.D405CameraId pCameraId) throws IOException {
+        return DepthFrameCache.getShared().get(RealSenseUtils.findDepthFilename(pImageParameters.image_source),
+                pImageParameters.image_roi, pImageParameters.resolution_width, pImageParameters.resolution_height,
+                pD405Configuration.depthScale, pCameraId);
+    }
+
+    // The raw (unsigned) depth value at a pixel in the full image.
+    public int getRaw(int pX, int pY) {
+        return depth.get((pY * width) + pX) & 0xFFFF;
+    }
+
+    // The raw (unsigned) depth value at a row-order index into the full
+    // image.
+    public int getRaw(int pIndex) {
+        return depth.get(pIndex) & 0xFFFF;
+    }
+
+    // The depth in meters at a row-order index into the full image.
+    public float getMeters(int pIndex) {
+        return scaleTable.toMeters(depth.get(pIndex) & 0xFFFF);
+    }
+
+    // A read-only view of the depth values with its own position and
+    // limit.
+    public ShortBuffer getBuffer() {
+        return depth.duplicate();
+    }
+
+    // The depth values as a CV_16UC1 Mat of the full image for use with
+    // OpenCV functions. The Mat is shared and must not be modified or
+    // released. Where the depth data is in a direct buffer and the
+    // platform is little-endian (as are x86 and ARM) the Mat refers to the
+    // data in place; otherwise the values are copied once.
+    public synchronized Mat getMat() {
+        if (depthMat == null) {
+            if (depthBytes.isDirect() && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+                depthMat = new Mat(height, width, CvType.CV_16UC1, depthBytes);
+            else {
+                short[] values = new short[width * height];
+                depth.get(0, values);
+                depthMat = new Mat(height, width, CvType.CV_16UC1);
+                depthMat.put(0, 0, values);
+            }
+        }
+
+        return depthMat;
+    }
+
+}
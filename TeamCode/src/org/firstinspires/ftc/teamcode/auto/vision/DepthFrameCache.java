@@ -0,0 +1,123 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
+import org.opencv.core.Rect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A size-bounded, least-recently-used cache of DepthFrames keyed by the
+// depth file and its modification time, so that a frame that is fed to
+// several recognizers, or to the same recognizer repeatedly as in a
+// parameter sweep, is mapped only once. A file that has been rewritten
+// since it was cached has a new modification time and is read again; the
+// stale entry ages out.
+//
+// The frames of .depth and .cbundle files are memory-mapped (see
+// RealSenseUtils.getDepthBufferFromFile) so the cache holds no depth data
+// on the heap for them; the bound limits the number of open mappings. The
+// frames of .tdepth files (see TiledDepthFile) are decoded only around the
+// requested region, so for them the region is part of the key.
+public class DepthFrameCache {
+
+    private static final String TAG = DepthFrameCache.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_FRAMES = 16;
+
+    private static final DepthFrameCache sharedCache = new DepthFrameCache(DEFAULT_MAX_FRAMES);
+
+    private final Map<String, DepthFrame> frames;
+
+    private long hits;
+    private long misses;
+
+    public DepthFrameCache(int pMaxFrames) {
+        // An access-ordered LinkedHashMap evicts the least recently used
+        // entry once the bound is reached.
+        frames = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DepthFrame> pEldest) {
+                return size() > pMaxFrames;
+            }
+        };
+    }
+
+    // The cache shared by all of the recognizers.
+    public static DepthFrameCache getShared() {
+        return sharedCache;
+    }
+
+    public DepthFrame get(String pDepthFilename, int pWidth, int pHeight, float pDepthScale,
+                          RobotConstantsPowerPlay.D405CameraId pCameraId) throws IOException {
+        return get(pDepthFilename, null, pWidth, pHeight, pDepthScale, pCameraId);
+    }
+
+    // pDepthFilename is a .depth, a .tdepth or a .cbundle file. pRegion,
+    // which may be null for the full image, applies only to a .tdepth
+    // file.
+    public DepthFrame get(String pDepthFilename, Rect pRegion, int pWidth, int pHeight, float pDepthScale,
+                          RobotConstantsPowerPlay.D405CameraId pCameraId) throws IOException {
+        Path depthPath = Paths.get(pDepthFilename).toAbsolutePath().normalize();
+        boolean tiled = pDepthFilename.endsWith(TiledDepthFile.EXTENSION);
+        String key = depthPath + "|" + Files.getLastModifiedTime(depthPath).toMillis() + "|" +
+                pWidth + "x" + pHeight + "|" + pDepthScale + "|" + pCameraId +
+                (tiled && pRegion != null ? "|" + pRegion : "");
+
+        synchronized (this) {
+            DepthFrame frame = frames.get(key);
+            if (frame != null) {
+                hits++;
+                return frame;
+            }
+            misses++;
+        }
+
+        // Read the file outside the lock; if two threads miss on the same
+        // frame at the same time both read it and the second replaces the
+        // first, which is harmless.
+        ByteBuffer depthBytes;
+        if (tiled)
+            depthBytes = TiledDepthFile.readRegion(depthPath.toString(), pWidth, pHeight, pRegion);
+        else if (pDepthFilename.endsWith(CaptureBundle.EXTENSION))
+            depthBytes = getBundleDepthBytes(depthPath.toString(), pWidth, pHeight);
+        else
+            depthBytes = RealSenseUtils.mapDepthBytes(depthPath.toString(), pWidth, pHeight);
+        DepthFrame frame = new DepthFrame(depthBytes, pWidth, pHeight, pDepthScale, pCameraId);
+
+        synchronized (this) {
+            frames.put(key, frame);
+        }
+
+        return frame;
+    }
+
+    private static ByteBuffer getBundleDepthBytes(String pBundleFilename, int pWidth, int pHeight) throws IOException {
+        long startNanos = System.nanoTime();
+        CaptureBundle bundle = CaptureBundle.open(pBundleFilename);
+        if (bundle.width != pWidth || bundle.height != pHeight)
+            throw new AutonomousRobotException(TAG, "Capture bundle " + pBundleFilename + " has resolution " +
+                    bundle.width + "x" + bundle.height + ", expected " + pWidth + "x" + pHeight);
+
+        ByteBuffer depthBytes = bundle.getDepthBytes();
+        StageTimings.record(StageTimings.Stage.DEPTH_READ, startNanos);
+        return depthBytes;
+    }
+
+    public synchronized void clear() {
+        frames.clear();
+    }
+
+    public synchronized String getStatistics() {
+        long lookups = hits + misses;
+        return TAG + " hits " + hits + ", misses " + misses +
+                ", hit ratio " + String.format("%.3f", lookups == 0 ? 0.0 : (double) hits / lookups) +
+                ", frames " + frames.size();
+    }
+
+}
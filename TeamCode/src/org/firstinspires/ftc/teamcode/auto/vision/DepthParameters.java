@@ -1,6 +1,14 @@
 package org.firstinspires.ftc.teamcode.auto.vision;
 
 public class DepthParameters {
+
+    // How the depth and location of the nearest in-range pixels are
+    // combined into the single target pixel; see NearestDepthPixels.
+    public enum Aggregation {MEAN, MEDIAN, TRIMMED_MEAN}
+
+    public static final int DEFAULT_NEAREST_PIXELS = 50;
+    public static final double DEFAULT_TRIM_PERCENT = 10.0;
+
     // These depth values are given as percentages of the size of the
     // bounding rectangle which encloses the contour of an object.
     public final double depthWindowOffsetX;
@@ -11,6 +19,10 @@ public class DepthParameters {
     public final float minDepth;
     public final float maxDepth;
 
+    public final int nearestPixels; // the number of nearest pixels to aggregate
+    public final Aggregation aggregation;
+    public final double trimPercent; // from each end, for TRIMMED_MEAN
+
     //## Note: the parameter pDepthWindowOffsetX is determined as follows:
     // From the x-coordinate of the center of the bounding box subtract this
     // number, which is given as a percentage of the width of the bounding
@@ -18,11 +30,22 @@ public class DepthParameters {
     public DepthParameters(double pDepthWindowOffsetX, double pDepthWindowOffsetY,
                            double pDepthWindowHeight,
                            float pMinDepth, float pMaxDepth) {
+        this(pDepthWindowOffsetX, pDepthWindowOffsetY, pDepthWindowHeight, pMinDepth, pMaxDepth,
+                DEFAULT_NEAREST_PIXELS, Aggregation.MEAN, DEFAULT_TRIM_PERCENT);
+    }
+
+    public DepthParameters(double pDepthWindowOffsetX, double pDepthWindowOffsetY,
+                           double pDepthWindowHeight,
+                           float pMinDepth, float pMaxDepth,
+                           int pNearestPixels, Aggregation pAggregation, double pTrimPercent) {
         depthWindowOffsetX = pDepthWindowOffsetX;
         depthWindowOffsetY = pDepthWindowOffsetY;
         depthWindowWidth = pDepthWindowOffsetX * 2;
         depthWindowHeight = pDepthWindowHeight;
         minDepth = pMinDepth;
         maxDepth = pMaxDepth;
+        nearestPixels = pNearestPixels;
+        aggregation = pAggregation;
+        trimPercent = pTrimPercent;
     }
 }
@@ -0,0 +1,78 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The distance in meters of every possible raw 16-bit depth value for one
+// depth scale, computed once and shared. The depth pipeline works in raw
+// units: distance thresholds are converted to raw bounds once per call
+// with the methods here, the per-pixel comparisons and sums are on
+// unsigned integers, and only the final results are converted to meters
+// (or inches). The table is for those places where a per-pixel distance
+// is unavoidable.
+//
+// Each entry is raw * scale in float arithmetic, which is how the
+// distances have always been computed, so the raw bounds select exactly
+// the same pixels as a comparison of the scaled values.
+public class DepthScaleTable {
+
+    public static final int RAW_VALUES = 65536;
+
+    private static final Map<Float, DepthScaleTable> tables = new ConcurrentHashMap<>();
+
+    public final float depthScale;
+    private final float[] meters = new float[RAW_VALUES];
+
+    private DepthScaleTable(float pDepthScale) {
+        depthScale = pDepthScale;
+        for (int raw = 0; raw < RAW_VALUES; raw++)
+            meters[raw] = raw * pDepthScale;
+    }
+
+    // The shared table for a depth scale, e.g. D405Configuration.depthScale.
+    public static DepthScaleTable forScale(float pDepthScale) {
+        return tables.computeIfAbsent(pDepthScale, DepthScaleTable::new);
+    }
+
+    // pRaw is an unsigned 16-bit value.
+    public float toMeters(int pRaw) {
+        return meters[pRaw];
+    }
+
+    // The lowest raw value whose distance is greater than pMeters;
+    // RAW_VALUES if there is none.
+    public int lowestRawAbove(double pMeters) {
+        int low = 0;
+        int high = RAW_VALUES;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (meters[mid] > pMeters)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+
+    // The lowest raw value whose distance is at least pMeters; RAW_VALUES
+    // if there is none.
+    public int lowestRawAtOrAbove(double pMeters) {
+        int low = 0;
+        int high = RAW_VALUES;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (meters[mid] >= pMeters)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+
+    // The highest raw value whose distance is no greater than pMeters; -1
+    // if there is none.
+    public int highestRawAtOrBelow(double pMeters) {
+        return lowestRawAbove(pMeters) - 1;
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+import org.opencv.core.Mat;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Controls which debugging images a recognition writes out.
+//   NONE - no images at all.
+//   SUMMARY - the images the pipeline has already produced and that cost
+//     nothing extra to write: the ROI, the depth-filtered ROI, and the
+//     final thresholded image.
+//   FULL - every intermediate image plus the overlays (contours, bounding
+//     boxes, pixel search boxes) drawn on copies of the ROI.
+// Overlays are built lazily: the copy of the ROI and all of the drawing
+// happen only when the level is FULL, so at the lower levels a recognizer
+// pays no clone or draw cost.
+//
+// The level is per-thread so that recognitions running concurrently may
+// use different levels. It defaults to FULL.
+public class Diagnostics {
+
+    private static final String TAG = Diagnostics.class.getSimpleName();
+
+    public enum Level {NONE, SUMMARY, FULL}
+
+    private static final ThreadLocal<Level> level = ThreadLocal.withInitial(() -> Level.FULL);
+
+    public static void setLevel(Level pLevel) {
+        RobotLogCommon.d(TAG, "Diagnostics level " + pLevel);
+        level.set(pLevel);
+    }
+
+    public static Level getLevel() {
+        return level.get();
+    }
+
+    public static boolean isEnabled(Level pMinimumLevel) {
+        return pMinimumLevel != Level.NONE && level.get().compareTo(pMinimumLevel) >= 0;
+    }
+
+    // Write out an image that already exists, e.g. the thresholded
+    // output of a stage, if the current level is at least pMinimumLevel.
+    public static void writeImage(Level pMinimumLevel, String pFilename, Mat pImage) {
+        if (!isEnabled(pMinimumLevel))
+            return;
+
+        RobotLogCommon.d(TAG, "Writing " + pFilename);
+        DebugImageWriter.write(pFilename, pImage);
+    }
+
+    // Write out an image that exists only for debugging. The Supplier is
+    // not called unless the current level is at least pMinimumLevel; the
+    // Mat it returns belongs to the DebugImageWriter.
+    public static void writeImage(Level pMinimumLevel, String pFilename, Supplier<Mat> pImageSupplier) {
+        if (!isEnabled(pMinimumLevel))
+            return;
+
+        RobotLogCommon.d(TAG, "Writing " + pFilename);
+        DebugImageWriter.getShared().submitOwned(pFilename, pImageSupplier.get());
+    }
+
+    // Draw an overlay on a copy of pBase and write it out. Neither the
+    // copy nor the drawing is done unless the current level is FULL.
+    public static void writeOverlay(String pFilename, Mat pBase, Consumer<Mat> pDrawing) {
+        if (!isEnabled(Level.FULL))
+            return;
+
+        Mat overlay = MatPool.getShared().leaseLike(pBase);
+        pBase.copyTo(overlay);
+        pDrawing.accept(overlay);
+
+        RobotLogCommon.d(TAG, "Writing " + pFilename);
+        DebugImageWriter.getShared().submitOwned(pFilename, overlay);
+    }
+
+}
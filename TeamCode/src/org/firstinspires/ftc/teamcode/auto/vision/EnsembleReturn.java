@@ -0,0 +1,71 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.teamcode.common.RobotConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Holds the results of all of the recognition paths that were run on one
+// frame by a RecognitionEnsemble, in the order in which the paths were
+// configured, together with the combined decision.
+//
+// Only results that are successful and carry a measured angle and
+// distance take part (see isMeasured). The decision is the one of these
+// with the median distance from the camera, the nearer of the two middle
+// results if there is an even number of them, so that a path that has
+// locked onto some other object in the ROI cannot pull the decision
+// towards it. Results at the same distance are taken in the configured
+// order. If no path measured the object the decision is the result of the
+// first path, or RECOGNITION_UNSUCCESSFUL if that path claimed success
+// without a measurement.
+public class EnsembleReturn<P extends Enum<P>> {
+
+    public final Map<P, RealSenseReturn> pathResults; // unmodifiable
+    public final P decisionPath;
+    public final RealSenseReturn decision;
+
+    public EnsembleReturn(Map<P, RealSenseReturn> pPathResults) {
+        pathResults = Collections.unmodifiableMap(new LinkedHashMap<>(pPathResults));
+
+        List<Map.Entry<P, RealSenseReturn>> successful = new ArrayList<>();
+        for (Map.Entry<P, RealSenseReturn> pathResult : pathResults.entrySet())
+            if (isMeasured(pathResult.getValue()))
+                successful.add(pathResult);
+
+        Map.Entry<P, RealSenseReturn> chosen;
+        if (successful.isEmpty())
+            chosen = pathResults.entrySet().iterator().next();
+        else {
+            successful.sort(Comparator.comparingDouble(pathResult -> pathResult.getValue().distanceFromCamera)); // stable
+            chosen = successful.get((successful.size() - 1) / 2);
+        }
+
+        decisionPath = chosen.getKey();
+        if (successful.isEmpty() && chosen.getValue().recognitionResults == RobotConstants.RecognitionResults.RECOGNITION_SUCCESSFUL)
+            decision = new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL);
+        else
+            decision = chosen.getValue();
+    }
+
+    public int getSuccessfulPaths() {
+        int successful = 0;
+        for (RealSenseReturn pathResult : pathResults.values())
+            if (isMeasured(pathResult))
+                successful++;
+        return successful;
+    }
+
+    // A successful result with an angle and a distance; a path that
+    // reports success without measuring them (see the RealSenseReturn
+    // constructor for errors) would otherwise always sort nearest.
+    public static boolean isMeasured(RealSenseReturn pRealSenseReturn) {
+        return pRealSenseReturn.recognitionResults == RobotConstants.RecognitionResults.RECOGNITION_SUCCESSFUL &&
+                pRealSenseReturn.distanceFromCamera >= 0 &&
+                pRealSenseReturn.angleFromCamera != RealSenseReturn.RECOGNITION_ANGLE_NPOS;
+    }
+
+}
@@ -9,19 +9,39 @@ import java.util.Date;
 public class FileImage implements ImageProvider {
 
     private final String pathToImageFile;
-    private final ImageUtils imageUtils = new ImageUtils();
 
     public FileImage(String pPathToImageFile) {
         pathToImageFile = pPathToImageFile;
     }
 
+    // The ImageProvider for a recorded frame: a capture bundle (see
+    // CaptureBundle) or an image file that OpenCV can decode.
+    public static ImageProvider open(String pPathToImageFile) {
+        if (pPathToImageFile.endsWith(CaptureBundle.EXTENSION))
+            return new CaptureBundleImage(pPathToImageFile);
+        return new FileImage(pPathToImageFile);
+    }
+
+    // The image is decoded through the shared DecodedImageCache, so the
+    // Mat returned here is a copy that belongs to the caller; getFrame()
+    // shares the cached Mat without copying it.
     @Override
     // LocalDateTime requires minSdkVersion 26  public Pair<Mat, LocalDateTime> getImage() throws InterruptedException;
     public Pair<Mat, LocalDateTime> getImage() {
-        Mat bgrMat = imageUtils.loadImage(pathToImageFile);    // LocalDateTime requires minSdkVersion 26  public Pair<Mat, LocalDateTime> getImage() throws InterruptedException;
-        if (bgrMat == null) // no such file
+        ImageFrame frame = getFrame();
+        if (frame == null) // no such file
             return null; // let the caller decide what to do
-        return Pair.create(bgrMat, LocalDateTime.now());
+        try {
+            return Pair.create(frame.getImage().clone(), frame.timestamp);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // A read-only frame on the cached image.
+    @Override
+    public ImageFrame getFrame() {
+        return DecodedImageCache.getShared().getFrame(pathToImageFile);
     }
 
     @Override
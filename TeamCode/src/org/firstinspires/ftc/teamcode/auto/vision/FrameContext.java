@@ -0,0 +1,175 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// The intermediate images derived from one frame - the ROI crop, its
+// depth mask and the grayscale, HSV and single-channel conversions of any
+// BGR image taken from the frame, e.g. the ROI or the depth-filtered ROI -
+// computed on first use and then shared by every recognizer and
+// recognition path that asks for them, so that several recognitions of
+// one frame, in sequence or in parallel, convert and split each image
+// only once.
+//
+// The conversions are keyed by the identity of the image they were
+// derived from, which must therefore be one that stays unchanged while
+// the context is open: the frame's image, or the ROI or the depth-filtered
+// ROI from this context - not an image that goes back to the MatPool
+// before the context is closed. The intermediates are read-only: a path
+// that needs to modify one takes a copy. They are leased from the shared
+// MatPool and go back to it when the context is closed; the context holds
+// its own reference to the frame (see ImageFrame) until then.
+//
+// All of the methods are thread-safe; concurrent requests for the same
+// intermediate compute it once.
+public class FrameContext implements AutoCloseable {
+
+    private static final String TAG = FrameContext.class.getSimpleName();
+
+    private enum Conversion {
+        ROI(true), DEPTH_MASK(true), DEPTH_ROI(true), GRAY(false), HSV(false), CHANNEL(false);
+
+        private final boolean byValue; // else by the identity of the source image
+
+        Conversion(boolean pByValue) {
+            byValue = pByValue;
+        }
+    }
+
+    // An intermediate: the conversion of a source image, compared by the
+    // identity of the source, or the ROI, depth mask or depth-filtered ROI
+    // of the frame, compared by the values that define it.
+    private static class Key {
+        private final Conversion conversion;
+        private final Object source; // the source Mat, or the defining values
+        private final int channel;
+
+        private Key(Conversion pConversion, Object pSource, int pChannel) {
+            conversion = pConversion;
+            source = pSource;
+            channel = pChannel;
+        }
+
+        @Override
+        public boolean equals(Object pOther) {
+            if (!(pOther instanceof Key))
+                return false;
+            Key other = (Key) pOther;
+            return conversion == other.conversion && channel == other.channel &&
+                    (conversion.byValue ? source.equals(other.source) : source == other.source);
+        }
+
+        @Override
+        public int hashCode() {
+            int sourceHash = conversion.byValue ? source.hashCode() : System.identityHashCode(source);
+            return (sourceHash * 31 + conversion.ordinal()) * 31 + channel;
+        }
+    }
+
+    private final ImageFrame frame;
+    private final Map<Key, Mat> intermediates = new ConcurrentHashMap<>();
+    private final MatPool pool = MatPool.getShared();
+    private volatile boolean closed;
+
+    public FrameContext(ImageFrame pFrame) {
+        frame = pFrame.retain();
+    }
+
+    public ImageFrame getFrame() {
+        return frame;
+    }
+
+    // The ROI of the frame as cropped by ImageUtils.preProcessImage, which
+    // runs (and writes its diagnostic images) once per ROI; pImageParameters
+    // must already be scaled to the frame (see ImageParameters.forFrame).
+    public Mat getImageROI(String pOutputFilenamePreamble, VisionParameters.ImageParameters pImageParameters) {
+        return get(new Key(Conversion.ROI, pImageParameters.image_roi, 0),
+                () -> ImageUtils.preProcessImage(frame, pOutputFilenamePreamble, pImageParameters));
+    }
+
+    // The mask of the pixels of the ROI that are within the depth range,
+    // see RealSenseUtils.getDepthMask.
+    public Mat getDepthMask(VisionParameters.ImageParameters pImageParameters,
+                            DepthFrame pDepthFrame, double pMinDistance, double pMaxDistance) {
+        return get(new Key(Conversion.DEPTH_MASK, List.of(pImageParameters.image_roi, pMinDistance, pMaxDistance), 0), () -> {
+            long startNanos = System.nanoTime();
+            Mat depthMask = RealSenseUtils.getDepthMask(pImageParameters, pDepthFrame, pMinDistance, pMaxDistance);
+            StageTimings.record(StageTimings.Stage.REMOVE_BACKGROUND, startNanos);
+            return depthMask;
+        });
+    }
+
+    // The ROI with the pixels outside the depth range set to the
+    // background, see RealSenseUtils.removeBackground; pImageROI comes from
+    // getImageROI with the same parameters.
+    public Mat getDepthImageROI(Mat pImageROI, VisionParameters.ImageParameters pImageParameters,
+                                DepthFrame pDepthFrame, double pMinDistance, double pMaxDistance) {
+        // Outside of the computation below: a computation must not ask the
+        // context for another intermediate.
+        Mat depthMask = getDepthMask(pImageParameters, pDepthFrame, pMinDistance, pMaxDistance);
+        return get(new Key(Conversion.DEPTH_ROI, List.of(pImageParameters.image_roi, pMinDistance, pMaxDistance), 0), () -> {
+            long startNanos = System.nanoTime();
+            Mat depthImageROI = RealSenseUtils.removeBackground(pImageROI, depthMask);
+            StageTimings.record(StageTimings.Stage.REMOVE_BACKGROUND, startNanos);
+            return depthImageROI;
+        });
+    }
+
+    // The grayscale conversion of a BGR image.
+    public Mat getGray(Mat pBGR) {
+        return get(new Key(Conversion.GRAY, pBGR, 0), () -> {
+            Mat gray = pool.lease(pBGR.rows(), pBGR.cols(), CvType.CV_8UC1);
+            Imgproc.cvtColor(pBGR, gray, Imgproc.COLOR_BGR2GRAY);
+            return gray;
+        });
+    }
+
+    // The HSV conversion of a BGR image.
+    public Mat getHSV(Mat pBGR) {
+        return get(new Key(Conversion.HSV, pBGR, 0), () -> {
+            Mat hsv = pool.lease(pBGR.rows(), pBGR.cols(), CvType.CV_8UC3);
+            Imgproc.cvtColor(pBGR, hsv, Imgproc.COLOR_BGR2HSV);
+            return hsv;
+        });
+    }
+
+    // One channel of a multi-channel image, e.g. B = 0, G = 1, R = 2.
+    // Only the channels asked for are extracted.
+    public Mat getChannel(Mat pImage, int pChannel) {
+        return get(new Key(Conversion.CHANNEL, pImage, pChannel), () -> {
+            Mat channel = pool.lease(pImage.rows(), pImage.cols(), CvType.CV_8UC1);
+            Core.extractChannel(pImage, channel, pChannel);
+            return channel;
+        });
+    }
+
+    // Return the intermediates to the pool and release the frame. The
+    // Mats handed out by the context must no longer be used.
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+
+        closed = true;
+        for (Map.Entry<Key, Mat> intermediate : intermediates.entrySet())
+            if (intermediate.getKey().conversion != Conversion.ROI) // a submat of the frame
+                pool.release(intermediate.getValue());
+        intermediates.clear();
+        frame.release();
+    }
+
+    private Mat get(Key pKey, Supplier<Mat> pComputation) {
+        if (closed)
+            throw new AutonomousRobotException(TAG, "The frame context has been closed");
+        return intermediates.computeIfAbsent(pKey, key -> pComputation.get());
+    }
+
+}
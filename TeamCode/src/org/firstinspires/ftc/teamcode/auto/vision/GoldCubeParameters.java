@@ -6,13 +6,21 @@ public class GoldCubeParameters {
     public final VisionParameters.GrayParameters grayscaleParameters;
     public final VisionParameters.HSVParameters hsvParameters;
     public final DepthParameters depthParameters;
+    public final int pyramidScale; // see RealSenseRecognition
 
     public GoldCubeParameters(VisionParameters.GrayParameters pGrayscaleParameters,
                               VisionParameters.HSVParameters pHSVParameters,
                               DepthParameters pDepthParameters) {
+        this(pGrayscaleParameters, pHSVParameters, pDepthParameters, VisionParameters.NO_PYRAMID);
+    }
+
+    public GoldCubeParameters(VisionParameters.GrayParameters pGrayscaleParameters,
+                              VisionParameters.HSVParameters pHSVParameters,
+                              DepthParameters pDepthParameters, int pPyramidScale) {
         grayscaleParameters = pGrayscaleParameters;
         hsvParameters = pHSVParameters;
         depthParameters = pDepthParameters;
+        pyramidScale = pPyramidScale;
     }
 
 }
\ No newline at end of file
@@ -3,17 +3,13 @@ package org.firstinspires.ftc.teamcode.auto.vision;
 //!! IntelliJ only
 
 import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
-import org.firstinspires.ftc.ftcdevcommon.Pair;
-import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
 import org.firstinspires.ftc.ftcdevcommon.intellij.TimeStamp;
 import org.firstinspires.ftc.ftcdevcommon.intellij.WorkingDirectory;
 import org.firstinspires.ftc.teamcode.common.RobotConstants;
 import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
 import org.opencv.core.Mat;
-import org.opencv.imgcodecs.Imgcodecs;
 
 import java.io.IOException;
-import java.time.LocalDateTime;
 
 public class GoldCubeRecognition {
 
@@ -36,46 +32,65 @@ public class GoldCubeRecognition {
                                              VisionParameters.ImageParameters pImageParameters,
                                              GoldCubeParameters pGoldCubeParameters,
                                              RobotConstants.RecognitionPath pGoldCubeRecognitionPath) throws InterruptedException, IOException {
+        ImageFrame frame = pImageProvider.getFrame();
+        if (frame == null)
+            return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR); // don't crash
 
-        RobotLogCommon.d(TAG, "In GoldCubeRecognition.recognizeGoldCube");
+        try (FrameContext frameContext = new FrameContext(frame)) {
+            return recognizeGoldCube(frameContext, pD405Configuration, pOrientation, pImageParameters, pGoldCubeParameters, pGoldCubeRecognitionPath);
+        } finally {
+            frame.release();
+        }
+    }
 
-        // LocalDateTime requires Android minSdkVersion 26  public Pair<Mat, LocalDateTime> getImage() throws InterruptedException;
-        Pair<Mat, LocalDateTime> goldCubeImage = pImageProvider.getImage();
-        if (goldCubeImage == null)
-            return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR); // don't crash
+    // Same as above for a frame whose intermediate images may be shared
+    // with other recognitions of it (see FrameContext).
+    public RealSenseReturn recognizeGoldCube(FrameContext pFrameContext,
+                                             D405Configuration pD405Configuration,
+                                             RobotConstantsPowerPlay.D405CameraId pOrientation,
+                                             VisionParameters.ImageParameters pImageParameters,
+                                             GoldCubeParameters pGoldCubeParameters,
+                                             RobotConstants.RecognitionPath pGoldCubeRecognitionPath) throws IOException {
+
+        VisionLog.d(TAG, "In GoldCubeRecognition.recognizeGoldCube");
+
+        ImageFrame frame = pFrameContext.getFrame();
 
         // The image may be RGB (from a camera) or BGR (OpenCV imread from a file).
         // OpenCV wants BGR; the possible conversion is taken care of in ImageUtils.preProcessImage.
-        Mat imgOriginal = goldCubeImage.first.clone();
-        String fileDate = TimeStamp.getLocalDateTimeStamp(goldCubeImage.second);
+        // The image is not copied: the recognition paths only read the ROI
+        // and draw on copies of it. The ROI, the depth-filtered ROI and
+        // their conversions belong to the frame context.
+        String fileDate = TimeStamp.getLocalDateTimeStamp(frame.timestamp);
         String outputFilenamePreamble = ImageUtils.createOutputFilePreamble(pImageParameters.image_source, workingDirectory, fileDate);
-        Mat imageROI = ImageUtils.preProcessImage(pImageProvider, imgOriginal, outputFilenamePreamble, pImageParameters);
+
+        // The ROI and the depth lookups at the resolution of the frame.
+        VisionParameters.ImageParameters imageParameters = pImageParameters.forFrame(frame);
+        Mat imageROI = pFrameContext.getImageROI(outputFilenamePreamble, imageParameters);
 
         // Subject the ROI to depth filtering on all paths.
-        short[] depthArray = RealSenseUtils.getDepthArrayFromFile(pImageParameters);
-        Mat depthImageROI = RealSenseUtils.removeBackground(imageROI, pImageParameters,
-                pD405Configuration, depthArray,
+        DepthFrame depthFrame = DepthFrame.fromFile(imageParameters, pD405Configuration, pOrientation);
+        Mat depthImageROI = pFrameContext.getDepthImageROI(imageROI, imageParameters, depthFrame,
                 pGoldCubeParameters.depthParameters.minDepth,
                 pGoldCubeParameters.depthParameters.maxDepth);
 
-        Imgcodecs.imwrite(outputFilenamePreamble + "_ROI_RANGE.png", depthImageROI);
-        RobotLogCommon.d(TAG, "Writing " + outputFilenamePreamble + "_ROI_RANGE.png");
+        Diagnostics.writeImage(Diagnostics.Level.SUMMARY, outputFilenamePreamble + "_ROI_RANGE.png", depthImageROI);
 
-        RobotLogCommon.d(TAG, "Recognition path " + pGoldCubeRecognitionPath);
+        VisionLog.d(TAG, "Recognition path {}", pGoldCubeRecognitionPath);
         switch (pGoldCubeRecognitionPath) {
             case RED_CHANNEL_GRAYSCALE -> {
-                return realSenseRecognition.redChannelPath(imageROI,
+                return realSenseRecognition.redChannelPath(pFrameContext, imageROI,
                         pD405Configuration, pOrientation,
-                        depthArray, RobotConstantsPowerPlay.WIDTH_OF_GOLD_CUBE,
+                        depthFrame, RobotConstantsPowerPlay.WIDTH_OF_GOLD_CUBE,
                         outputFilenamePreamble,
-                        pImageParameters, pGoldCubeParameters.grayscaleParameters, pGoldCubeParameters.depthParameters);
+                        imageParameters, pGoldCubeParameters.grayscaleParameters, pGoldCubeParameters.depthParameters, pGoldCubeParameters.pyramidScale);
             }
             case COLOR -> {
-                return realSenseRecognition.colorPath(imageROI,
+                return realSenseRecognition.colorPath(pFrameContext, imageROI,
                         pD405Configuration, pOrientation,
-                        depthArray, RobotConstantsPowerPlay.WIDTH_OF_GOLD_CUBE,
+                        depthFrame, RobotConstantsPowerPlay.WIDTH_OF_GOLD_CUBE,
                         outputFilenamePreamble,
-                        pImageParameters, pGoldCubeParameters.hsvParameters, pGoldCubeParameters.depthParameters);
+                        imageParameters, pGoldCubeParameters.hsvParameters, pGoldCubeParameters.depthParameters, pGoldCubeParameters.pyramidScale);
             }
             default -> throw new AutonomousRobotException(TAG, "Unrecognized recognition path");
         }
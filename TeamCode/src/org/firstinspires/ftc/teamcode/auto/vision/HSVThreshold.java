@@ -0,0 +1,144 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+// Fused HSV normalize-and-threshold stage. Produces the same binary image
+// as converting the ROI to HSV, shifting the saturation and value channels
+// so that their medians match the targets, and then applying inRange -
+// but without the split, the two convertTo calls and the merge.
+//
+// The saturation and value adjustments are constant offsets that saturate
+// at 0 and 255, so "adjusted >= low" is the same test as
+// "original >= low - adjustment". The offsets are therefore folded into
+// the inRange bounds instead of being applied to the image.
+//
+// Hue ranges that cross the 180 boundary, e.g. low 170 and high 10, are
+// handled by rotating the hue channel through a lookup table so that the
+// range becomes contiguous; a single inRange then replaces the two inRange
+// calls and the bitwise_or.
+public class HSVThreshold {
+
+    private static final String TAG = HSVThreshold.class.getSimpleName();
+
+    // OpenCV's 8-bit HSV hue runs from 0 to 179.
+    private static final int HUE_LIMIT = 180;
+
+    // The hue rotation tables by rotation, built on first use and kept:
+    // there are at most HUE_LIMIT of them and each is 768 bytes.
+    private static final Mat[] hueRotationTables = new Mat[HUE_LIMIT];
+
+    // The medians and adjustments computed during thresholding; the
+    // caller may log them or use them to reconstruct the adjusted image.
+    public static class Result {
+        public final int medianSaturation;
+        public final int medianValue;
+        public final int saturationAdjustment;
+        public final int valueAdjustment;
+
+        public Result(int pMedianSaturation, int pMedianValue,
+                      int pSaturationAdjustment, int pValueAdjustment) {
+            medianSaturation = pMedianSaturation;
+            medianValue = pMedianValue;
+            saturationAdjustment = pSaturationAdjustment;
+            valueAdjustment = pValueAdjustment;
+        }
+    }
+
+    // Threshold a BGR ROI into a CV_8UC1 binary image according to the
+    // HSV parameters. pHSVBuffer is scratch space for the HSV conversion
+    // of the ROI (on a wrap-around hue range its hue channel is left
+    // rotated) and pThresholdedOut receives the binary image. Both are
+    // supplied by the caller so that they may be reused from frame to
+    // frame - OpenCV only reallocates them if the size or type changes.
+    public static Result threshold(Mat pBGRInputROI, VisionParameters.HSVParameters pHSVParameters,
+                                   Mat pHSVBuffer, Mat pThresholdedOut) {
+        return threshold(pBGRInputROI, pHSVParameters, pHSVBuffer, pThresholdedOut, null);
+    }
+
+    // Same as above but with the saturation and value medians taken from
+    // pLevels, e.g. the result of thresholding a downscaled copy of a
+    // larger image of which this ROI is a part, instead of measured on
+    // this ROI. A null pLevels measures them.
+    public static Result threshold(Mat pBGRInputROI, VisionParameters.HSVParameters pHSVParameters,
+                                   Mat pHSVBuffer, Mat pThresholdedOut, Result pLevels) {
+        Imgproc.cvtColor(pBGRInputROI, pHSVBuffer, Imgproc.COLOR_BGR2HSV);
+        return thresholdHSV(pHSVBuffer, pHSVParameters, pHSVBuffer, pThresholdedOut, pLevels);
+    }
+
+    // Same as above but for an ROI already converted to HSV, e.g. one
+    // shared through a FrameContext. pHSVInputROI is only read; on a
+    // wrap-around hue range its rotated copy goes to pHSVBuffer, which may
+    // be pHSVInputROI itself if the caller owns it.
+    public static Result thresholdHSV(Mat pHSVInputROI, VisionParameters.HSVParameters pHSVParameters,
+                                      Mat pHSVBuffer, Mat pThresholdedOut, Result pLevels) {
+        int hueLow = pHSVParameters.hue_low;
+        int hueHigh = pHSVParameters.hue_high;
+
+        // Sanity check for hue.
+        if (!((hueLow >= 0 && hueLow <= HUE_LIMIT) && (hueHigh >= 0 && hueHigh <= HUE_LIMIT) &&
+                (hueLow != hueHigh)))
+            throw new AutonomousRobotException(TAG, "Hue out of range");
+
+        // Get the medians of the S and V channels directly from the HSV
+        // image; no need to split it.
+        int medianSaturation = pLevels != null ? pLevels.medianSaturation : new ChannelHistogram(pHSVInputROI, 1, null).getMedian();
+        int medianValue = pLevels != null ? pLevels.medianValue : new ChannelHistogram(pHSVInputROI, 2, null).getMedian();
+
+        // adjustment = target - median;
+        int satAdjustment = pHSVParameters.saturation_target - medianSaturation;
+        int valAdjustment = pHSVParameters.value_target - medianValue;
+
+        // Fold the adjustments into the lower bounds. The upper bounds are
+        // always 255, which an adjusted (saturated) value can never exceed.
+        int satLow = pHSVParameters.saturation_low_threshold <= 0 ? 0 : pHSVParameters.saturation_low_threshold - satAdjustment;
+        int valLow = pHSVParameters.value_low_threshold <= 0 ? 0 : pHSVParameters.value_low_threshold - valAdjustment;
+        Result result = new Result(medianSaturation, medianValue, satAdjustment, valAdjustment);
+
+        // If a lower bound is beyond 255 no pixel can qualify. Handle this
+        // here because inRange would saturate the bound to 255.
+        if (satLow > 255 || valLow > 255) {
+            pThresholdedOut.create(pHSVInputROI.size(), CvType.CV_8UC1);
+            pThresholdedOut.setTo(new Scalar(0));
+            return result;
+        }
+
+        // Normal hue range.
+        if (hueLow < hueHigh) {
+            Core.inRange(pHSVInputROI, new Scalar(hueLow, satLow, valLow), new Scalar(hueHigh, 255, 255), pThresholdedOut);
+            return result;
+        }
+
+        // Wrap-around hue range, e.g. low 170, high 10. Rotate every hue
+        // by (180 - low) so that the range 170 .. 179, 0 .. 10 becomes
+        // 0 .. 20. The saturation and value channels pass through the
+        // lookup table unchanged.
+        int rotation = (HUE_LIMIT - hueLow) % HUE_LIMIT;
+        Core.LUT(pHSVInputROI, getHueRotationTable(rotation), pHSVBuffer);
+        Core.inRange(pHSVBuffer, new Scalar(0, satLow, valLow), new Scalar(hueHigh + rotation, 255, 255), pThresholdedOut);
+        return result;
+    }
+
+    // A 3-channel lookup table that rotates channel 0 (hue) and leaves
+    // channels 1 and 2 alone. Values outside the valid hue range map to
+    // 255 so that they can never fall inside a rotated range. The table is
+    // shared and must not be modified.
+    private static synchronized Mat getHueRotationTable(int pRotation) {
+        if (hueRotationTables[pRotation] != null)
+            return hueRotationTables[pRotation];
+
+        byte[] table = new byte[256 * 3];
+        for (int i = 0; i < 256; i++) {
+            table[i * 3] = (byte) (i < HUE_LIMIT ? (i + pRotation) % HUE_LIMIT : 255);
+            table[(i * 3) + 1] = (byte) i;
+            table[(i * 3) + 2] = (byte) i;
+        }
+
+        Mat lut = new Mat(1, 256, CvType.CV_8UC3);
+        lut.put(0, 0, table);
+        hueRotationTables[pRotation] = lut;
+        return lut;
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// A handle on one image from an ImageProvider (see getFrame) that makes
+// the ownership of the image explicit. The image is read-only: any number
+// of holders may read it, and a holder that needs to modify it takes a
+// copy with copyImage(). An RGB image is converted to BGR only when
+// getBGRImage() is first called, once per frame however many holders ask
+// for it.
+//
+// The handle is reference counted. It starts with one reference, which
+// belongs to the caller of getFrame; retain() adds a reference for
+// another holder, e.g. another thread, and each holder calls release()
+// (or close()) exactly once when it is done. When the last reference is
+// released the image goes back to the provider's recycler, if it has one,
+// so that a provider can reuse its frame buffers; a frame without a
+// recycler does not own its image and leaves it alone.
+public class ImageFrame implements AutoCloseable {
+
+    private static final String TAG = ImageFrame.class.getSimpleName();
+
+    public final LocalDateTime timestamp;
+    public final ImageProvider.ImageFormat imageFormat;
+
+    private final Mat image;
+    private final Consumer<Mat> recycler; // null if the frame does not own the image
+    private final AtomicInteger references = new AtomicInteger(1);
+    private Mat convertedImage; // BGR from RGB, created on first use and owned by the frame
+
+    public ImageFrame(Mat pImage, LocalDateTime pTimestamp, ImageProvider.ImageFormat pImageFormat,
+                      Consumer<Mat> pRecycler) {
+        image = pImage;
+        timestamp = pTimestamp;
+        imageFormat = pImageFormat;
+        recycler = pRecycler;
+    }
+
+    // The image as supplied by the provider, RGB or BGR. Must not be
+    // modified.
+    public Mat getImage() {
+        checkReferenced();
+        return image;
+    }
+
+    // The image in BGR order, as OpenCV expects. Must not be modified.
+    public synchronized Mat getBGRImage() {
+        checkReferenced();
+        if (imageFormat == ImageProvider.ImageFormat.BGR)
+            return image;
+
+        if (convertedImage == null) {
+            convertedImage = MatPool.getShared().leaseLike(image);
+            Imgproc.cvtColor(image, convertedImage, Imgproc.COLOR_RGB2BGR);
+        }
+        return convertedImage;
+    }
+
+    // A copy of the BGR image that the caller owns and may modify; it is
+    // leased from the shared MatPool and the caller may release it back.
+    public Mat copyImage() {
+        Mat bgrImage = getBGRImage();
+        Mat copy = MatPool.getShared().leaseLike(bgrImage);
+        bgrImage.copyTo(copy);
+        return copy;
+    }
+
+    // Add a reference for another holder.
+    public ImageFrame retain() {
+        if (references.getAndUpdate(count -> count > 0 ? count + 1 : count) <= 0)
+            throw new AutonomousRobotException(TAG, "The frame has already been released");
+        return this;
+    }
+
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining < 0)
+            throw new AutonomousRobotException(TAG, "The frame has been released more often than it was retained");
+        if (remaining > 0)
+            return;
+
+        synchronized (this) {
+            if (convertedImage != null) {
+                MatPool.getShared().release(convertedImage);
+                convertedImage = null;
+            }
+        }
+
+        if (recycler != null)
+            recycler.accept(image);
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    public int getReferenceCount() {
+        return references.get();
+    }
+
+    private void checkReferenced() {
+        if (references.get() <= 0)
+            throw new AutonomousRobotException(TAG, "The frame has already been released");
+    }
+
+}
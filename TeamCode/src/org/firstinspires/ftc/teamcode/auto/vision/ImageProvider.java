@@ -13,4 +13,16 @@ public interface ImageProvider {
     Pair<Mat, LocalDateTime> getImage() throws InterruptedException;
 
     ImageFormat getImageFormat();
+
+    // The next image as a read-only, reference-counted handle (see
+    // ImageFrame), or null if there is none. By default the handle does
+    // not own the image, which is left to the provider as it is from
+    // getImage(); a provider whose images belong to the caller overrides
+    // this to release or recycle each image when its frame is released.
+    default ImageFrame getFrame() throws InterruptedException {
+        Pair<Mat, LocalDateTime> image = getImage();
+        if (image == null)
+            return null;
+        return new ImageFrame(image.first, image.second, getImageFormat(), null);
+    }
 }
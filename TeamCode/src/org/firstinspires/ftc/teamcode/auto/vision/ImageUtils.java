@@ -3,14 +3,13 @@
 package org.firstinspires.ftc.teamcode.auto.vision;
 
 import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
-import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.imgproc.Moments;
 
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static org.opencv.imgcodecs.Imgcodecs.IMREAD_COLOR;
 
@@ -19,16 +18,27 @@ public class ImageUtils {
 
     public static final String TAG = ImageUtils.class.getSimpleName();
 
+    // The 5x5 rectangular structuring element used for morphological
+    // opening. It is built once, on first use, i.e. after the OpenCV
+    // native library has been loaded. Callers must not modify it.
+    private static class Kernels {
+        private static final Mat RECT_5X5 = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5));
+    }
+
+    public static Mat getOpeningKernel() {
+        return Kernels.RECT_5X5;
+    }
+
     // Load an image.
     public static Mat loadImage(String pInputFilename) {
-        RobotLogCommon.d(TAG, "File name " + pInputFilename);
+        VisionLog.d(TAG, "File name {}", pInputFilename);
         Mat imageOut = Imgcodecs.imread(pInputFilename, IMREAD_COLOR);
         if (imageOut.empty()) {
-            RobotLogCommon.d(TAG, "Could not find or open the image");
+            VisionLog.d(TAG, "Could not find or open the image");
             return null;
         }
 
-        RobotLogCommon.d(TAG, "Image width " + imageOut.cols() + ", height " + imageOut.rows());
+        VisionLog.d(TAG, "Image width {}, height {}", imageOut.cols(), imageOut.rows());
         return imageOut;
     }
 
@@ -36,19 +46,26 @@ public class ImageUtils {
    public static Mat getImageROI(Mat pSrcImage, Rect pROIDefinition) {
 
         if ((pROIDefinition.height == 0) && (pROIDefinition.width == 0)) {
-            RobotLogCommon.d(TAG, "At least one ROI dimension was 0");
+            VisionLog.d(TAG, "At least one ROI dimension was 0");
             return new Mat();
         }
 
         Mat roi = new Mat(pSrcImage, pROIDefinition);
-        RobotLogCommon.d(TAG, "Image ROI x " + pROIDefinition.x + ", y " + pROIDefinition.y + ", width " + pROIDefinition.width + ", height " + pROIDefinition.height);
+        if (VisionLog.isDebugEnabled())
+            VisionLog.d(TAG, "Image ROI x {}, y {}, width {}, height {}", pROIDefinition.x, pROIDefinition.y, pROIDefinition.width, pROIDefinition.height);
         return roi;
     }
 
     public static String createOutputFilePreamble(String pImageSource, String pWorkingDirectory, String pFileDate) {
+        // An absolute image source, e.g. from batch mode, contributes only
+        // its file name.
+        if (Paths.get(pImageSource).isAbsolute())
+            pImageSource = Paths.get(pImageSource).getFileName().toString();
+
         // When testing with a file append the original file name without the
         // extension, an underscore, and the file date.
-        if (pImageSource.endsWith(".png") || pImageSource.endsWith(".jpg")) {
+        if (pImageSource.endsWith(".png") || pImageSource.endsWith(".jpg") ||
+                pImageSource.endsWith(CaptureBundle.EXTENSION)) {
             String originalFN = pImageSource.substring(0, pImageSource.lastIndexOf('.'));
             return pWorkingDirectory + originalFN + "_" + pFileDate;
         }
@@ -57,51 +74,65 @@ public class ImageUtils {
         return pWorkingDirectory + pImageSource + "_" + pFileDate;
     }
 
-    public static Mat preProcessImage(ImageProvider pImageProvider, Mat pOriginalImage,
+    // The returned ROI is a submatrix of the frame's image and so is
+    // read-only and valid only while the caller holds the frame.
+    public static Mat preProcessImage(ImageFrame pFrame,
                                String pPreamble, VisionParameters.ImageParameters pImageParameters) {
+        long startNanos = System.nanoTime();
+        VisionLog.beginFrame(pPreamble);
 
         // If you don't convert RGB to BGR here then the _IMG.png file will be written
-        // out with incorrect colors (gold will show up as blue).
-        if (pImageProvider.getImageFormat() == ImageProvider.ImageFormat.RGB)
-            Imgproc.cvtColor(pOriginalImage, pOriginalImage, Imgproc.COLOR_RGB2BGR);
+        // out with incorrect colors (gold will show up as blue). The frame
+        // converts an RGB image once, into an image of its own.
+        Mat originalImage = pFrame.getBGRImage();
 
         String imageFilename = pPreamble + "_IMG.png";
         //**TODO don't need this for IJ - we have the input file
         //RobotLogCommon.d(TAG, "Writing original image " + imageFilename);
-        //Imgcodecs.imwrite(imageFilename, pOriginalImage);
+        //Imgcodecs.imwrite(imageFilename, originalImage);
+
+        VisionLog.d(TAG, "Image width {}, height {}", originalImage.cols(), originalImage.rows());
 
-        RobotLogCommon.d(TAG, "Image width " + pOriginalImage.cols() + ", height " + pOriginalImage.rows());
-        if ((pOriginalImage.cols() != pImageParameters.resolution_width) ||
-                (pOriginalImage.rows() != pImageParameters.resolution_height))
-            throw new AutonomousRobotException(TAG,
-                    "Mismatch between actual image width and expected image width " + pImageParameters.resolution_width +
-                            ", height " + pImageParameters.resolution_height);
+        // An image at a resolution other than that of the parameters is
+        // cropped to the ROI scaled to it; the caller scales its other
+        // pixel measures with the same parameters (see ImageParameters).
+        VisionParameters.ImageParameters frameParameters = pImageParameters.forFrame(pFrame);
+        if (frameParameters != pImageParameters)
+            VisionLog.d(TAG, "ROI scaled from resolution width {}, height {}",
+                    pImageParameters.resolution_width, pImageParameters.resolution_height);
 
         // Crop the image to reduce distractions.
-        Mat imageROI = getImageROI(pOriginalImage,
-                new Rect(pImageParameters.image_roi.x,
-                        pImageParameters.image_roi.y,
-                        pImageParameters.image_roi.width,
-                        pImageParameters.image_roi.height));
+        Mat imageROI = getImageROI(originalImage,
+                new Rect(frameParameters.image_roi.x,
+                        frameParameters.image_roi.y,
+                        frameParameters.image_roi.width,
+                        frameParameters.image_roi.height));
 
         imageFilename = pPreamble + "_ROI.png";
-        RobotLogCommon.d(TAG, "Writing image ROI " + imageFilename);
-        Imgcodecs.imwrite(imageFilename, imageROI);
+        Diagnostics.writeImage(Diagnostics.Level.SUMMARY, imageFilename, imageROI);
 
+        StageTimings.record(StageTimings.Stage.PREPROCESS, startNanos);
         return imageROI;
     }
 
-    // Adjust the brightness of a grayscale image.
+    // Adjust the brightness of a grayscale image. The returned Mat is
+    // leased from the shared MatPool; the caller may release it back.
     public static Mat adjustGrayscaleBrightness(Mat pGray, int pTarget) {
-        int medianGray = getSingleChannelMedian(pGray);
-        RobotLogCommon.d(TAG, "Original image: grayscale median " + medianGray);
-        RobotLogCommon.d(TAG, "Grayscale median target " + pTarget);
+        return adjustGrayscaleBrightness(pGray, pTarget, getSingleChannelMedian(pGray));
+    }
+
+    // Adjust the brightness of a grayscale image so that a median measured
+    // elsewhere, e.g. on a downscaled copy of a larger image of which this
+    // one is a part, matches the target.
+    public static Mat adjustGrayscaleBrightness(Mat pGray, int pTarget, int pMedianGray) {
+        VisionLog.d(TAG, "Original image: grayscale median {}", pMedianGray);
+        VisionLog.d(TAG, "Grayscale median target {}", pTarget);
 
         // adjustment = target - median;
-        int adjustment = pTarget - medianGray;
-        Mat adjustedGray = new Mat();
+        int adjustment = pTarget - pMedianGray;
+        Mat adjustedGray = MatPool.getShared().leaseLike(pGray);
         pGray.convertTo(adjustedGray, -1, 1, adjustment);
-        RobotLogCommon.d(TAG, "Grayscale adjustment " + adjustment);
+        VisionLog.d(TAG, "Grayscale adjustment {}", adjustment);
 
         return adjustedGray;
     }
@@ -113,13 +144,13 @@ public class ImageUtils {
         Core.split(pHSVImage, channels);
 
         // Get the median of the S channel.
-        int medianSaturation = getColorChannelMedian(channels.get(1), new Mat());
+        int medianSaturation = getSingleChannelMedian(channels.get(1));
 
         // Get the median of the V channel.
-        int medianValue = getColorChannelMedian(channels.get(2), new Mat());
+        int medianValue = getSingleChannelMedian(channels.get(2));
 
-        RobotLogCommon.d(TAG, "HSV saturation channel median " + medianSaturation);
-        RobotLogCommon.d(TAG, "HSV value channel median " + medianValue);
+        VisionLog.d(TAG, "HSV saturation channel median {}", medianSaturation);
+        VisionLog.d(TAG, "HSV value channel median {}", medianValue);
 
         // adjustment = target - median;
         int satAdjustment = pSatLowTarget - medianSaturation;
@@ -127,8 +158,8 @@ public class ImageUtils {
         channels.get(1).convertTo(channels.get(1), -1, 1, satAdjustment);
         channels.get(2).convertTo(channels.get(2), -1, 1, valAdjustment);
 
-        RobotLogCommon.d(TAG, "Adjust HSV saturation by " + satAdjustment);
-        RobotLogCommon.d(TAG, "Adjust HSV value by " + valAdjustment);
+        VisionLog.d(TAG, "Adjust HSV saturation by {}", satAdjustment);
+        VisionLog.d(TAG, "Adjust HSV value by {}", valAdjustment);
 
         // Merge the channels back together.
         Mat adjustedImage = new Mat();
@@ -163,12 +194,13 @@ public class ImageUtils {
 
         // Get the bin with the greatest pixel count.
         Core.MinMaxLocResult mmlResult = Core.minMaxLoc(hueHist);
-        RobotLogCommon.d(TAG, "Hue histogram: largest bin x " + mmlResult.maxLoc.x + ", y " + mmlResult.maxLoc.y + ", count " + mmlResult.maxVal);
+        if (VisionLog.isDebugEnabled())
+            VisionLog.d(TAG, "Hue histogram: largest bin x {}, y {}, count {}", mmlResult.maxLoc.x, mmlResult.maxLoc.y, mmlResult.maxVal);
 
         // The y-coordinate of the maxLoc Point contains the index to the bin
         // with the greatest value. The index to the bin is the hue itself.
         int dominantHue = (int) mmlResult.maxLoc.y;
-        RobotLogCommon.d(TAG, "HSV dominant hue " + dominantHue);
+        VisionLog.d(TAG, "HSV dominant hue {}", dominantHue);
 
         return dominantHue;
     }
@@ -178,67 +210,73 @@ public class ImageUtils {
     // the hue range in the HSVParameters.
     // In the OpenCV tutorial, no blurring is applied before inRange (unlike grayscale thresholding).
     // https://docs.opencv.org/3.4/da/d97/tutorial_threshold_inRange.html
+    // The saturation and value medians are measured on pInputROI unless
+    // pLevels, measured elsewhere (see HSVThreshold), is supplied. The HSV
+    // buffer and the thresholded output are leased from the shared MatPool;
+    // the caller may release the output back.
     public static Mat applyInRange(Mat pInputROI, String pOutputFilenamePreamble,
-                            VisionParameters.HSVParameters pHSVParameters) {
-
-        // We're on the HSV path.
-        Mat hsvROI = new Mat();
-        Imgproc.cvtColor(pInputROI, hsvROI, Imgproc.COLOR_BGR2HSV);
-
-        // Adjust the HSV saturation and value levels in the image to match the targets.
-        int hueLow = pHSVParameters.hue_low;
-        int hueHigh = pHSVParameters.hue_high;
-        int satTarget = pHSVParameters.saturation_target;
-        int satHigh = 255;
-        int valTarget = pHSVParameters.value_target;
-        int valHigh = 255;
-        RobotLogCommon.d(TAG, "Target hue levels: low " + hueLow + ", high " + hueHigh);
-
-        // Adjust saturation and value to the target levels.
-        Mat adjusted = adjustSaturationAndValue(hsvROI, satTarget, valTarget);
-        RobotLogCommon.d(TAG, "Adjusted image levels: saturation low " + satTarget + ", value low " + valTarget);
-
-        // Convert back to BGR.
-        //## This debugging step will not be needed in production.
-        Mat adjustedBGR = new Mat();
-        Imgproc.cvtColor(adjusted, adjustedBGR, Imgproc.COLOR_HSV2BGR);
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_ADJ.png", adjustedBGR);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_ADJ.png");
-
-        // Use inRange to threshold to binary.
-        // Account for hue ranges that cross the 180 degree boundary.
-        // Red, for example, might have a hueLow of 170 and a hueHigh of
-        // 10.
-        // See https://stackoverflow.com/questions/32522989/opencv-better-detection-of-red-color
-
-        Mat thresholded = new Mat();
-        int inRangeSatLow = pHSVParameters.saturation_low_threshold;
-        int inrangeValLow = pHSVParameters.value_low_threshold;
-        RobotLogCommon.d(TAG, "Actual inRange HSV levels: hue low " + hueLow + ", hue high " + hueHigh);
-        RobotLogCommon.d(TAG, "Actual inRange HSV levels: saturation low " + inRangeSatLow + ", value low " + inrangeValLow);
+                                   VisionParameters.HSVParameters pHSVParameters, HSVThreshold.Result pLevels) {
+        MatPool pool = MatPool.getShared();
+        Mat hsvBuffer = pool.lease(pInputROI.rows(), pInputROI.cols(), CvType.CV_8UC3);
+        Mat thresholded = pool.lease(pInputROI.rows(), pInputROI.cols(), CvType.CV_8UC1);
+        applyInRange(pInputROI, null, pOutputFilenamePreamble, pHSVParameters, hsvBuffer, thresholded, pLevels);
+        pool.release(hsvBuffer);
+        return thresholded;
+    }
 
-        // Sanity check for hue.
-        if (!((hueLow >= 0 && hueLow <= 180) && (hueHigh >= 0 && hueHigh <= 180) &&
-                (hueLow != hueHigh)))
-            throw new AutonomousRobotException(TAG, "Hue out of range");
+    // Same as above for an ROI whose HSV conversion, pHSVInputROI, has
+    // already been made, e.g. by a FrameContext; it is only read.
+    public static Mat applyInRange(Mat pInputROI, Mat pHSVInputROI, String pOutputFilenamePreamble,
+                                   VisionParameters.HSVParameters pHSVParameters) {
+        MatPool pool = MatPool.getShared();
+        Mat hsvBuffer = pool.leaseLike(pHSVInputROI); // for a wrap-around hue range
+        Mat thresholded = pool.lease(pInputROI.rows(), pInputROI.cols(), CvType.CV_8UC1);
+        applyInRange(pInputROI, pHSVInputROI, pOutputFilenamePreamble, pHSVParameters, hsvBuffer, thresholded, null);
+        pool.release(hsvBuffer);
+        return thresholded;
+    }
 
-        // Normal hue range.
-        if (hueLow < hueHigh)
-            Core.inRange(adjusted, new Scalar(hueLow, inRangeSatLow, inrangeValLow), new Scalar(hueHigh, satHigh, valHigh), thresholded);
-        else {
-            // For a hue range from the XML file of low 170, high 10
-            // the following yields two new ranges: 170 - 180 and 0 - 10.
-            Mat range1 = new Mat();
-            Mat range2 = new Mat();
-            Core.inRange(adjusted, new Scalar(hueLow, inRangeSatLow, inrangeValLow), new Scalar(180, satHigh, valHigh), range1);
-            Core.inRange(adjusted, new Scalar(0, inRangeSatLow, inrangeValLow), new Scalar(hueHigh, satHigh, valHigh), range2);
-            Core.bitwise_or(range1, range2, thresholded);
-        }
+    // The normalization and inRange steps are fused into a single stage,
+    // see HSVThreshold. Account for hue ranges that cross the 180 degree
+    // boundary: red, for example, might have a hueLow of 170 and a hueHigh
+    // of 10.
+    // See https://stackoverflow.com/questions/32522989/opencv-better-detection-of-red-color
+    // A null pHSVInputROI converts pInputROI into pHSVBuffer.
+    private static Mat applyInRange(Mat pInputROI, Mat pHSVInputROI, String pOutputFilenamePreamble,
+                                    VisionParameters.HSVParameters pHSVParameters,
+                                    Mat pHSVBuffer, Mat pThresholdedOut, HSVThreshold.Result pLevels) {
+        long startNanos = System.nanoTime();
+        VisionLog.d(TAG, "Target hue levels: low {}, high {}", pHSVParameters.hue_low, pHSVParameters.hue_high);
+        HSVThreshold.Result hsvResult = pHSVInputROI == null ?
+                HSVThreshold.threshold(pInputROI, pHSVParameters, pHSVBuffer, pThresholdedOut, pLevels) :
+                HSVThreshold.thresholdHSV(pHSVInputROI, pHSVParameters, pHSVBuffer, pThresholdedOut, pLevels);
+
+        VisionLog.d(TAG, "HSV saturation channel median {}", hsvResult.medianSaturation);
+        VisionLog.d(TAG, "HSV value channel median {}", hsvResult.medianValue);
+        VisionLog.d(TAG, "Adjust HSV saturation by {}", hsvResult.saturationAdjustment);
+        VisionLog.d(TAG, "Adjust HSV value by {}", hsvResult.valueAdjustment);
+        VisionLog.d(TAG, "Adjusted image levels: saturation low {}, value low {}", pHSVParameters.saturation_target, pHSVParameters.value_target);
+        VisionLog.d(TAG, "Actual inRange HSV levels: hue low {}, hue high {}", pHSVParameters.hue_low, pHSVParameters.hue_high);
+        VisionLog.d(TAG, "Actual inRange HSV levels: saturation low {}, value low {}", pHSVParameters.saturation_low_threshold, pHSVParameters.value_low_threshold);
 
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_ADJ_THR.png", thresholded);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_ADJ_THR.png");
+        //## This debugging step will not be needed in production.
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_ADJ.png",
+                () -> getAdjustedHSV(pInputROI, hsvResult));
 
-        return thresholded;
+        Diagnostics.writeImage(Diagnostics.Level.SUMMARY, pOutputFilenamePreamble + "_ADJ_THR.png", pThresholdedOut);
+
+        StageTimings.record(StageTimings.Stage.THRESHOLD, startNanos);
+        return pThresholdedOut;
+    }
+
+    // Reconstruct the saturation- and value-adjusted image that the fused
+    // HSV threshold tests against and convert it back to BGR.
+    private static Mat getAdjustedHSV(Mat pInputROI, HSVThreshold.Result pHSVResult) {
+        Mat adjusted = MatPool.getShared().leaseLike(pInputROI);
+        Imgproc.cvtColor(pInputROI, adjusted, Imgproc.COLOR_BGR2HSV);
+        Core.add(adjusted, new Scalar(0, pHSVResult.saturationAdjustment, pHSVResult.valueAdjustment), adjusted);
+        Imgproc.cvtColor(adjusted, adjusted, Imgproc.COLOR_HSV2BGR);
+        return adjusted;
     }
 
     // Combine the frequently associated steps of applying inRange to
@@ -249,14 +287,16 @@ public class ImageUtils {
     public static List<MatOfPoint> applyInRangeAndFindContours(Mat pInputROI,
                                                         String pOutputFilenamePreamble, VisionParameters.HSVParameters pHSVParameters) {
 
-        Mat thresholded = applyInRange(pInputROI, pOutputFilenamePreamble, pHSVParameters);
-        Mat morphed = new Mat();
-        Imgproc.erode(thresholded, morphed, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5)));
-        Imgproc.dilate(morphed, morphed, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5)));
+        MatPool pool = MatPool.getShared();
+        Mat thresholded = applyInRange(pInputROI, pOutputFilenamePreamble, pHSVParameters, null);
+        Mat morphed = pool.leaseLike(thresholded);
+        Imgproc.erode(thresholded, morphed, getOpeningKernel());
+        Imgproc.dilate(morphed, morphed, getOpeningKernel());
 
         // Identify the contours
         List<MatOfPoint> contours = new ArrayList<>();
         Imgproc.findContours(morphed, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        pool.release(thresholded, morphed);
         return contours;
     }
 
@@ -290,110 +330,114 @@ public class ImageUtils {
     // https://docs.opencv.org/3.4/db/d8e/tutorial_threshold.html
     // But this one does with convincing results:
     // https://docs.opencv.org/4.x/d7/d4d/tutorial_py_thresholding.html
+    // The intermediate images and the thresholded output are leased from
+    // the shared MatPool; the caller may release the output back.
     public static Mat performThreshold(Mat pBGRInputROI, String pOutputFilenamePreamble,
                                 int pGrayscaleTarget, int pLowThreshold) {
 
         // We're on the grayscale path.
-        Mat grayROI = new Mat();
+        Mat grayROI = MatPool.getShared().lease(pBGRInputROI.rows(), pBGRInputROI.cols(), CvType.CV_8UC1);
         Imgproc.cvtColor(pBGRInputROI, grayROI, Imgproc.COLOR_BGR2GRAY);
 
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_GRAY.png", grayROI);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_GRAY.png");
-
-        Mat adjustedGray = adjustGrayscaleBrightness(grayROI, pGrayscaleTarget);
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_ADJ.png", adjustedGray);
-        RobotLogCommon.d(TAG, "Writing adjusted grayscale image " + pOutputFilenamePreamble + "_ADJ.png");
-
-        Mat morphed = new Mat();
-        Imgproc.erode(adjustedGray, morphed, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5)));
-        Imgproc.dilate(morphed, morphed, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5)));
-
-        // Remove noise by Gaussian blurring.
-        Mat blurred = new Mat();
-        Imgproc.GaussianBlur(morphed, blurred, new Size(5, 5), 0);
-
-        RobotLogCommon.d(TAG, "Threshold values: low " + pLowThreshold + ", high 255");
-
-        // Threshold the image: set pixels over the threshold value to white.
-        Mat thresholded = new Mat(); // output binary image
-        Imgproc.threshold(blurred, thresholded,
-                Math.abs(pLowThreshold),    // threshold value
-                255,   // white
-                pLowThreshold >= 0  ? Imgproc.THRESH_BINARY : Imgproc.THRESH_BINARY_INV); // thresholding type
-
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_ADJ_THR.png", thresholded);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_ADJ_THR.png");
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_GRAY.png", grayROI);
 
+        Mat thresholded = thresholdGray(grayROI, pOutputFilenamePreamble, pGrayscaleTarget, pLowThreshold, -1);
+        MatPool.getShared().release(grayROI);
         return thresholded;
     }
 
+    // Same as above but starting from a single-channel image, e.g. one
+    // channel of a BGR image.
     public static Mat performThresholdOnGray(Mat pGrayInputROI, String pOutputFilenamePreamble,
                                 int pGrayscaleTarget, int pLowThreshold) {
+        return thresholdGray(pGrayInputROI, pOutputFilenamePreamble, pGrayscaleTarget, pLowThreshold, -1);
+    }
 
-        Mat adjustedGray = adjustGrayscaleBrightness(pGrayInputROI, pGrayscaleTarget);
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_ADJ.png", adjustedGray);
-        RobotLogCommon.d(TAG, "Writing adjusted grayscale image " + pOutputFilenamePreamble + "_ADJ.png");
+    // Same as above but with the median brightness given, e.g. one
+    // measured on a downscaled copy of a larger image of which this ROI is
+    // a part, instead of measured on this ROI.
+    public static Mat performThresholdOnGray(Mat pGrayInputROI, String pOutputFilenamePreamble,
+                                             int pGrayscaleTarget, int pLowThreshold, int pMedianGray) {
+        return thresholdGray(pGrayInputROI, pOutputFilenamePreamble, pGrayscaleTarget, pLowThreshold, pMedianGray);
+    }
 
-        Mat morphed = new Mat();
-        Imgproc.erode(adjustedGray, morphed, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5)));
-        Imgproc.dilate(morphed, morphed, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5)));
+    // The common grayscale steps: adjust the brightness, perform
+    // morphological opening, blur, and threshold. Every intermediate Mat
+    // goes back to the pool; only the thresholded output is retained.
+    // A negative pMedianGray is measured on the input.
+    private static Mat thresholdGray(Mat pGrayInputROI, String pOutputFilenamePreamble,
+                                     int pGrayscaleTarget, int pLowThreshold, int pMedianGray) {
+        long startNanos = System.nanoTime();
+        MatPool pool = MatPool.getShared();
+        Mat adjustedGray = adjustGrayscaleBrightness(pGrayInputROI, pGrayscaleTarget,
+                pMedianGray >= 0 ? pMedianGray : getSingleChannelMedian(pGrayInputROI));
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_ADJ.png", adjustedGray);
+
+        Mat morphed = pool.leaseLike(adjustedGray);
+        Imgproc.erode(adjustedGray, morphed, getOpeningKernel());
+        Imgproc.dilate(morphed, morphed, getOpeningKernel());
+        pool.release(adjustedGray);
 
         // Remove noise by Gaussian blurring.
-        Mat blurred = new Mat();
+        Mat blurred = pool.leaseLike(morphed);
         Imgproc.GaussianBlur(morphed, blurred, new Size(5, 5), 0);
+        pool.release(morphed);
 
-        RobotLogCommon.d(TAG, "Threshold values: low " + pLowThreshold + ", high 255");
+        VisionLog.d(TAG, "Threshold values: low {}, high 255", pLowThreshold);
 
+        // Threshold the image: set pixels over the threshold value to white.
         // A negative threshold value indicates an inverse threshold.
-        Mat thresholded = new Mat(); // output binary image
+        Mat thresholded = pool.leaseLike(blurred); // output binary image
         Imgproc.threshold(blurred, thresholded,
-                Math.abs(pLowThreshold),
+                Math.abs(pLowThreshold),    // threshold value
                 255,   // white
-                pLowThreshold >= 0  ? Imgproc.THRESH_BINARY : Imgproc.THRESH_BINARY_INV);
+                pLowThreshold >= 0  ? Imgproc.THRESH_BINARY : Imgproc.THRESH_BINARY_INV); // thresholding type
+        pool.release(blurred);
 
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_ADJ_THR.png", thresholded);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_ADJ_THR.png");
+        Diagnostics.writeImage(Diagnostics.Level.SUMMARY, pOutputFilenamePreamble + "_ADJ_THR.png", thresholded);
 
+        StageTimings.record(StageTimings.Stage.THRESHOLD, startNanos);
         return thresholded;
     }
 
     // Get the median of any single-channel Mat.
     public static int getSingleChannelMedian(Mat pSingleChannelMat) {
+        return getSingleChannelMedian(pSingleChannelMat, new Mat());
+    }
 
-        if ((pSingleChannelMat.dims() != 2) || (!pSingleChannelMat.isContinuous()))
-            throw new AutonomousRobotException(TAG, "Expected a single-channel Mat");
+    // Get the median of those pixels in a single-channel Mat for which
+    // the mask is non-zero. An empty mask selects all pixels. If the mask
+    // selects no pixels at all, e.g. nothing in the ROI is within the depth
+    // range, the median of all the pixels is returned instead, so that a
+    // brightness adjustment based on it does nothing unusual.
+    public static int getSingleChannelMedian(Mat pSingleChannelMat, Mat pMask) {
 
-        byte[] byteBuff = new byte[(int) pSingleChannelMat.total()];
-        int[] intBuff = new int[(int) pSingleChannelMat.total()];
-        int buffLength = byteBuff.length;
-        pSingleChannelMat.get(0, 0, byteBuff);
+        if ((pSingleChannelMat.dims() != 2) || (pSingleChannelMat.channels() != 1))
+            throw new AutonomousRobotException(TAG, "Expected a single-channel Mat");
 
-        // !! Since Java does not have an unsigned char data type, the byte values
-        // may come out as negative. So we have to use a separate array of ints and
-        // copy in the bytes with the lower 8 bytes preserved.
-        // https://stackoverflow.com/questions/9581530/converting-from-byte-to-int-in-java
-        for (int i = 0; i < buffLength; i++)
-            intBuff[i] = Byte.toUnsignedInt(byteBuff[i]); // or byteBuff[i] & 0xFF;
+        // One pass to build a 256-bin histogram; no per-pixel copy or sort.
+        ChannelHistogram histogram = new ChannelHistogram(pSingleChannelMat, 0, pMask);
+        if (histogram.getPixelCount() == 0 && pMask != null && !pMask.empty()) {
+            VisionLog.d(TAG, "No pixels under the mask; using the median of the whole image");
+            histogram = new ChannelHistogram(pSingleChannelMat);
+        }
 
-        Arrays.sort(intBuff);
-        return (intBuff[buffLength / 2] + (intBuff[(buffLength / 2) - 1])) / 2;
+        return histogram.getMedian();
     }
 
-     // Sort contours by area in descending order.
+    // Sort contours by area in descending order. The area of each contour
+    // is computed once; to select only the largest few use ContourIndex.
     public static List<MatOfPoint> sortContours(List<MatOfPoint> pContours) {
-       List<MatOfPoint> sortedContours = pContours.stream()
-               .sorted(Comparator.comparing(Imgproc::contourArea))
-               .collect(Collectors.toList());
-
-       // .sorted(Comparator.reverseOrder(Imgproc::contourArea)) is ambiguous
-        Collections.reverse(sortedContours);
+        ContourIndex contourIndex = new ContourIndex(pContours);
+        List<MatOfPoint> sortedContours = new ArrayList<>(pContours.size());
+        for (int index : contourIndex.topK(pContours.size()))
+            sortedContours.add(pContours.get(index));
         return sortedContours;
     }
 
-    // From https://stackoverflow.com/questions/40669684/opencv-sorting-contours-by-area-in-java
-    // See lambda in https://stackoverflow.com/questions/24378646/finding-max-with-lambda-expression-in-java
     public static Optional<MatOfPoint> getLargestContour(List<MatOfPoint> pContours) {
-        return pContours.stream().max(Comparator.comparing(Imgproc::contourArea));
+        int largest = new ContourIndex(pContours).largest();
+        return largest == -1 ? Optional.empty() : Optional.of(pContours.get(largest));
     }
 
     public static Point getContourCentroid(MatOfPoint pOneContour) {
@@ -421,7 +465,7 @@ public class ImageUtils {
 	*/
 
         // tan(FOV / 2.0) = (pImageWidth / 2.0) [opposite] / adjacent [distance from the camera to the image in pseudo pixels]
-        RobotLogCommon.i(TAG, "Using horizontal field of view " + pCameraFieldOfView);
+        VisionLog.i(TAG, "Using horizontal field of view {}", pCameraFieldOfView);
         double halfFOVRadians = Math.toRadians(pCameraFieldOfView / 2.0);
         double distanceToImageInPseudoPixels = (pImageWidth / 2.0) / Math.tan(halfFOVRadians);
         double angleRadians = Math.atan(((pImageWidth / 2.0) - pObjectCentroidX) / distanceToImageInPseudoPixels);
@@ -429,15 +473,5 @@ public class ImageUtils {
         return Math.toDegrees(angleRadians);
     }
 
-    // Get the median of a color channel.
-    private static int getColorChannelMedian(Mat pChannel, Mat pMask) {
-        // If we're dealing with a non-masked image then we just take the median
-        // of all the pixels.
-        if (pMask.total() == 0) {
-            return getSingleChannelMedian(pChannel);
-        } else
-            throw new AutonomousRobotException(TAG, "getColorChannelMedian with mask is not supported at this time");
-    }
-
 }
 
@@ -7,15 +7,25 @@ public class JunctionParameters {
     public final VisionParameters.GrayParameters junctionPoleGrayscaleParameters;
     public final VisionParameters.HSVParameters junctionPoleHsvParameters;
     public final DepthParameters depthParameters;
+    public final int pyramidScale; // see RealSenseRecognition
 
     public JunctionParameters(VisionParameters.GrayParameters pJunctionCapGrayscaleParameters,
                               VisionParameters.GrayParameters pJunctionPoleGrayscaleParameters,
                               VisionParameters.HSVParameters pJunctionPoleHSVParameters,
                               DepthParameters pDepthParameters) {
+        this(pJunctionCapGrayscaleParameters, pJunctionPoleGrayscaleParameters, pJunctionPoleHSVParameters,
+                pDepthParameters, VisionParameters.NO_PYRAMID);
+    }
+
+    public JunctionParameters(VisionParameters.GrayParameters pJunctionCapGrayscaleParameters,
+                              VisionParameters.GrayParameters pJunctionPoleGrayscaleParameters,
+                              VisionParameters.HSVParameters pJunctionPoleHSVParameters,
+                              DepthParameters pDepthParameters, int pPyramidScale) {
         junctionCapGrayscaleParameters = pJunctionCapGrayscaleParameters;
         junctionPoleGrayscaleParameters = pJunctionPoleGrayscaleParameters;
         junctionPoleHsvParameters = pJunctionPoleHSVParameters;
         depthParameters = pDepthParameters;
+        pyramidScale = pPyramidScale;
     }
 
 }
\ No newline at end of file
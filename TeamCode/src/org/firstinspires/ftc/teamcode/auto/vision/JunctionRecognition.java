@@ -3,17 +3,16 @@ package org.firstinspires.ftc.teamcode.auto.vision;
 //!! IntelliJ only
 
 import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
-import org.firstinspires.ftc.ftcdevcommon.Pair;
-import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
 import org.firstinspires.ftc.ftcdevcommon.intellij.TimeStamp;
 import org.firstinspires.ftc.ftcdevcommon.intellij.WorkingDirectory;
 import org.firstinspires.ftc.teamcode.common.RobotConstants;
 import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
 import org.opencv.core.Mat;
-import org.opencv.imgcodecs.Imgcodecs;
 
 import java.io.IOException;
-import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 // For recognizing a PowerPlay junction and getting the angle and
 // distance.
@@ -38,57 +37,153 @@ public class JunctionRecognition {
                                              VisionParameters.ImageParameters pImageParameters,
                                              JunctionParameters pJunctionParameters,
                                              RobotConstantsPowerPlay.JunctionRecognitionPath pJunctionRecognitionPath) throws InterruptedException, IOException {
+        ImageFrame frame = pImageProvider.getFrame();
+        if (frame == null)
+            return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR); // don't crash
 
-        RobotLogCommon.d(TAG, "In JunctionRecognition.recognizeJunction");
+        try (FrameContext frameContext = new FrameContext(frame)) {
+            return recognizeJunction(frameContext, pD405Configuration, pCameraId, pImageParameters, pJunctionParameters, pJunctionRecognitionPath);
+        } finally {
+            frame.release();
+        }
+    }
 
-        // LocalDateTime requires Android minSdkVersion 26  public Pair<Mat, LocalDateTime> getImage() throws InterruptedException;
-        Pair<Mat, LocalDateTime> junctionImage = pImageProvider.getImage();
-        if (junctionImage == null)
-            return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR); // don't crash
+    // Same as above for a frame whose intermediate images may be shared
+    // with other recognitions of it (see FrameContext).
+    public RealSenseReturn recognizeJunction(FrameContext pFrameContext,
+                                             D405Configuration pD405Configuration,
+                                             RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                             VisionParameters.ImageParameters pImageParameters,
+                                             JunctionParameters pJunctionParameters,
+                                             RobotConstantsPowerPlay.JunctionRecognitionPath pJunctionRecognitionPath) throws IOException {
+
+        VisionLog.d(TAG, "In JunctionRecognition.recognizeJunction");
+
+        PreparedFrame prepared = prepareFrame(pFrameContext, pD405Configuration, pCameraId, pImageParameters, pJunctionParameters);
+        return recognizePath(pFrameContext, prepared, prepared.outputFilenamePreamble, pD405Configuration, pCameraId,
+                pJunctionParameters, pJunctionRecognitionPath);
+    }
+
+    // Runs all of pJunctionRecognitionPaths on one frame at the same time
+    // (see RecognitionEnsemble) and returns all of their results together
+    // with the combined decision. The ROI and the depth filtering are done
+    // once for all of the paths; each path writes its debugging images
+    // under its own name, e.g. ..._COLOR_CON.png.
+    public EnsembleReturn<RobotConstantsPowerPlay.JunctionRecognitionPath> recognizeJunction(ImageProvider pImageProvider,
+                                             D405Configuration pD405Configuration,
+                                             RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                             VisionParameters.ImageParameters pImageParameters,
+                                             JunctionParameters pJunctionParameters,
+                                             List<RobotConstantsPowerPlay.JunctionRecognitionPath> pJunctionRecognitionPaths) throws InterruptedException, IOException {
+        VisionLog.d(TAG, "In JunctionRecognition.recognizeJunction, ensemble of {}", pJunctionRecognitionPaths);
+
+        ImageFrame frame = pImageProvider.getFrame();
+        if (frame == null) { // don't crash
+            Map<RobotConstantsPowerPlay.JunctionRecognitionPath, RealSenseReturn> internalErrors = new LinkedHashMap<>();
+            for (RobotConstantsPowerPlay.JunctionRecognitionPath path : pJunctionRecognitionPaths)
+                internalErrors.put(path, new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_INTERNAL_ERROR));
+            return new EnsembleReturn<>(internalErrors);
+        }
+
+        try (FrameContext frameContext = new FrameContext(frame)) {
+            PreparedFrame prepared = prepareFrame(frameContext, pD405Configuration, pCameraId, pImageParameters, pJunctionParameters);
+            return RecognitionEnsemble.getShared().run(pJunctionRecognitionPaths,
+                    path -> recognizePath(frameContext, prepared, prepared.outputFilenamePreamble + "_" + path,
+                            pD405Configuration, pCameraId, pJunctionParameters, path));
+        } finally {
+            frame.release();
+        }
+    }
+
+    // The images and depth that all of the recognition paths start from.
+    private static class PreparedFrame {
+        private final String outputFilenamePreamble;
+        private final VisionParameters.ImageParameters imageParameters; // at the resolution of the frame
+        private final Mat imageROI;
+        private final DepthFrame depthFrame;
+        private final Mat depthImageROI;
+
+        private PreparedFrame(String pOutputFilenamePreamble, VisionParameters.ImageParameters pImageParameters,
+                              Mat pImageROI, DepthFrame pDepthFrame, Mat pDepthImageROI) {
+            outputFilenamePreamble = pOutputFilenamePreamble;
+            imageParameters = pImageParameters;
+            imageROI = pImageROI;
+            depthFrame = pDepthFrame;
+            depthImageROI = pDepthImageROI;
+        }
+    }
+
+    private PreparedFrame prepareFrame(FrameContext pFrameContext,
+                                       D405Configuration pD405Configuration,
+                                       RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                       VisionParameters.ImageParameters pImageParameters,
+                                       JunctionParameters pJunctionParameters) throws IOException {
+        ImageFrame frame = pFrameContext.getFrame();
 
         // The image may be RGB (from a camera) or BGR (OpenCV imread from a file).
         // OpenCV wants BGR; the possible conversion is taken care of in ImageUtils.preProcessImage.
-        Mat imgOriginal = junctionImage.first.clone();
-        String fileDate = TimeStamp.getLocalDateTimeStamp(junctionImage.second);
+        // The image is not copied: the recognition paths only read the ROI
+        // and draw on copies of it. The ROI, the depth-filtered ROI and
+        // their conversions belong to the frame context.
+        String fileDate = TimeStamp.getLocalDateTimeStamp(frame.timestamp);
         String outputFilenamePreamble = ImageUtils.createOutputFilePreamble(pImageParameters.image_source, workingDirectory, fileDate);
-        Mat imageROI = ImageUtils.preProcessImage(pImageProvider, imgOriginal, outputFilenamePreamble, pImageParameters);
+
+        // The ROI and the depth lookups at the resolution of the frame.
+        VisionParameters.ImageParameters imageParameters = pImageParameters.forFrame(frame);
+        Mat imageROI = pFrameContext.getImageROI(outputFilenamePreamble, imageParameters);
 
         // Subject the ROI to depth filtering on all paths.
-        short[] depthArray = RealSenseUtils.getDepthArrayFromFile(pImageParameters);
+        DepthFrame depthFrame = DepthFrame.fromFile(imageParameters, pD405Configuration, pCameraId);
 
-        Mat depthImageROI = RealSenseUtils.removeBackground(imageROI, pImageParameters,
-                pD405Configuration, depthArray,
+        Mat depthImageROI = pFrameContext.getDepthImageROI(imageROI, imageParameters, depthFrame,
                 pJunctionParameters.depthParameters.minDepth,
                 pJunctionParameters.depthParameters.maxDepth);
 
-        Imgcodecs.imwrite(outputFilenamePreamble + "_ROI_RANGE.png", depthImageROI);
-        RobotLogCommon.d(TAG, "Writing " + outputFilenamePreamble + "_ROI_RANGE.png");
+        Diagnostics.writeImage(Diagnostics.Level.SUMMARY, outputFilenamePreamble + "_ROI_RANGE.png", depthImageROI);
+        return new PreparedFrame(outputFilenamePreamble, imageParameters, imageROI, depthFrame, depthImageROI);
+    }
 
-        RobotLogCommon.d(TAG, "Recognition path " + pJunctionRecognitionPath);
+    private RealSenseReturn recognizePath(FrameContext pFrameContext, PreparedFrame pPrepared,
+                                          String pOutputFilenamePreamble,
+                                          D405Configuration pD405Configuration,
+                                          RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                          JunctionParameters pJunctionParameters,
+                                          RobotConstantsPowerPlay.JunctionRecognitionPath pJunctionRecognitionPath) {
+        VisionLog.d(TAG, "Recognition path {}", pJunctionRecognitionPath);
         switch (pJunctionRecognitionPath) {
             case GRAYSCALE -> {
                 //## Use the depth image ROI for grayscale recognition.
-                return realSenseRecognition.grayscalePath(depthImageROI,
+                return realSenseRecognition.grayscalePath(pFrameContext, pPrepared.depthImageROI,
                         pD405Configuration, pCameraId,
-                        depthArray, RobotConstantsPowerPlay.WIDTH_OF_JUNCTION,
-                        outputFilenamePreamble, pImageParameters,
-                        pJunctionParameters.junctionCapGrayscaleParameters, pJunctionParameters.depthParameters);
+                        pPrepared.depthFrame, RobotConstantsPowerPlay.WIDTH_OF_JUNCTION,
+                        pOutputFilenamePreamble, pPrepared.imageParameters,
+                        pJunctionParameters.junctionCapGrayscaleParameters, pJunctionParameters.depthParameters, pJunctionParameters.pyramidScale);
             }
             // Uses a combination of the red channel and the blue channel
             // to isolate the junction pole cap.
             case TWO_CHANNEL_GRAYSCALE -> {
-                return realSenseRecognition.twoChannelPath(depthImageROI,
+                return realSenseRecognition.twoChannelPath(pFrameContext, pPrepared.depthImageROI,
                         pD405Configuration, pCameraId,
-                        depthArray, RobotConstantsPowerPlay.WIDTH_OF_JUNCTION,
-                        outputFilenamePreamble,
-                        pImageParameters, pJunctionParameters.junctionCapGrayscaleParameters, pJunctionParameters.depthParameters);
+                        pPrepared.depthFrame, RobotConstantsPowerPlay.WIDTH_OF_JUNCTION,
+                        pOutputFilenamePreamble,
+                        pPrepared.imageParameters, pJunctionParameters.junctionCapGrayscaleParameters, pJunctionParameters.depthParameters, pJunctionParameters.pyramidScale);
             }
             case COLOR -> {
-                return realSenseRecognition.colorPath(imageROI,
+                return realSenseRecognition.colorPath(pFrameContext, pPrepared.imageROI,
+                        pD405Configuration, pCameraId,
+                        pPrepared.depthFrame, RobotConstantsPowerPlay.WIDTH_OF_JUNCTION,
+                        pOutputFilenamePreamble,
+                        pPrepared.imageParameters, pJunctionParameters.junctionPoleHsvParameters, pJunctionParameters.depthParameters, pJunctionParameters.pyramidScale);
+            }
+            case DEPTH -> {
+                Mat depthMask = pFrameContext.getDepthMask(pPrepared.imageParameters, pPrepared.depthFrame,
+                        pJunctionParameters.depthParameters.minDepth,
+                        pJunctionParameters.depthParameters.maxDepth);
+                return realSenseRecognition.depthPath(pPrepared.imageROI, depthMask,
                         pD405Configuration, pCameraId,
-                        depthArray, RobotConstantsPowerPlay.WIDTH_OF_JUNCTION,
-                        outputFilenamePreamble,
-                        pImageParameters, pJunctionParameters.junctionPoleHsvParameters, pJunctionParameters.depthParameters);
+                        pPrepared.depthFrame, RobotConstantsPowerPlay.WIDTH_OF_JUNCTION,
+                        pOutputFilenamePreamble,
+                        pPrepared.imageParameters, pJunctionParameters.depthParameters);
             }
             default -> throw new AutonomousRobotException(TAG, "Unrecognized recognition path");
         }
@@ -0,0 +1,198 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// A pool of Mats keyed by size and type, plus a pool of byte arrays keyed
+// by length, for the stages of the recognition pipeline. A stage leases
+// its output (or scratch) Mat from the pool and the consumer releases it
+// back when it is done, so that a frame loop at a fixed resolution makes
+// no native allocations once the pool has warmed up. Without the pool the
+// native memory behind each Mat is only reclaimed when the garbage
+// collector finalizes the Java wrapper.
+//
+// Leasing is optional: a Mat that is never released is simply collected
+// as before. Only whole, continuous Mats are pooled; submatrices (ROIs)
+// share their parent's memory and are ignored on release. The pool keeps
+// track of the Mats it has leased out, weakly so as not to keep them
+// alive, and rejects the release of a Mat that it did not lease or that
+// has already been released, which would otherwise hand the same Mat to
+// two stages at once.
+public class MatPool {
+
+    private static final String TAG = MatPool.class.getSimpleName();
+
+    // The number of idle Mats (or arrays) retained for each key. A Mat
+    // released beyond this is released natively; an array is left to the
+    // garbage collector.
+    public static final int DEFAULT_MAX_IDLE_PER_KEY = 8;
+
+    private static final MatPool sharedPool = new MatPool(DEFAULT_MAX_IDLE_PER_KEY);
+
+    private final int maxIdlePerKey;
+    private final Map<Long, ArrayDeque<Mat>> idleMats = new HashMap<>();
+    private final Map<Integer, ArrayDeque<byte[]>> idleByteArrays = new HashMap<>();
+    private final Set<Mat> leasedMats = Collections.newSetFromMap(new WeakHashMap<>()); // Mat compares by identity
+
+    private long hits;
+    private long misses;
+    private long releases;
+    private long discards;
+    private long rejects;
+    private int idleCount;
+
+    public MatPool(int pMaxIdlePerKey) {
+        maxIdlePerKey = pMaxIdlePerKey;
+    }
+
+    // The pool shared by all of the recognizers.
+    public static MatPool getShared() {
+        return sharedPool;
+    }
+
+    // Returns a Mat of the requested size and type. Its contents are
+    // undefined.
+    public synchronized Mat lease(int pRows, int pCols, int pType) {
+        ArrayDeque<Mat> idle = idleMats.get(key(pRows, pCols, pType));
+        Mat mat;
+        if (idle != null && !idle.isEmpty()) {
+            hits++;
+            idleCount--;
+            mat = idle.pop();
+        } else {
+            misses++;
+            mat = new Mat(pRows, pCols, pType);
+        }
+
+        leasedMats.add(mat);
+        return mat;
+    }
+
+    public Mat lease(Size pSize, int pType) {
+        return lease((int) pSize.height, (int) pSize.width, pType);
+    }
+
+    // Returns a Mat with the same size and type as pTemplate.
+    public Mat leaseLike(Mat pTemplate) {
+        return lease(pTemplate.rows(), pTemplate.cols(), pTemplate.type());
+    }
+
+    // Return a Mat to the pool. The key is taken from the Mat's current
+    // size and type, which may differ from those at the time of the lease
+    // if an OpenCV function reallocated it. Null Mats are ignored, as are
+    // Mats that are not currently leased from this pool; those are left
+    // untouched because their owner may still be using them.
+    public synchronized void release(Mat pMat) {
+        if (pMat == null)
+            return;
+
+        if (!leasedMats.remove(pMat)) {
+            rejects++;
+            VisionLog.d(TAG, "Ignored the release of a Mat that is not leased from the pool");
+            return;
+        }
+
+        if (pMat.empty() || pMat.isSubmatrix() || !pMat.isContinuous())
+            return;
+
+        releases++;
+        ArrayDeque<Mat> idle = idleMats.computeIfAbsent(key(pMat.rows(), pMat.cols(), pMat.type()), k -> new ArrayDeque<>());
+        if (idle.size() >= maxIdlePerKey) {
+            discards++;
+            pMat.release();
+            return;
+        }
+
+        idle.push(pMat);
+        idleCount++;
+    }
+
+    public void release(Mat... pMats) {
+        for (Mat mat : pMats)
+            release(mat);
+    }
+
+    // Returns a byte array of exactly the requested length. Its contents
+    // are undefined.
+    public synchronized byte[] leaseBytes(int pLength) {
+        ArrayDeque<byte[]> idle = idleByteArrays.get(pLength);
+        if (idle != null && !idle.isEmpty()) {
+            hits++;
+            idleCount--;
+            return idle.pop();
+        }
+
+        misses++;
+        return new byte[pLength];
+    }
+
+    public synchronized void releaseBytes(byte[] pBytes) {
+        if (pBytes == null)
+            return;
+
+        releases++;
+        ArrayDeque<byte[]> idle = idleByteArrays.computeIfAbsent(pBytes.length, k -> new ArrayDeque<>());
+        if (idle.size() >= maxIdlePerKey) {
+            discards++;
+            return;
+        }
+
+        idle.push(pBytes);
+        idleCount++;
+    }
+
+    // Drop all idle Mats and arrays; the statistics are not reset.
+    public synchronized void clear() {
+        idleMats.values().forEach(idle -> idle.forEach(Mat::release));
+        idleMats.clear();
+        idleByteArrays.clear();
+        idleCount = 0;
+    }
+
+    public synchronized Statistics getStatistics() {
+        return new Statistics(hits, misses, releases, discards, rejects, idleCount);
+    }
+
+    // rows and cols are well under 2^24; OpenCV types are under 2^16.
+    private static long key(int pRows, int pCols, int pType) {
+        return ((long) pRows << 40) | ((long) pCols << 16) | pType;
+    }
+
+    public static class Statistics {
+        public final long hits;
+        public final long misses;
+        public final long releases;
+        public final long discards;
+        public final long rejects;
+        public final int idle;
+
+        public Statistics(long pHits, long pMisses, long pReleases, long pDiscards, long pRejects, int pIdle) {
+            hits = pHits;
+            misses = pMisses;
+            releases = pReleases;
+            discards = pDiscards;
+            rejects = pRejects;
+            idle = pIdle;
+        }
+
+        public double getHitRatio() {
+            long leases = hits + misses;
+            return leases == 0 ? 0.0 : (double) hits / leases;
+        }
+
+        @Override
+        public String toString() {
+            return TAG + " hits " + hits + ", misses " + misses +
+                    ", hit ratio " + String.format("%.3f", getHitRatio()) +
+                    ", releases " + releases + ", discards " + discards + ", rejects " + rejects + ", idle " + idle;
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+// Keeps the N pixels nearest to the camera out of any number offered,
+// without an object per pixel: a bounded max-heap over parallel primitive
+// arrays whose root is the furthest of the pixels kept so far. Each offer
+// is O(log N) and the memory is fixed at N entries however large the
+// depth window.
+//
+// Depths are raw (unsigned 16-bit) sensor values; see DepthScaleTable.
+// Pixels are ordered by depth and, at equal depth, by their position in
+// row order, so the pixels kept - and their order after sort() - are the
+// same as the first N of a stable sort of all of the pixels by depth
+// when the pixels are offered in row order.
+public class NearestDepthPixels {
+
+    private final int capacity;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] depths;
+    private int size;
+    private int offered;
+    private boolean sorted;
+
+    // The result of aggregate(): the location (full image) and depth
+    // (raw units, not rounded) of the target pixel.
+    public static class Aggregate {
+        public final int x;
+        public final int y;
+        public final double rawDepth;
+        public final int count; // the number of pixels that contributed
+
+        public Aggregate(int pX, int pY, double pRawDepth, int pCount) {
+            x = pX;
+            y = pY;
+            rawDepth = pRawDepth;
+            count = pCount;
+        }
+    }
+
+    public NearestDepthPixels(int pCapacity) {
+        capacity = pCapacity;
+        xs = new int[pCapacity];
+        ys = new int[pCapacity];
+        depths = new int[pCapacity];
+    }
+
+    public void offer(int pX, int pY, int pRawDepth) {
+        offered++;
+        if (size < capacity) {
+            xs[size] = pX;
+            ys[size] = pY;
+            depths[size] = pRawDepth;
+            siftUp(size++);
+        } else if (before(pX, pY, pRawDepth, 0)) { // nearer than the furthest kept
+            xs[0] = pX;
+            ys[0] = pY;
+            depths[0] = pRawDepth;
+            siftDown(0, size);
+        }
+    }
+
+    // The number of pixels kept, at most the capacity.
+    public int size() {
+        return size;
+    }
+
+    // The number of pixels offered.
+    public int getOffered() {
+        return offered;
+    }
+
+    // Put the pixels kept in ascending order of depth (heapsort in place).
+    // No pixels may be offered afterwards.
+    public void sort() {
+        if (sorted)
+            return;
+
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        sorted = true;
+    }
+
+    // After sort(), index 0 is the nearest pixel.
+    public int getX(int pIndex) {
+        return xs[pIndex];
+    }
+
+    public int getY(int pIndex) {
+        return ys[pIndex];
+    }
+
+    public int getRawDepth(int pIndex) {
+        return depths[pIndex];
+    }
+
+    // Combine the pixels kept into one. MEAN averages the location and
+    // depth of all of them; MEDIAN takes the pixel of median depth (the
+    // mean of the two middle pixels for an even count); TRIMMED_MEAN
+    // averages those left after pTrimPercent of the pixels are dropped
+    // from each end of the depth order. Sorts the pixels if necessary.
+    public Aggregate aggregate(DepthParameters.Aggregation pAggregation, double pTrimPercent) {
+        if (size == 0)
+            return null;
+
+        sort();
+        return switch (pAggregation) {
+            case MEAN -> mean(0, size);
+            case MEDIAN -> size % 2 == 1 ? mean(size / 2, (size / 2) + 1) : mean((size / 2) - 1, (size / 2) + 1);
+            case TRIMMED_MEAN -> {
+                int trim = (int) ((size * pTrimPercent) / 100.0);
+                yield mean(trim, size - trim);
+            }
+        };
+    }
+
+    // Integer coordinates and raw depths accumulated exactly.
+    private Aggregate mean(int pFrom, int pTo) {
+        int accumulatedX = 0;
+        int accumulatedY = 0;
+        long accumulatedDepth = 0;
+        for (int i = pFrom; i < pTo; i++) {
+            accumulatedX += xs[i];
+            accumulatedY += ys[i];
+            accumulatedDepth += depths[i];
+        }
+
+        int count = pTo - pFrom;
+        return new Aggregate(accumulatedX / count, accumulatedY / count, (double) accumulatedDepth / count, count);
+    }
+
+    // True if the pixel is ordered before the one at pIndex.
+    private boolean before(int pX, int pY, int pRawDepth, int pIndex) {
+        if (pRawDepth != depths[pIndex])
+            return pRawDepth < depths[pIndex];
+        if (pY != ys[pIndex])
+            return pY < ys[pIndex];
+        return pX < xs[pIndex];
+    }
+
+    private boolean before(int pIndex1, int pIndex2) {
+        return before(xs[pIndex1], ys[pIndex1], depths[pIndex1], pIndex2);
+    }
+
+    private void siftUp(int pIndex) {
+        int child = pIndex;
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (!before(parent, child))
+                return;
+            swap(parent, child);
+            child = parent;
+        }
+    }
+
+    private void siftDown(int pIndex, int pSize) {
+        int parent = pIndex;
+        while (true) {
+            int largest = parent;
+            int left = (2 * parent) + 1;
+            int right = left + 1;
+            if (left < pSize && before(largest, left))
+                largest = left;
+            if (right < pSize && before(largest, right))
+                largest = right;
+            if (largest == parent)
+                return;
+            swap(parent, largest);
+            parent = largest;
+        }
+    }
+
+    private void swap(int pIndex1, int pIndex2) {
+        int x = xs[pIndex1];
+        xs[pIndex1] = xs[pIndex2];
+        xs[pIndex2] = x;
+        int y = ys[pIndex1];
+        ys[pIndex1] = ys[pIndex2];
+        ys[pIndex2] = y;
+        int depth = depths[pIndex1];
+        depths[pIndex1] = depths[pIndex2];
+        depths[pIndex2] = depth;
+    }
+
+}
@@ -2,11 +2,9 @@ package org.firstinspires.ftc.teamcode.auto.vision;
 
 //!! IntelliJ only
 
-import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
 import org.firstinspires.ftc.teamcode.common.RobotConstants;
 import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
 import org.opencv.core.*;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
@@ -18,44 +16,67 @@ public class RealSenseRecognition {
 
     private static final String TAG = RealSenseRecognition.class.getSimpleName();
 
-    public RealSenseReturn grayscalePath(Mat pDepthImageROI,
+    // The working images of each path are leased from the shared MatPool
+    // and released when the path has finished with them. The conversions
+    // and channels of the ROI that more than one path may need come from
+    // the FrameContext of the frame and belong to it.
+    private final MatPool pool = MatPool.getShared();
+
+    public RealSenseReturn grayscalePath(FrameContext pFrameContext, Mat pDepthImageROI,
                                          D405Configuration pD405Configuration,
                                          RobotConstantsPowerPlay.D405CameraId pCameraId,
-                                         short[] pDepthArray, float pObjectWidth,
+                                         DepthFrame pDepthFrame, float pObjectWidth,
                                          String pOutputFilenamePreamble,
                                          VisionParameters.ImageParameters pImageParameters,
                                          VisionParameters.GrayParameters pGrayParameters,
-                                         DepthParameters pDepthParameters) {
-        Mat thresholded = ImageUtils.performThreshold(pDepthImageROI, pOutputFilenamePreamble,
+                                         DepthParameters pDepthParameters, int pPyramidScale) {
+        if (pPyramidScale > VisionParameters.NO_PYRAMID)
+            return pyramidGrayPath(pDepthImageROI, pPyramidScale,
+                    (bgr, gray) -> Imgproc.cvtColor(bgr, gray, Imgproc.COLOR_BGR2GRAY),
+                    pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
+                    pOutputFilenamePreamble, pImageParameters, pGrayParameters, pDepthParameters);
+
+        Mat grayROI = pFrameContext.getGray(pDepthImageROI);
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_GRAY.png", grayROI);
+
+        Mat thresholded = ImageUtils.performThresholdOnGray(grayROI, pOutputFilenamePreamble,
                 pGrayParameters.median_target,
                 pGrayParameters.threshold_low);
 
-        return RealSenseUtils.getAngleAndDistance(pDepthImageROI, thresholded,
-                pD405Configuration, pCameraId, pDepthArray, pObjectWidth,
+        RealSenseReturn realSenseReturn = RealSenseUtils.getAngleAndDistance(pDepthImageROI, thresholded,
+                pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
                 pOutputFilenamePreamble, pImageParameters, pDepthParameters);
+        pool.release(thresholded);
+        return realSenseReturn;
     }
 
-    public RealSenseReturn redChannelPath(Mat pImageROI,
+    public RealSenseReturn redChannelPath(FrameContext pFrameContext, Mat pImageROI,
                                           D405Configuration pD405Configuration,
                                           RobotConstantsPowerPlay.D405CameraId pCameraId,
-                                          short[] pDepthArray, float pObjectWidth,
+                                          DepthFrame pDepthFrame, float pObjectWidth,
                                           String pOutputFilenamePreamble,
                                           VisionParameters.ImageParameters pImageParameters,
                                           VisionParameters.GrayParameters pGrayParameters,
-                                          DepthParameters pDepthParameters) {
+                                          DepthParameters pDepthParameters, int pPyramidScale) {
+        if (pPyramidScale > VisionParameters.NO_PYRAMID)
+            return pyramidGrayPath(pImageROI, pPyramidScale,
+                    (bgr, gray) -> Core.extractChannel(bgr, gray, 2),
+                    pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
+                    pOutputFilenamePreamble, pImageParameters, pGrayParameters, pDepthParameters);
 
-        ArrayList<Mat> channels = new ArrayList<>(3);
-        Core.split(pImageROI, channels); // red or blue channel. B = 0, G = 1, R = 2
+        // Extract the red channel only. B = 0, G = 1, R = 2
+        Mat redChannel = pFrameContext.getChannel(pImageROI, 2);
 
         // Write out the red channel as grayscale.
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_RED_CHANNEL.png", channels.get(2));
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_RED_CHANNEL.png");
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_RED_CHANNEL.png", redChannel);
 
-        Mat thresholded = ImageUtils.performThresholdOnGray(channels.get(2), pOutputFilenamePreamble, pGrayParameters.median_target, pGrayParameters.threshold_low);
+        Mat thresholded = ImageUtils.performThresholdOnGray(redChannel, pOutputFilenamePreamble, pGrayParameters.median_target, pGrayParameters.threshold_low);
 
-        return RealSenseUtils.getAngleAndDistance(pImageROI, thresholded,
-                pD405Configuration, pCameraId, pDepthArray, pObjectWidth,
+        RealSenseReturn realSenseReturn = RealSenseUtils.getAngleAndDistance(pImageROI, thresholded,
+                pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
                 pOutputFilenamePreamble, pImageParameters, pDepthParameters);
+        pool.release(thresholded);
+        return realSenseReturn;
     }
 
     //**TODO for the blue cone stack only - move to ConeStackRecognition.
@@ -64,95 +85,91 @@ public class RealSenseRecognition {
     // thresholded railing.
     // Ported from c++ Visual Studio project OpenCVTestbed2, GeneralTarget.cpp
     // function blue_cones().
-    public RealSenseReturn blueChannelPath(Mat pImageROI, Mat pDepthROI,
+    public RealSenseReturn blueChannelPath(FrameContext pFrameContext, Mat pImageROI, Mat pDepthROI,
                                            D405Configuration pD405Configuration,
                                            RobotConstantsPowerPlay.D405CameraId pCameraId,
-                                           short[] pDepthArray, float pObjectWidth,
+                                           DepthFrame pDepthFrame, float pObjectWidth,
                                            String pOutputFilenamePreamble,
                                            VisionParameters.ImageParameters pImageParameters,
                                            VisionParameters.HSVParameters pHSVParameters,
                                            VisionParameters.GrayParameters pGrayParameters,
                                            DepthParameters pDepthParameters) {
 
-        // Split the original image ROI into its BGR channels and use the
-        // the blue channel (lighter here than in a pure grayscale image)
-        // to get better contrast with the black railing.
-        ArrayList<Mat> originalImageChannels = new ArrayList<>(3);
-        Core.split(pImageROI, originalImageChannels); // red or blue channel. B = 0, G = 1, R = 2
+        // Extract the blue channel of the original image ROI and use it
+        // (lighter here than in a pure grayscale image) to get better
+        // contrast with the black railing. B = 0, G = 1, R = 2
+        Mat blueChannel = pFrameContext.getChannel(pImageROI, 0);
 
         // Write out the blue channel as grayscale.
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_BLUE_CHANNEL.png", originalImageChannels.get(0));
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_BLUE_CHANNEL.png");
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_BLUE_CHANNEL.png", blueChannel);
 
         // Use an inverted threshold on the blue channel to create a white image of the black railing.
-        Mat thresholded = ImageUtils.performThresholdOnGray(originalImageChannels.get(0), pOutputFilenamePreamble, pGrayParameters.median_target, pGrayParameters.threshold_low);
+        Mat thresholded = ImageUtils.performThresholdOnGray(blueChannel, pOutputFilenamePreamble, pGrayParameters.median_target, pGrayParameters.threshold_low);
 
         // Identify the contours.
         List<MatOfPoint> contours = new ArrayList<>();
         Imgproc.findContours(thresholded, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        pool.release(thresholded);
         if (contours.size() < 2) {
-            RobotLogCommon.d(TAG, "Did not find at least two contours");
+            VisionLog.d(TAG, "Did not find at least two contours");
             return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL); // don't crash
         }
 
         // Within the ROI draw all of the contours.
-        Mat contoursDrawn = pImageROI.clone();
-        drawShapeContours(contours, contoursDrawn); //**TODO move to ShapeDrawing - see PPV
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_CON.png", contoursDrawn);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_CON.png");
+        Diagnostics.writeOverlay(pOutputFilenamePreamble + "_CON.png", pImageROI,
+                overlay -> drawShapeContours(contours, overlay)); //**TODO move to ShapeDrawing - see PPV
 
         // Sort the contours and put rotated rectangles around the two largest.
         // Assume that these two rectangles enclose the bottom railing of the
         // field to the left and right of the cone stack.
 
-        List<MatOfPoint> sortedContours = ImageUtils.sortContours(contours);
+        ContourIndex contourIndex = new ContourIndex(contours);
+        int[] twoLargest = contourIndex.topK(2);
         // See https://stackoverflow.com/questions/25837934/matofpoint-to-matofpoint2f-size-opencv-java
         MatOfPoint2f temp = new MatOfPoint2f();
-        temp.fromList(sortedContours.get(0).toList());
+        temp.fromList(contourIndex.getContour(twoLargest[0]).toList());
         RotatedRect rotatedRect1 = Imgproc.minAreaRect(temp);
         Point[] rect_points_1 = new Point[4];
         rotatedRect1.points(rect_points_1);
 
         temp = new MatOfPoint2f();
-        temp.fromList(sortedContours.get(1).toList());
+        temp.fromList(contourIndex.getContour(twoLargest[1]).toList());
         RotatedRect rotatedRect2 = Imgproc.minAreaRect(temp);
         Point[] rect_points_2 = new Point[4];
         rotatedRect2.points(rect_points_2);
 
         // Draw the rotated rectangles.
-        Mat rotatedRectangles = pImageROI.clone();
-        List<MatOfPoint> rrContours = new ArrayList<>(); //**TODO move to ShapeDrawing
-        rrContours.add(new MatOfPoint(rect_points_1));
-        Imgproc.drawContours(rotatedRectangles, rrContours, 0, new Scalar(0, 255, 0), -1);
+        Diagnostics.writeOverlay(pOutputFilenamePreamble + "_RRECT.png", pImageROI, overlay -> {
+            List<MatOfPoint> rrContours = new ArrayList<>(); //**TODO move to ShapeDrawing
+            rrContours.add(new MatOfPoint(rect_points_1));
+            Imgproc.drawContours(overlay, rrContours, 0, new Scalar(0, 255, 0), -1);
 
-        rrContours.clear();
-        rrContours.add(new MatOfPoint(rect_points_2));
-        Imgproc.drawContours(rotatedRectangles, rrContours, 0, new Scalar(0, 255, 0), -1);
-
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_RRECT.png", rotatedRectangles);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_RRECT.png");
+            rrContours.clear();
+            rrContours.add(new MatOfPoint(rect_points_2));
+            Imgproc.drawContours(overlay, rrContours, 0, new Scalar(0, 255, 0), -1);
+        });
 
         double angle1 = rotatedRect1.angle;
         double angle2 =  rotatedRect2.angle;
-        RobotLogCommon.d(TAG, "Raw rotatedRect1.angle " + angle1);
-        RobotLogCommon.d(TAG, "Raw rotatedRect2.angle " + angle2);
+        VisionLog.d(TAG, "Raw rotatedRect1.angle {}", angle1);
+        VisionLog.d(TAG, "Raw rotatedRect2.angle {}", angle2);
 
         // The two rectangles must be within 5 degrees of horizontal.
         // https://stackoverflow.com/questions/15956124/minarearect-angles-unsure-about-the-angle-returned/21427814#21427814
         if (rotatedRect1.size.width <= rotatedRect1.size.height) {
-            RobotLogCommon.d(TAG, "Rotated rectangle 1 is not horizontal");
+            VisionLog.d(TAG, "Rotated rectangle 1 is not horizontal");
             return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL); // don't crash
         } else
             angle1 += 90;
 
         if (rotatedRect2.size.width <= rotatedRect2.size.height) {
-            RobotLogCommon.d(TAG, "Rotated rectangle 2 is not horizontal");
+            VisionLog.d(TAG, "Rotated rectangle 2 is not horizontal");
             return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL); // don't crash
         } else
             angle2 += 90;
 
         if (angle1 < 85.0 || angle1 > 95.0 || angle2 < 85.0 || angle2 > 95.0) {
-            RobotLogCommon.d(TAG, "One of the two largest contours is at an angle of > +-5 degrees");
+            VisionLog.d(TAG, "One of the two largest contours is at an angle of > +-5 degrees");
             return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL);
         }
 
@@ -161,23 +178,21 @@ public class RealSenseRecognition {
         // The sorted array is in ascending order.
         Point[] rect_points_1_sorted_x = rect_points_1.clone();
         Arrays.sort(rect_points_1_sorted_x, Comparator.comparing(point -> point.x));
-        RobotLogCommon.d(TAG, "rotatedRect1 min x " + rect_points_1_sorted_x[0].x +
-                ", max " + rect_points_1_sorted_x[3].x);
+        VisionLog.d(TAG, "rotatedRect1 min x {}, max {}", rect_points_1_sorted_x[0].x, rect_points_1_sorted_x[3].x);
 
         Point[] rect_points_2_sorted_x = rect_points_2.clone();
         Arrays.sort(rect_points_2_sorted_x, Comparator.comparing(point -> point.x)); // ascending
-        RobotLogCommon.d(TAG, "rotatedRect2 min x " + rect_points_2_sorted_x[0].x +
-                ", max " + rect_points_2_sorted_x[3].x);
+        VisionLog.d(TAG, "rotatedRect2 min x {}, max {}", rect_points_2_sorted_x[0].x, rect_points_2_sorted_x[3].x);
 
         Point maxXOfLeftSide;
         Point minXOfRightSide;
         double widthOfConeStack;
         if (rect_points_1_sorted_x[3].x < rect_points_2_sorted_x[0].x) {
-            RobotLogCommon.d(TAG, "rotatedRect1 is to the left of rotatedRect2");
+            VisionLog.d(TAG, "rotatedRect1 is to the left of rotatedRect2");
             maxXOfLeftSide = rect_points_1_sorted_x[3];
             minXOfRightSide = rect_points_2_sorted_x[0];
         } else {
-            RobotLogCommon.d(TAG, "rotatedRect2 is to the left of rotatedRect1");
+            VisionLog.d(TAG, "rotatedRect2 is to the left of rotatedRect1");
             maxXOfLeftSide = rect_points_2_sorted_x[3];
             minXOfRightSide = rect_points_1_sorted_x[0];
         }
@@ -187,10 +202,10 @@ public class RealSenseRecognition {
         // off the rotated rectangle on the right is the width of the cone
         // stack.
         widthOfConeStack = minXOfRightSide.x - maxXOfLeftSide.x;
-        RobotLogCommon.d(TAG, "Pixel width of cone stack " + widthOfConeStack);
+        VisionLog.d(TAG, "Pixel width of cone stack {}", widthOfConeStack);
 
         double pixelsPerInch = widthOfConeStack / 4.0f;
-        RobotLogCommon.d(TAG, "Pixels per inch " + pixelsPerInch);
+        VisionLog.d(TAG, "Pixels per inch {}", pixelsPerInch);
 
         // Draw a pseudo bounding box on top of the cones (pseudo because
         // there is no OpenCV contour for the cones - we have inferred it).
@@ -200,24 +215,22 @@ public class RealSenseRecognition {
         // rectangles' Points by their y-coordinates.
         Point[] rect_points_1_sorted_y = rect_points_1.clone();
         Arrays.sort(rect_points_1_sorted_y, Comparator.comparing(point -> point.y)); // ascending
-        RobotLogCommon.d(TAG, "rotatedRect1 max y " + rect_points_1_sorted_y[3].y);
+        VisionLog.d(TAG, "rotatedRect1 max y {}", rect_points_1_sorted_y[3].y);
 
         Point[] rect_points_2_sorted_y = rect_points_2.clone();
         Arrays.sort(rect_points_2_sorted_y, Comparator.comparing(point -> point.y)); // ascending
-        RobotLogCommon.d(TAG, "rotatedRect2 max y " + rect_points_2_sorted_y[3].x);
+        VisionLog.d(TAG, "rotatedRect2 max y {}", rect_points_2_sorted_y[3].x);
 
         double maxY = rect_points_1_sorted_y[3].y > rect_points_2_sorted_y[3].y ?
                 rect_points_1_sorted_y[3].y : rect_points_2_sorted_y[3].y;
 
-        Mat drawBoundingBox = pImageROI.clone();
         Point upperLeft = new Point(maxXOfLeftSide.x,  maxY - 100);
         Point lowerRight = new Point(minXOfRightSide.x, maxY);
         Rect boundingBox = new Rect(upperLeft, lowerRight);
 
         //**TODO put into ShapeDrawing.
-        Imgproc.rectangle(drawBoundingBox, boundingBox, new Scalar(0,255,0) ,2);
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_BRECT.png", drawBoundingBox);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_BRECT.png");
+        Diagnostics.writeOverlay(pOutputFilenamePreamble + "_BRECT.png", pImageROI,
+                overlay -> Imgproc.rectangle(overlay, boundingBox, new Scalar(0,255,0) ,2));
 
 
 
@@ -228,71 +241,249 @@ public class RealSenseRecognition {
         // must be within xx% of the bottom of the image and within yy%
         // of each other.
 
-        //**TODO TEMP until the rest of the logic is implemented.
-        return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_SUCCESSFUL);
+        //**TODO TEMP until the rest of the logic is implemented. There is
+        // no angle or distance yet, so the path cannot claim success.
+        return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL);
     }
 
     // Analyzes a grayscale image using a combination of the red channel and the blue channel.
-    public RealSenseReturn twoChannelPath(Mat pDepthImageROI,
+    public RealSenseReturn twoChannelPath(FrameContext pFrameContext, Mat pDepthImageROI,
                                           D405Configuration pD405Configuration,
                                           RobotConstantsPowerPlay.D405CameraId pCameraId,
-                                          short[] pDepthArray, float pObjectWidth,
+                                          DepthFrame pDepthFrame, float pObjectWidth,
                                           String pOutputFilenamePreamble,
                                           VisionParameters.ImageParameters pImageParameters,
                                           VisionParameters.GrayParameters pGrayParameters,
-                                          DepthParameters pDepthParameters) {
+                                          DepthParameters pDepthParameters, int pPyramidScale) {
+        if (pPyramidScale > VisionParameters.NO_PYRAMID)
+            return pyramidGrayPath(pDepthImageROI, pPyramidScale, this::combineRedAndBlue,
+                    pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
+                    pOutputFilenamePreamble, pImageParameters, pGrayParameters, pDepthParameters);
 
         // Remove distractions before we convert to grayscale: depending on the
         // current alliance set the red or blue channel pixels to black.
-        ArrayList<Mat> channels = new ArrayList<>(3);
-        Core.split(pDepthImageROI, channels); // red or blue channel. B = 0, G = 1, R = 2
+        // Extract the red and blue channels only. B = 0, G = 1, R = 2
+        Mat redChannel = pFrameContext.getChannel(pDepthImageROI, 2);
+        Mat blueChannel = pFrameContext.getChannel(pDepthImageROI, 0);
 
         // Use both the red and blue channels.
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_RED_CHANNEL.png", channels.get(2));
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_RED_CHANNEL.png");
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_RED_CHANNEL.png", redChannel);
 
         // Write out the blue channel also.
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_BLUE_CHANNEL.png", channels.get(0));
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_BLUE_CHANNEL.png");
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_BLUE_CHANNEL.png", blueChannel);
 
         // Use logical 'or' to isolate the dark junction pole cap.
-        Mat combined = new Mat();
-        Core.bitwise_or(channels.get(0), channels.get(2), combined);
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_COMBINED.png", combined);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_COMBINED.png");
+        Mat combined = pool.leaseLike(redChannel);
+        Core.bitwise_or(blueChannel, redChannel, combined);
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_COMBINED.png", combined);
 
         Mat thresholded = ImageUtils.performThresholdOnGray(combined, pOutputFilenamePreamble, pGrayParameters.median_target, pGrayParameters.threshold_low);
+        pool.release(combined);
 
-        return RealSenseUtils.getAngleAndDistance(pDepthImageROI, thresholded,
-                pD405Configuration, pCameraId, pDepthArray, pObjectWidth,
+        RealSenseReturn realSenseReturn = RealSenseUtils.getAngleAndDistance(pDepthImageROI, thresholded,
+                pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
                 pOutputFilenamePreamble, pImageParameters, pDepthParameters);
+        pool.release(thresholded);
+        return realSenseReturn;
     }
 
     // Analyze a color image.
-    public RealSenseReturn colorPath(Mat pImageROI,
+    public RealSenseReturn colorPath(FrameContext pFrameContext, Mat pImageROI,
                                      D405Configuration pD405Configuration,
                                      RobotConstantsPowerPlay.D405CameraId pCameraId,
-                                     short[] pDepthArray, float pObjectWidth,
+                                     DepthFrame pDepthFrame, float pObjectWidth,
                                      String pOutputFilenamePreamble,
                                      VisionParameters.ImageParameters pImageParameters,
                                      VisionParameters.HSVParameters pHSVParameters,
-                                     DepthParameters pDepthParameters) {
+                                     DepthParameters pDepthParameters, int pPyramidScale) {
+        if (pPyramidScale > VisionParameters.NO_PYRAMID)
+            return pyramidColorPath(pImageROI, pPyramidScale,
+                    pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
+                    pOutputFilenamePreamble, pImageParameters, pHSVParameters, pDepthParameters);
 
-        Mat thresholded = ImageUtils.applyInRange(pImageROI, pOutputFilenamePreamble, pHSVParameters);
+        Mat thresholded = ImageUtils.applyInRange(pImageROI, pFrameContext.getHSV(pImageROI),
+                pOutputFilenamePreamble, pHSVParameters);
 
         // Clean up the thresholded image via morphological opening.
-        Mat morphed = new Mat();
-        Imgproc.erode(thresholded, morphed, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5)));
-        Imgproc.dilate(morphed, morphed, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5)));
+        Mat morphed = pool.leaseLike(thresholded);
+        Imgproc.erode(thresholded, morphed, ImageUtils.getOpeningKernel());
+        Imgproc.dilate(morphed, morphed, ImageUtils.getOpeningKernel());
+
+        RealSenseReturn realSenseReturn = RealSenseUtils.getAngleAndDistance(pImageROI, thresholded,
+                pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
+                pOutputFilenamePreamble, pImageParameters, pDepthParameters);
+        pool.release(thresholded, morphed);
+        return realSenseReturn;
+    }
+
+    // Uses no color or brightness at all: the object is the largest blob
+    // of pixels within the depth range (see RealSenseUtils.getDepthMask),
+    // cleaned up by morphological opening. Works only when nothing else in
+    // the ROI is at the same depth, but needs no lighting-dependent
+    // thresholds.
+    public RealSenseReturn depthPath(Mat pImageROI, Mat pDepthMask,
+                                     D405Configuration pD405Configuration,
+                                     RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                     DepthFrame pDepthFrame, float pObjectWidth,
+                                     String pOutputFilenamePreamble,
+                                     VisionParameters.ImageParameters pImageParameters,
+                                     DepthParameters pDepthParameters) {
+        Mat morphed = pool.leaseLike(pDepthMask);
+        Imgproc.erode(pDepthMask, morphed, ImageUtils.getOpeningKernel());
+        Imgproc.dilate(morphed, morphed, ImageUtils.getOpeningKernel());
+        Diagnostics.writeImage(Diagnostics.Level.SUMMARY, pOutputFilenamePreamble + "_DEPTH_MASK.png", morphed);
 
-        return RealSenseUtils.getAngleAndDistance(pImageROI, thresholded,
-                pD405Configuration, pCameraId, pDepthArray, pObjectWidth,
+        RealSenseReturn realSenseReturn = RealSenseUtils.getAngleAndDistance(pImageROI, morphed,
+                pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
                 pOutputFilenamePreamble, pImageParameters, pDepthParameters);
+        pool.release(morphed);
+        return realSenseReturn;
+    }
+
+    //## Coarse-to-fine ("pyramid") recognition. The ROI is downscaled by
+    // 2 or 4 (see the optional <pyramid> element of the parameters XML),
+    // thresholded, and the bounding box of the largest contour, mapped back
+    // to full resolution and padded, becomes the search area for the usual
+    // full-resolution threshold and getAngleAndDistance. The brightness
+    // medians measured on the downscaled ROI stand in for those of the
+    // full ROI so that the box is thresholded at the same levels as the
+    // whole ROI would have been.
+
+    // Full-resolution pixels added around the mapped box beyond one coarse
+    // pixel on each side: enough for the 5x5 opening kernel and the blur
+    // not to eat into the edge of the object.
+    private static final int PYRAMID_PADDING = 8;
+
+    // Produces the single-channel image a grayscale path thresholds from a
+    // BGR image of the same size.
+    private interface GrayPlane {
+        void extract(Mat pBGR, Mat pGrayOut);
+    }
+
+    private RealSenseReturn pyramidGrayPath(Mat pImageROI, int pPyramidScale, GrayPlane pGrayPlane,
+                                            D405Configuration pD405Configuration,
+                                            RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                            DepthFrame pDepthFrame, float pObjectWidth,
+                                            String pOutputFilenamePreamble,
+                                            VisionParameters.ImageParameters pImageParameters,
+                                            VisionParameters.GrayParameters pGrayParameters,
+                                            DepthParameters pDepthParameters) {
+        Mat coarseROI = downscale(pImageROI, pPyramidScale);
+        Mat coarseGray = pool.lease(coarseROI.rows(), coarseROI.cols(), CvType.CV_8UC1);
+        pGrayPlane.extract(coarseROI, coarseGray);
+        pool.release(coarseROI);
+
+        int medianGray = ImageUtils.getSingleChannelMedian(coarseGray);
+        Mat coarseThresholded = ImageUtils.performThresholdOnGray(coarseGray, pOutputFilenamePreamble + "_COARSE",
+                pGrayParameters.median_target, pGrayParameters.threshold_low, medianGray);
+        pool.release(coarseGray);
+
+        Rect box = findCandidateBox(coarseThresholded, pPyramidScale, pImageROI);
+        pool.release(coarseThresholded);
+        if (box == null)
+            return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL); // don't crash
+
+        Mat boxROI = pImageROI.submat(box);
+        Mat boxGray = pool.lease(boxROI.rows(), boxROI.cols(), CvType.CV_8UC1);
+        pGrayPlane.extract(boxROI, boxGray);
+        Mat thresholded = ImageUtils.performThresholdOnGray(boxGray, pOutputFilenamePreamble,
+                pGrayParameters.median_target, pGrayParameters.threshold_low, medianGray);
+        pool.release(boxGray);
+
+        RealSenseReturn realSenseReturn = RealSenseUtils.getAngleAndDistance(boxROI, thresholded,
+                pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
+                pOutputFilenamePreamble, boxParameters(pImageParameters, box), pDepthParameters);
+        pool.release(thresholded);
+        return realSenseReturn;
+    }
+
+    private RealSenseReturn pyramidColorPath(Mat pImageROI, int pPyramidScale,
+                                             D405Configuration pD405Configuration,
+                                             RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                             DepthFrame pDepthFrame, float pObjectWidth,
+                                             String pOutputFilenamePreamble,
+                                             VisionParameters.ImageParameters pImageParameters,
+                                             VisionParameters.HSVParameters pHSVParameters,
+                                             DepthParameters pDepthParameters) {
+        Mat coarseROI = downscale(pImageROI, pPyramidScale);
+        Mat hsvBuffer = pool.lease(coarseROI.rows(), coarseROI.cols(), CvType.CV_8UC3);
+        Mat coarseThresholded = pool.lease(coarseROI.rows(), coarseROI.cols(), CvType.CV_8UC1);
+        HSVThreshold.Result levels = HSVThreshold.threshold(coarseROI, pHSVParameters, hsvBuffer, coarseThresholded);
+        Diagnostics.writeImage(Diagnostics.Level.FULL, pOutputFilenamePreamble + "_COARSE_ADJ_THR.png", coarseThresholded);
+        pool.release(coarseROI, hsvBuffer);
+
+        Rect box = findCandidateBox(coarseThresholded, pPyramidScale, pImageROI);
+        pool.release(coarseThresholded);
+        if (box == null)
+            return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL); // don't crash
+
+        Mat boxROI = pImageROI.submat(box);
+        Mat thresholded = ImageUtils.applyInRange(boxROI, pOutputFilenamePreamble, pHSVParameters, levels);
+
+        RealSenseReturn realSenseReturn = RealSenseUtils.getAngleAndDistance(boxROI, thresholded,
+                pD405Configuration, pCameraId, pDepthFrame, pObjectWidth,
+                pOutputFilenamePreamble, boxParameters(pImageParameters, box), pDepthParameters);
+        pool.release(thresholded);
+        return realSenseReturn;
+    }
+
+    // The ROI shrunk by pPyramidScale in each dimension, leased from the
+    // pool. INTER_AREA averages each block of pixels, so a thin object
+    // survives better than it would with sampling.
+    private Mat downscale(Mat pImageROI, int pPyramidScale) {
+        Mat coarseROI = pool.lease(pImageROI.rows() / pPyramidScale, pImageROI.cols() / pPyramidScale, pImageROI.type());
+        Imgproc.resize(pImageROI, coarseROI, coarseROI.size(), 0, 0, Imgproc.INTER_AREA);
+        return coarseROI;
+    }
+
+    // The bounding box of the largest contour in the coarse thresholded
+    // image mapped back to the full-resolution ROI, padded and clipped to
+    // it, or null if there are no contours.
+    private static Rect findCandidateBox(Mat pCoarseThresholded, int pPyramidScale, Mat pImageROI) {
+        List<MatOfPoint> contours = new ArrayList<>();
+        Imgproc.findContours(pCoarseThresholded, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        ContourIndex contourIndex = new ContourIndex(contours);
+        int largestContourIndex = contourIndex.largest();
+        if (largestContourIndex == -1) {
+            VisionLog.d(TAG, "No contours found at 1/{} scale", pPyramidScale);
+            return null;
+        }
+
+        Rect coarseBox = contourIndex.getBoundingRect(largestContourIndex);
+        int padding = 2 * pPyramidScale + PYRAMID_PADDING;
+        int left = Math.max(coarseBox.x * pPyramidScale - padding, 0);
+        int top = Math.max(coarseBox.y * pPyramidScale - padding, 0);
+        int right = Math.min((coarseBox.x + coarseBox.width) * pPyramidScale + padding, pImageROI.cols());
+        int bottom = Math.min((coarseBox.y + coarseBox.height) * pPyramidScale + padding, pImageROI.rows());
+        Rect box = new Rect(left, top, right - left, bottom - top);
+        VisionLog.d(TAG, "Candidate box in the ROI at 1/{} scale: x {}, y {}, width {}, height {}",
+                pPyramidScale, box.x, box.y, box.width, box.height);
+        return box;
+    }
+
+    // The image parameters with the ROI narrowed to pBox, which is relative
+    // to the original ROI, so that getAngleAndDistance finds the depth
+    // values for the full image.
+    private static VisionParameters.ImageParameters boxParameters(VisionParameters.ImageParameters pImageParameters, Rect pBox) {
+        Rect imageROI = pImageParameters.image_roi;
+        return new VisionParameters.ImageParameters(pImageParameters.image_source,
+                pImageParameters.resolution_width, pImageParameters.resolution_height,
+                new Rect(imageROI.x + pBox.x, imageROI.y + pBox.y, pBox.width, pBox.height));
+    }
+
+    // The logical 'or' of the red and blue channels (see twoChannelPath).
+    private void combineRedAndBlue(Mat pBGR, Mat pCombinedOut) {
+        Mat redChannel = pool.lease(pBGR.rows(), pBGR.cols(), CvType.CV_8UC1);
+        Mat blueChannel = pool.leaseLike(redChannel);
+        Core.extractChannel(pBGR, redChannel, 2);
+        Core.extractChannel(pBGR, blueChannel, 0);
+        Core.bitwise_or(blueChannel, redChannel, pCombinedOut);
+        pool.release(redChannel, blueChannel);
     }
 
     // The parameters pContours is the output of a call to findContours.
     private static void drawShapeContours(List<MatOfPoint> pContours, Mat pImageOut) {
-        RobotLogCommon.d(TAG, "drawContours: number of contours " + pContours.size());
+        VisionLog.d(TAG, "drawContours: number of contours {}", pContours.size());
         Scalar color = new Scalar(0, 255, 0); // BGR green - good against dark background
 
         for (int i = 0; i < pContours.size(); i++) {
@@ -1,45 +1,86 @@
 package org.firstinspires.ftc.teamcode.auto.vision;
 
-import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
 import org.firstinspires.ftc.ftcdevcommon.intellij.WorkingDirectory;
 import org.firstinspires.ftc.teamcode.common.RobotConstants;
 import org.firstinspires.ftc.teamcode.common.RobotConstantsPowerPlay;
 import org.opencv.core.*;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class RealSenseUtils {
 
     private static final String TAG = RealSenseUtils.class.getSimpleName();
     private static final double INCHES_PER_METER = 39.37;
+    private static final Scalar DEPTH_BACKGROUND = new Scalar(0xD0, 0xD0, 0xD0); // BGR gray
+
+    // Map the depth file that corresponds to the color image file into
+    // memory. The file holds one 16-bit little-endian value per pixel of
+    // the full image in row order; the returned buffer is a read-only view
+    // of the mapped file, so reading a frame neither copies it nor
+    // allocates it on the heap. The mapping stays valid after the file is
+    // closed and is released when the buffer is no longer referenced.
+    public static ShortBuffer getDepthBufferFromFile(VisionParameters.ImageParameters pImageParameters) throws IOException {
+        return mapDepthFile(getDepthFilename(pImageParameters.image_source),
+                pImageParameters.resolution_width, pImageParameters.resolution_height);
+    }
 
-    // Read the depth file that corresponds to the color image file.
-    // The file is a collection of bytes; read them into an array
-    // and then convert to an array of shorts.
-    public static short[] getDepthArrayFromFile(VisionParameters.ImageParameters pImageParameters) throws IOException {
-        String filenameWithoutExt = pImageParameters.image_source.substring(0, pImageParameters.image_source.lastIndexOf('.'));
-        String depthFilename = WorkingDirectory.getWorkingDirectory() + RobotConstants.imageDir + filenameWithoutExt + ".depth";
-        byte[] depth8UC1 = new byte[pImageParameters.resolution_width * pImageParameters.resolution_height * 2]; // 16 bits per depth location
-        try (InputStream output = new FileInputStream(depthFilename)) {
-            try (DataInputStream depthInputStream =
-                         new DataInputStream(output)) {
-                depthInputStream.read(depth8UC1);
-            }
+    // As above, for a .depth file given by name.
+    public static ShortBuffer mapDepthFile(String pDepthFilename, int pWidth, int pHeight) throws IOException {
+        return mapDepthBytes(pDepthFilename, pWidth, pHeight).asShortBuffer();
+    }
+
+    // The mapped bytes of a .depth file in little-endian order; see
+    // DepthFrame.
+    public static ByteBuffer mapDepthBytes(String pDepthFilename, int pWidth, int pHeight) throws IOException {
+        long startNanos = System.nanoTime();
+        long expectedBytes = (long) pWidth * pHeight * 2; // 16 bits per depth location
+        ByteBuffer depthBytes;
+        try (FileChannel depthChannel = FileChannel.open(Paths.get(pDepthFilename), StandardOpenOption.READ)) {
+            if (depthChannel.size() != expectedBytes)
+                throw new AutonomousRobotException(TAG, "Depth file " + pDepthFilename + " has " + depthChannel.size() +
+                        " bytes, expected " + expectedBytes + " for resolution " + pWidth + "x" + pHeight);
+
+            depthBytes = depthChannel.map(FileChannel.MapMode.READ_ONLY, 0, expectedBytes).order(ByteOrder.LITTLE_ENDIAN);
         }
 
-        // Convert an array of bytes to an array of shorts.
-        short[] depth16UC1 = new short[depth8UC1.length / 2]; // length is in bytes
-        ByteBuffer.wrap(depth8UC1).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(depth16UC1);
-        return depth16UC1;
+        StageTimings.record(StageTimings.Stage.DEPTH_READ, startNanos);
+        return depthBytes;
+    }
+
+    // The depth file that corresponds to a color image file has the same
+    // name with the extension .depth. A relative image source is in the
+    // images directory; an absolute one, e.g. from batch mode, is used as is.
+    public static String getDepthFilename(String pImageSource) {
+        String filenameWithoutExt = pImageSource.substring(0, pImageSource.lastIndexOf('.'));
+        if (Paths.get(pImageSource).isAbsolute())
+            return filenameWithoutExt + ".depth";
+        return WorkingDirectory.getWorkingDirectory() + RobotConstants.imageDir + filenameWithoutExt + ".depth";
+    }
+
+    // The depth file to read for a color image file: the tiled depth file
+    // (see TiledDepthFile), which has the same name with the extension
+    // .tdepth, if there is one, otherwise the .depth file. A capture bundle
+    // (see CaptureBundle) holds its own depth values.
+    public static String findDepthFilename(String pImageSource) {
+        if (pImageSource.endsWith(CaptureBundle.EXTENSION))
+            return Paths.get(pImageSource).isAbsolute() ? pImageSource :
+                    WorkingDirectory.getWorkingDirectory() + RobotConstants.imageDir + pImageSource;
+
+        String depthFilename = getDepthFilename(pImageSource);
+        String tiledDepthFilename = depthFilename.substring(0, depthFilename.lastIndexOf('.')) + TiledDepthFile.EXTENSION;
+        if (Files.isRegularFile(Paths.get(tiledDepthFilename)))
+            return tiledDepthFilename;
+        return depthFilename;
     }
 
     // Adapted from the RealSense example RealsenseAlignAdv.
@@ -47,55 +88,58 @@ public class RealSenseUtils {
     // ROI that are less than the minimum distance parameter or greater than
     // the maximum distance parameter.
     // Note: the depth frame has the same dimensions as the full image.
+    // The returned Mat is leased from the shared MatPool; the caller may
+    // release it back.
     public static Mat removeBackground(Mat pImageROI, VisionParameters.ImageParameters pImageParameters,
-                                       D405Configuration pD405Configuration,
-                                       short[] pDepth16UC1,
+                                       DepthFrame pDepthFrame,
                                        double pMinDistance, double pMaxDistance) {
+        long startNanos = System.nanoTime();
+        Mat depthMask = getDepthMask(pImageParameters, pDepthFrame, pMinDistance, pMaxDistance);
+        Mat depthAdjustedROI = removeBackground(pImageROI, depthMask);
+        MatPool.getShared().release(depthMask);
+        StageTimings.record(StageTimings.Stage.REMOVE_BACKGROUND, startNanos);
+        return depthAdjustedROI;
+    }
 
-        // Follow the RealsenseAlignAdv example; we need to convert the image ROI
-        // to an array of bytes as shown here ---
-        // https://stackoverflow.com/questions/27065062/opencv-mat-object-serialization-in-java
-        byte[] imageROIBytes = new byte[(int) (pImageROI.total() * pImageROI.elemSize())];
-        pImageROI.get(0, 0, imageROIBytes);
-        int imageROIBytesIndex = 0;
-
-        int roiOriginX = pImageParameters.image_roi.x;
-        int roiEndX = roiOriginX + pImageParameters.image_roi.width;
-        int roiOriginY = pImageParameters.image_roi.y;
-        int roiEndY = roiOriginY + pImageParameters.image_roi.height;
-        int depthPixelRowIndex;
-        double pixelDistance;
-        int pixelsGrayedOut = 0;
-        int pixelsInRange = 0;
-
-        // Iterate through the depth data but only check those locations
-        // that correspond to the image ROI.
-        for (int i = roiOriginY; i < roiEndY; i++) {
-            depthPixelRowIndex = i * pImageParameters.resolution_width; // the start of each row
-            for (int j = roiOriginX; j < roiEndX; j++) {
-                pixelDistance = pD405Configuration.depthScale * pDepth16UC1[depthPixelRowIndex + j];
-                // Check if the depth value is less or greater than the threshold.
-                if (pixelDistance <= pMinDistance || pixelDistance > pMaxDistance) {
-                    // Replace the BGR bytes in the copy of the input image with gray.
-                    imageROIBytes[imageROIBytesIndex] = (byte) 0xD0; // b
-                    imageROIBytes[imageROIBytesIndex + 1] = (byte) 0xD0; // g
-                    imageROIBytes[imageROIBytesIndex + 2] = (byte) 0xD0; // r
-                    pixelsGrayedOut++;
-                } else
-                    pixelsInRange++;
-                imageROIBytesIndex += 3;
-            }
+    // Apply a mask from getDepthMask to the image ROI: pixels inside the
+    // mask are copied, all others are gray. The returned Mat is leased from
+    // the shared MatPool; the caller may release it back.
+    public static Mat removeBackground(Mat pImageROI, Mat pDepthMask) {
+        Mat depthAdjustedROI = MatPool.getShared().leaseLike(pImageROI);
+        depthAdjustedROI.setTo(DEPTH_BACKGROUND);
+        pImageROI.copyTo(depthAdjustedROI, pDepthMask);
+        return depthAdjustedROI;
+    }
+
+    // Returns a CV_8UC1 mask the size of the image ROI that is 255 where
+    // the depth is greater than pMinDistance and no greater than
+    // pMaxDistance (meters) and 0 elsewhere. The distances are converted
+    // once to raw depth units so that the comparison runs natively over
+    // the 16-bit depth values in the ROI with no per-pixel scaling. The
+    // mask is leased from the shared MatPool; the caller may release it
+    // back. It may be ANDed with a thresholded image of the same ROI to
+    // keep only those pixels that are at the right depth.
+    public static Mat getDepthMask(VisionParameters.ImageParameters pImageParameters, DepthFrame pDepthFrame,
+                                   double pMinDistance, double pMaxDistance) {
+        Rect roi = pImageParameters.image_roi;
+        Mat depthMask = MatPool.getShared().lease(roi.height, roi.width, CvType.CV_8UC1);
+        int lowestRaw = pDepthFrame.scaleTable.lowestRawAbove(pMinDistance);
+        int highestRaw = pDepthFrame.scaleTable.highestRawAtOrBelow(pMaxDistance);
+        if (lowestRaw > highestRaw)
+            depthMask.setTo(new Scalar(0));
+        else {
+            Mat depthROI = pDepthFrame.getMat().submat(roi);
+            Core.inRange(depthROI, new Scalar(lowestRaw), new Scalar(highestRaw), depthMask);
+            depthROI.release(); // the header only
         }
 
-        RobotLogCommon.d(TAG, "Pixels in depth range " + pixelsInRange);
-        RobotLogCommon.d(TAG, "Pixels out of depth range " + pixelsGrayedOut);
+        if (VisionLog.isDebugEnabled()) {
+            int pixelsInRange = Core.countNonZero(depthMask);
+            VisionLog.d(TAG, "Pixels in depth range {}", pixelsInRange);
+            VisionLog.d(TAG, "Pixels out of depth range {}", (int) depthMask.total() - pixelsInRange);
+        }
 
-        // We need to put the image ROI in the form of array of bytes back into
-        // an OpenCV Mat.
-        // Again from https://stackoverflow.com/questions/27065062/opencv-mat-object-serialization-in-java
-        Mat depthAdjustedROI = new Mat(pImageParameters.image_roi.height, pImageParameters.image_roi.width, CvType.CV_8UC3);
-        depthAdjustedROI.put(0, 0, imageROIBytes);
-        return depthAdjustedROI;
+        return depthMask;
     }
 
     // pImageROI is cropped version of the original ROI.
@@ -103,28 +147,43 @@ public class RealSenseUtils {
     public static RealSenseReturn getAngleAndDistance(Mat pImageROI, Mat pThresholded,
                                                       D405Configuration pD405Configuration,
                                                       RobotConstantsPowerPlay.D405CameraId pCameraId,
-                                                      short[] pDepthArray, float pObjectWidth,
+                                                      DepthFrame pDepthFrame, float pObjectWidth,
                                                       String pOutputFilenamePreamble,
                                                       VisionParameters.ImageParameters pImageParameters,
                                                       DepthParameters pDepthParameters) {
+        long startNanos = System.nanoTime();
+        try {
+            return findAngleAndDistance(pImageROI, pThresholded, pD405Configuration, pCameraId,
+                    pDepthFrame, pObjectWidth, pOutputFilenamePreamble, pImageParameters, pDepthParameters);
+        } finally {
+            StageTimings.record(StageTimings.Stage.ANGLE_AND_DISTANCE, startNanos);
+        }
+    }
+
+    private static RealSenseReturn findAngleAndDistance(Mat pImageROI, Mat pThresholded,
+                                                        D405Configuration pD405Configuration,
+                                                        RobotConstantsPowerPlay.D405CameraId pCameraId,
+                                                        DepthFrame pDepthFrame, float pObjectWidth,
+                                                        String pOutputFilenamePreamble,
+                                                        VisionParameters.ImageParameters pImageParameters,
+                                                        DepthParameters pDepthParameters) {
         // Identify the contours.
         List<MatOfPoint> contours = new ArrayList<>();
         Imgproc.findContours(pThresholded, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
         if (contours.size() == 0) {
-            RobotLogCommon.d(TAG, "No contours found");
+            VisionLog.d(TAG, "No contours found");
             return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL); // don't crash
         }
 
         // Within the ROI draw all of the contours.
-        Mat contoursDrawn = pImageROI.clone();
-        drawShapeContours(contours, contoursDrawn);
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_CON.png", contoursDrawn);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_CON.png");
+        Diagnostics.writeOverlay(pOutputFilenamePreamble + "_CON.png", pImageROI,
+                overlay -> drawShapeContours(contours, overlay));
 
         // The largest contour should be the cone.
-        Optional<MatOfPoint> largestContour = ImageUtils.getLargestContour(contours);
-        if (largestContour.isEmpty()) {
-            RobotLogCommon.d(TAG, "Largest contour not found");
+        ContourIndex contourIndex = new ContourIndex(contours);
+        int largestContourIndex = contourIndex.largest();
+        if (largestContourIndex == -1) {
+            VisionLog.d(TAG, "Largest contour not found");
             return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL); // don't crash
         }
 
@@ -132,17 +191,16 @@ public class RealSenseUtils {
         // always log full-image coordinates.
 
         // Define a bounding rectangle for the largest contour.
-        Rect largestBoundingRect = Imgproc.boundingRect(largestContour.get());
-        RobotLogCommon.d(TAG, "Largest bounding rectangle in full image: x " +
-                (largestBoundingRect.x + pImageParameters.image_roi.x) +
-                ", y " + (largestBoundingRect.y + pImageParameters.image_roi.y) +
-                ", width " + largestBoundingRect.width + ", height " + largestBoundingRect.height);
+        Rect largestBoundingRect = contourIndex.getBoundingRect(largestContourIndex);
+        if (VisionLog.isDebugEnabled())
+            VisionLog.d(TAG, "Largest bounding rectangle in full image: x {}, y {}, width {}, height {}",
+                    largestBoundingRect.x + pImageParameters.image_roi.x,
+                    largestBoundingRect.y + pImageParameters.image_roi.y,
+                    largestBoundingRect.width, largestBoundingRect.height);
 
         // Within the ROI draw a rectangle around the largest contour.
-        Mat drawnRectangle = pImageROI.clone();
-        drawOneRectangle(largestBoundingRect, drawnRectangle, 2);
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_BRECT.png", drawnRectangle);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_BRECT.png");
+        Diagnostics.writeOverlay(pOutputFilenamePreamble + "_BRECT.png", pImageROI,
+                overlay -> drawOneRectangle(largestBoundingRect, overlay, 2));
 
         // We want to define a search rectangle, the x-coordinate of which
         // at its center is the same as that of the bounding box.
@@ -158,76 +216,71 @@ public class RealSenseUtils {
         double percentageOfHeight = largestBoundingRect.height * (pDepthParameters.depthWindowOffsetY / 100.0);
         int pixelSearchY = (int) ((largestBoundingRect.y + largestBoundingRect.height) - percentageOfHeight);
         double pixelSearchHeight = largestBoundingRect.height * (pDepthParameters.depthWindowHeight / 100.0);
-        RobotLogCommon.d(TAG, "Pixel search box in full image: x " +
-                (pixelSearchX + pImageParameters.image_roi.x) +
-                ", y " + (pixelSearchY + pImageParameters.image_roi.y) +
-                ", width " + pixelSearchWidth + ", height " + pixelSearchHeight + ", area " + (pixelSearchWidth * pixelSearchHeight));
+        if (VisionLog.isDebugEnabled())
+            VisionLog.d(TAG, "Pixel search box in full image: x {}, y {}, width {}, height {}, area {}",
+                    pixelSearchX + pImageParameters.image_roi.x,
+                    pixelSearchY + pImageParameters.image_roi.y,
+                    pixelSearchWidth, pixelSearchHeight, pixelSearchWidth * pixelSearchHeight);
 
         // Sanity check.
         if (pixelSearchWidth == 0 || pixelSearchHeight == 0) {
-            RobotLogCommon.d(TAG, "Pixel search box width or height is 0");
+            VisionLog.d(TAG, "Pixel search box width or height is 0");
             return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL); // don't crash
         }
 
-        // Draw the pixel search box on the ROI.
+        // Draw the pixel search box on the ROI along with the rectangle
+        // around the largest contour.
         Rect pixelSearchRect = new Rect(pixelSearchX, pixelSearchY, (int) pixelSearchWidth, (int) pixelSearchHeight);
-        drawOneRectangle(pixelSearchRect, drawnRectangle, -1);
-        Imgcodecs.imwrite(pOutputFilenamePreamble + "_PRECT.png", drawnRectangle);
-        RobotLogCommon.d(TAG, "Writing " + pOutputFilenamePreamble + "_PRECT.png");
+        Diagnostics.writeOverlay(pOutputFilenamePreamble + "_PRECT.png", pImageROI, overlay -> {
+            drawOneRectangle(largestBoundingRect, overlay, 2);
+            drawOneRectangle(pixelSearchRect, overlay, -1);
+        });
 
         // Make sure the pixel search box (top left and bottom right) is
         // within the boundaries of the bounding box of the largest contour.
         if (!(largestBoundingRect.contains(pixelSearchRect.tl()) &&
                 largestBoundingRect.contains(pixelSearchRect.br()))) {
-            RobotLogCommon.d(TAG, "Pixel search box top out of range");
+            VisionLog.d(TAG, "Pixel search box top out of range");
             return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL);
         }
 
-        // The following is from the OpenCV documentation; we want the
-        // option where measureDist=false.
-        /*
-         The function determines whether the point is inside a contour,
-         outside, or lies on an edge (or coincides with a vertex). It
-         returns positive (inside), negative (outside), or zero (on an
-         edge) value, correspondingly. When measureDist=false, the
-         return value is +1, -1, and 0, respectively. Otherwise, the
-         return value is a signed distance between the point and the
-         nearest contour edge.
-        */
-        // A MatOfPoint2f is required by pointPolygonTest but since
-        // we're only looking at the largest contour we don't need
-        // to loop through all contours and can do the conversion
-        // once.
-        MatOfPoint2f largestContourPoint2f = new MatOfPoint2f(largestContour.get().toArray());
-        float testReturn;
-        int targetPixelX, targetPixelY, targetPixelRow;
-        float scaledPixelDepth;
-
-        // Loop through all the pixels in the pixel search box and save the
-        // depth and location of in-range pixels *in the full image* for
-        // later sorting. To do this we'll need a method-local inner class.
-        class InRangePixel {
-            public final int fullImageX;
-            public final int fullImageY;
-            private final float scaledDepth;
-
-            public InRangePixel(int pFullImageX, int pFullImageY, float pScaledDepth) {
-                fullImageX = pFullImageX;
-                fullImageY = pFullImageY;
-                scaledDepth = pScaledDepth;
-            }
-
-            public float getScaledDepth() {
-                return scaledDepth;
-            }
-        }
+        // Rasterize the largest contour, filled, into a mask the size of
+        // the pixel search box so that the pixels on or inside the contour
+        // are found with one native call instead of one pointPolygonTest
+        // per pixel. The loops below cover the same pixels as the search
+        // box (whose width and height may be fractional).
+        int searchBoxWidth = (int) Math.ceil(pixelSearchWidth);
+        int searchBoxHeight = (int) Math.ceil(pixelSearchHeight);
+        MatPool pool = MatPool.getShared();
+        Mat contourMask = pool.lease(searchBoxHeight, searchBoxWidth, CvType.CV_8UC1);
+        contourMask.setTo(new Scalar(0));
+        Imgproc.drawContours(contourMask, List.of(contourIndex.getContour(largestContourIndex)), 0,
+                new Scalar(255), Imgproc.FILLED, Imgproc.LINE_8, new Mat(), Integer.MAX_VALUE,
+                new Point(-pixelSearchX, -pixelSearchY));
+        byte[] contourMaskBytes = pool.leaseBytes(searchBoxWidth * searchBoxHeight);
+        contourMask.get(0, 0, contourMaskBytes);
+        pool.release(contourMask);
 
-        List<InRangePixel> inRangePixels = new ArrayList<>();
-        for (int i = pixelSearchY; i < pixelSearchY + pixelSearchHeight; i++) { // row
-            for (int j = pixelSearchX; j < pixelSearchX + pixelSearchWidth; j++) { // column
-                testReturn = (float) Imgproc
-                        .pointPolygonTest(largestContourPoint2f, new Point(j, i), false);
-                if (testReturn == 0.0 || testReturn == 1.0) {
+        int targetPixelX, targetPixelY, targetPixelRow;
+        int rawPixelDepth;
+
+        // Compare and accumulate raw depth values; convert the depth window
+        // to raw units here, once, and only the result back to distance.
+        DepthScaleTable scaleTable = pDepthFrame.scaleTable;
+        int minRawDepth = scaleTable.lowestRawAtOrAbove(pDepthParameters.minDepth);
+        int maxRawDepth = scaleTable.highestRawAtOrBelow(pDepthParameters.maxDepth);
+
+        // Loop through all the pixels in the pixel search box and keep the
+        // depth and location *in the full image* of the nearest in-range
+        // pixels. Track the furthest in-range pixel for the log.
+        NearestDepthPixels nearestPixels = new NearestDepthPixels(pDepthParameters.nearestPixels);
+        int furthestPixelX = 0;
+        int furthestPixelY = 0;
+        int furthestPixelDepth = -1;
+        int maskIndex = 0;
+        for (int i = pixelSearchY; i < pixelSearchY + searchBoxHeight; i++) { // row
+            for (int j = pixelSearchX; j < pixelSearchX + searchBoxWidth; j++) { // column
+                if (contourMaskBytes[maskIndex++] != 0) { // on or inside the contour
                     // The depth array has values for every pixel in the full
                     // image, not just the ROI. So to test a pixel for depth
                     // we need to get its position in the full image.
@@ -240,71 +293,64 @@ public class RealSenseUtils {
                     // row 0 is 0 .. 639
                     // row 1 is 640 .. 1279
                     // ...
-                    targetPixelRow = targetPixelY * pImageParameters.resolution_width;
-                    int centroidPixelDepth = pDepthArray[targetPixelRow + targetPixelX] & 0xFFFF; // use as unsigned short
-                    scaledPixelDepth = centroidPixelDepth * pD405Configuration.depthScale;
-
-                    // If the depth of the pixel is in range store its coordinates in
-                    // the full image and its depth.
-                    if (scaledPixelDepth >= pDepthParameters.minDepth &&
-                            scaledPixelDepth <= pDepthParameters.maxDepth)
-                        inRangePixels.add(new InRangePixel(targetPixelX, targetPixelY, scaledPixelDepth)); // yes, save it
+                    targetPixelRow = targetPixelY * pDepthFrame.width;
+                    rawPixelDepth = pDepthFrame.getRaw(targetPixelRow + targetPixelX);
+
+                    // If the depth of the pixel is in range offer its coordinates
+                    // in the full image and its depth.
+                    if (rawPixelDepth >= minRawDepth && rawPixelDepth <= maxRawDepth) {
+                        nearestPixels.offer(targetPixelX, targetPixelY, rawPixelDepth);
+                        if (rawPixelDepth >= furthestPixelDepth) {
+                            furthestPixelX = targetPixelX;
+                            furthestPixelY = targetPixelY;
+                            furthestPixelDepth = rawPixelDepth;
+                        }
+                    }
                 }
             }
         }
+        pool.releaseBytes(contourMaskBytes);
 
         // Make sure we've found at least one pixel.
-        if (inRangePixels.size() == 0) {
-            RobotLogCommon.d(TAG, "Did not find a pixel on or inside the cone contour");
+        if (nearestPixels.size() == 0) {
+            VisionLog.d(TAG, "Did not find a pixel on or inside the cone contour");
             return new RealSenseReturn(RobotConstants.RecognitionResults.RECOGNITION_UNSUCCESSFUL);
         }
 
-        // Sort the in-range pixels by their depth.
-        RobotLogCommon.d(TAG, "Found " + inRangePixels.size() + " in-range pixels");
-        List<InRangePixel> sortedInRangePixels = inRangePixels.stream()
-                .sorted(Comparator.comparing(InRangePixel::getScaledDepth)) // ascending
-                .collect(Collectors.toList());
-
-        InRangePixel closestPixel = sortedInRangePixels.get(0);
-        InRangePixel furthestPixel = sortedInRangePixels.get(sortedInRangePixels.size() - 1);
-        RobotLogCommon.d(TAG, "Closest in-range pixel in the full image at: x " +
-                closestPixel.fullImageX +
-                ", y " + closestPixel.fullImageY + ", depth " + closestPixel.getScaledDepth());
-        RobotLogCommon.d(TAG, "Furthest in-range pixel in the full image at: x " +
-                furthestPixel.fullImageX +
-                ", y " + furthestPixel.fullImageY + ", depth " + furthestPixel.getScaledDepth());
-
-        // Now we want to average the coordinates and depth of the closest 50 (max) pixels.
-        InRangePixel inRangePixel;
-        int accumulatedFullImageX = 0;
-        int accumulatedFullImageY = 0;
-        float accumulatedDepth = 0.0f;
-        int i;
-        for (i = 0; i < 50 && i < sortedInRangePixels.size(); i++) {
-            inRangePixel = sortedInRangePixels.get(i);
-            accumulatedFullImageX += inRangePixel.fullImageX;
-            accumulatedFullImageY += inRangePixel.fullImageY;
-            accumulatedDepth += inRangePixel.scaledDepth;
+        // Put the nearest in-range pixels in order of their depth.
+        VisionLog.d(TAG, "Found {} in-range pixels", nearestPixels.getOffered());
+        nearestPixels.sort();
+        if (VisionLog.isDebugEnabled()) {
+            VisionLog.d(TAG, "Closest in-range pixel in the full image at: x {}, y {}, depth {}",
+                    nearestPixels.getX(0), nearestPixels.getY(0), Float.toString(scaleTable.toMeters(nearestPixels.getRawDepth(0))));
+            VisionLog.d(TAG, "Furthest in-range pixel in the full image at: x {}, y {}, depth {}",
+                    furthestPixelX, furthestPixelY, Float.toString(scaleTable.toMeters(furthestPixelDepth)));
         }
 
-        int averageFullImageX = accumulatedFullImageX / i;
-        int averageFullImageY = accumulatedFullImageY / i;
-        double averageDepth = (accumulatedDepth / i) * INCHES_PER_METER;
-        RobotLogCommon.d(TAG, "Average x, y, depth of the closest 50 (max) pixels in the full image " +
-                averageFullImageX + ", " + averageFullImageY + ", " + averageDepth);
+        // Now we want to combine the coordinates and depth of the closest
+        // pixels.
+        NearestDepthPixels.Aggregate targetPixel =
+                nearestPixels.aggregate(pDepthParameters.aggregation, pDepthParameters.trimPercent);
+        int averageFullImageX = targetPixel.x;
+        int averageFullImageY = targetPixel.y;
+        double averageDepth = targetPixel.rawDepth * pDepthFrame.depthScale * INCHES_PER_METER;
+        if (VisionLog.isDebugEnabled())
+            VisionLog.d(TAG, "{} x, y, depth of {} of the closest {} (max) pixels in the full image {}, {}, {}",
+                    pDepthParameters.aggregation, targetPixel.count, pDepthParameters.nearestPixels,
+                    averageFullImageX, averageFullImageY, averageDepth);
 
         double realSenseAngleToPixel = getAngleToPixelFromRealSenseDistance(pImageParameters.resolution_width, averageFullImageX, largestBoundingRect.width,
                 pObjectWidth, averageDepth);
-        RobotLogCommon.d(TAG, "RealSense angle from camera to target pixel (degrees) " + realSenseAngleToPixel);
+        VisionLog.d(TAG, "RealSense angle from camera to target pixel (degrees) {}", realSenseAngleToPixel);
 
         double fieldOfViewAngleToPixel = getAngleToPixelFromFieldOfView(pImageParameters.resolution_width, averageFullImageX, pD405Configuration.fieldOfView);
-        RobotLogCommon.d(TAG, "Field of view angle from camera to target pixel (degrees) " + fieldOfViewAngleToPixel);
+        VisionLog.d(TAG, "Field of view angle from camera to target pixel (degrees) {}", fieldOfViewAngleToPixel);
 
         // Using the RealSense angle.
         RealSenseReturn finalValues = getAngleAndDistanceToPixel(pD405Configuration, pCameraId,
                 realSenseAngleToPixel, averageDepth);
-        RobotLogCommon.d(TAG, "Angle (degrees) from robot center to pixel in full image " + finalValues.angleFromRobotCenter);
-        RobotLogCommon.d(TAG, "Distance (inches) from robot center to pixel in full image " + finalValues.distanceFromRobotCenter);
+        VisionLog.d(TAG, "Angle (degrees) from robot center to pixel in full image {}", finalValues.angleFromRobotCenter);
+        VisionLog.d(TAG, "Distance (inches) from robot center to pixel in full image {}", finalValues.distanceFromRobotCenter);
 
         return finalValues;
     }
@@ -319,14 +365,14 @@ public class RealSenseUtils {
         // Using the size of the known object, compute the number of pixels
         // per inch for the current image.
         double pixelsPerInch = pBoundingBoxWidth / pKnownObjectWidth;
-        RobotLogCommon.d(TAG, "Pixels per inch " + pixelsPerInch);
+        VisionLog.d(TAG, "Pixels per inch {}", pixelsPerInch);
 
         // Now get the number of pixels from the target pixel to the center of the image.
         // If the value is negative then the target pixel is to the right of the center
         // of the image.
         double pixelsFromTargetToCenter = (pResolutionWidth / 2.0) - pTargetPixelX;
         double inchesFromTargetToCenter =  pixelsFromTargetToCenter / pixelsPerInch;
-        RobotLogCommon.d(TAG, "Distance from target pixel to image center (inches) " + inchesFromTargetToCenter);
+        VisionLog.d(TAG, "Distance from target pixel to image center (inches) {}", inchesFromTargetToCenter);
 
         // Using the distance from the target to the center of the image [opposite]
         // and the distance from the camera to the target pixel [hypotenuse],
@@ -346,7 +392,7 @@ public class RealSenseUtils {
                                                                    double pAngleFromCameraToPixel, double pScaledPixelDepth) {
         // Get the angle from the center of the robot to the target pixel.
         D405Configuration.D405Camera cameraData = pD405Configuration.cameraMap.get(pCameraId);
-        RobotLogCommon.d(TAG, "Distance from camera to target pixel (inches) " + pScaledPixelDepth);
+        VisionLog.d(TAG, "Distance from camera to target pixel (inches) {}", pScaledPixelDepth);
 
         double angleFromRobotCenterToPixel =
                 CameraToCenterCorrections.getCorrectedAngle(Objects.requireNonNull(cameraData).distanceToCameraCanter,
@@ -361,7 +407,7 @@ public class RealSenseUtils {
 
     // The parameters pContours is the output of a call to findContours.
     private static void drawShapeContours(List<MatOfPoint> pContours, Mat pImageOut) {
-        RobotLogCommon.d(TAG, "drawContours: number of contours " + pContours.size());
+        VisionLog.d(TAG, "drawContours: number of contours {}", pContours.size());
         Scalar color = new Scalar(0, 255, 0); // BGR green - good against dark background
 
         for (int i = 0; i < pContours.size(); i++) {
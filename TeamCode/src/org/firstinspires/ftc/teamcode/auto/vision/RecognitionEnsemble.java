@@ -0,0 +1,140 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs several recognition paths on the same frame at the same time and
+// combines their results (see EnsembleReturn). The paths share the
+// intermediate images of the frame through its FrameContext, so the ROI,
+// the depth mask and the depth-filtered ROI should be prepared before
+// run() is called; the paths then only read them.
+//
+// The first path runs on the calling thread and the others on a fixed
+// pool of daemon threads, so that the elapsed time of the ensemble is
+// close to that of its slowest path rather than the sum of all of them.
+// The worker threads take on the Diagnostics level and the VisionLog
+// frame of the caller, and the StageTimings of every path are added to
+// those of the caller, so that each stage shows the total time spent in
+// it by the ensemble rather than the elapsed time. run() does not return until every path has
+// finished, even if one of them fails, because the caller closes the
+// FrameContext that they are reading.
+public class RecognitionEnsemble {
+
+    private static final String TAG = RecognitionEnsemble.class.getSimpleName();
+
+    // One recognition path of a recognizer, e.g.
+    //   path -> coneStackRecognition.recognizeConeStack(frameContext, ..., path, ...)
+    public interface PathRecognition<P> {
+        RealSenseReturn recognize(P pPath) throws IOException;
+    }
+
+    // The result of a path run on a worker thread and the stage times it
+    // recorded there.
+    private static class WorkerReturn {
+        private final RealSenseReturn pathResult;
+        private final long[] stageNanos;
+
+        private WorkerReturn(RealSenseReturn pPathResult, long[] pStageNanos) {
+            pathResult = pPathResult;
+            stageNanos = pStageNanos;
+        }
+    }
+
+    // Leave a core for the caller's path.
+    private static final RecognitionEnsemble sharedEnsemble =
+            new RecognitionEnsemble(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final ExecutorService executor;
+
+    public RecognitionEnsemble(int pThreads) {
+        executor = Executors.newFixedThreadPool(pThreads, runnable -> {
+            Thread worker = new Thread(runnable, TAG);
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    // The ensemble shared by all of the recognizers.
+    public static RecognitionEnsemble getShared() {
+        return sharedEnsemble;
+    }
+
+    // Run pRecognition for each of pPaths and return all of the results.
+    // An exception thrown by any path is rethrown once all of the paths
+    // have finished.
+    public <P extends Enum<P>> EnsembleReturn<P> run(List<P> pPaths, PathRecognition<P> pRecognition) throws InterruptedException, IOException {
+        if (pPaths.isEmpty())
+            throw new AutonomousRobotException(TAG, "No recognition paths");
+        if (new LinkedHashSet<>(pPaths).size() != pPaths.size())
+            throw new AutonomousRobotException(TAG, "Duplicate recognition path in " + pPaths);
+
+        Diagnostics.Level diagnosticsLevel = Diagnostics.getLevel();
+        int visionLogFrame = VisionLog.getCurrentFrame();
+        List<Future<WorkerReturn>> futures = new ArrayList<>();
+        for (P path : pPaths.subList(1, pPaths.size()))
+            futures.add(executor.submit(() -> {
+                if (Diagnostics.getLevel() != diagnosticsLevel)
+                    Diagnostics.setLevel(diagnosticsLevel);
+                VisionLog.joinFrame(visionLogFrame);
+                StageTimings.reset(); // the worker's times belong to the previous path
+                try {
+                    return new WorkerReturn(pRecognition.recognize(path), StageTimings.snapshot());
+                } finally {
+                    StageTimings.reset();
+                }
+            }));
+
+        Map<P, RealSenseReturn> pathResults = new LinkedHashMap<>();
+        Throwable failure = null;
+        try {
+            pathResults.put(pPaths.get(0), pRecognition.recognize(pPaths.get(0)));
+        } catch (IOException | RuntimeException ex) {
+            failure = ex;
+        }
+
+        // Wait for every path, even if the caller is interrupted: the paths
+        // take milliseconds and are still reading the frame.
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            while (true) {
+                try {
+                    WorkerReturn workerReturn = futures.get(i).get();
+                    pathResults.put(pPaths.get(i + 1), workerReturn.pathResult);
+                    StageTimings.add(workerReturn.stageNanos);
+                    break;
+                } catch (InterruptedException iex) {
+                    interrupted = true;
+                } catch (ExecutionException eex) {
+                    if (failure == null)
+                        failure = eex.getCause();
+                    break;
+                }
+            }
+        }
+
+        if (interrupted)
+            throw new InterruptedException();
+
+        if (failure instanceof IOException iox)
+            throw iox;
+        if (failure instanceof RuntimeException rex)
+            throw rex;
+        if (failure instanceof Error error)
+            throw error;
+        if (failure != null)
+            throw new AutonomousRobotException(TAG, "Recognition path failed: " + failure);
+
+        return new EnsembleReturn<>(pathResults);
+    }
+
+}
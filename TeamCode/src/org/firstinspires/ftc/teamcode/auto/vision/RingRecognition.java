@@ -2,11 +2,8 @@ package org.firstinspires.ftc.teamcode.auto.vision;
 
 //!! Android only
 
-import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
 
 import org.firstinspires.ftc.ftcdevcommon.intellij.TimeStamp;
-import org.firstinspires.ftc.ftcdevcommon.Pair;
-import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
 import org.firstinspires.ftc.ftcdevcommon.intellij.WorkingDirectory;
 import org.firstinspires.ftc.teamcode.common.RobotConstants;
 import org.firstinspires.ftc.teamcode.common.RobotConstantsUltimateGoal;
@@ -14,11 +11,8 @@ import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
-import java.time.LocalDateTime;
-
 public class RingRecognition {
 
     private static final String TAG = "RingRecognition";
@@ -35,49 +29,48 @@ public class RingRecognition {
     // Returns the result of the image analysis.
     public RingReturn findGoldRings(ImageProvider pImageProvider, RingParameters pRingParameters) throws InterruptedException {
 
-        RobotLogCommon.d(TAG, "In RingRecognition.findGoldRings");
+        VisionLog.d(TAG, "In RingRecognition.findGoldRings");
 
-        // LocalDateTime requires minSdkVersion 26  public Pair<Mat, LocalDateTime> getImage() throws InterruptedException;
-        Pair<Mat, LocalDateTime> ringImage = pImageProvider.getImage();
-        if (ringImage.first == null)
+        ImageFrame frame = pImageProvider.getFrame();
+        if (frame == null)
             return new RingReturn(true, RobotConstantsUltimateGoal.TargetZone.TARGET_ZONE_NPOS); // don't crash
 
-        String fileDate = TimeStamp.getLocalDateTimeStamp(ringImage.second);
+        String fileDate = TimeStamp.getLocalDateTimeStamp(frame.timestamp);
         String outputFilenamePreamble = workingDirectory + imageFilePrefix + fileDate;
 
         // The image may be RGB (from a camera) or BGR ( OpenCV imread from a file).
-        Mat imgOriginal = ringImage.first.clone();
-
         // If you don't convert RGB to BGR here then the _IMG.png file will be written
-        // out with incorrect colors (gold will show up as blue).
-        if (pImageProvider.getImageFormat() == ImageProvider.ImageFormat.RGB)
-            Imgproc.cvtColor(imgOriginal, imgOriginal, Imgproc.COLOR_RGB2BGR);
-
-        String imageFilename = outputFilenamePreamble + "_IMG.png";
-        RobotLogCommon.d(TAG, "Writing original image " + imageFilename);
-        Imgcodecs.imwrite(imageFilename, imgOriginal);
-
-        RobotLogCommon.d(TAG, "Image width " + imgOriginal.cols() + ", height " + imgOriginal.rows());
-        if ((imgOriginal.cols() != pRingParameters.imageParameters.resolution_width) ||
-                (imgOriginal.rows() != pRingParameters.imageParameters.resolution_height))
-            throw new AutonomousRobotException(TAG,
-                    "Mismatch between actual image width and expected image width " + pRingParameters.imageParameters.resolution_width +
-                            ", height " + pRingParameters.imageParameters.resolution_height);
-
-        // Crop the image to reduce distractions.
-        Mat imageROI = imageUtils.getImageROI(imgOriginal,
-                new Rect(pRingParameters.imageParameters.image_roi.x,
-                        pRingParameters.imageParameters.image_roi.y,
-                        pRingParameters.imageParameters.image_roi.width,
-                        pRingParameters.imageParameters.image_roi.height));
-        imageFilename = outputFilenamePreamble + "_ROI.png";
-        RobotLogCommon.d(TAG, "Writing image ROI " + imageFilename);
-        Imgcodecs.imwrite(imageFilename, imageROI);
-
-        // Adapted from ...\OpenCV_Projects\OpenCVTestbed2\OpenCVTestbed2\GeneralTarget.cpp
-        // We're on the HSV path.
+        // out with incorrect colors (gold will show up as blue). The frame
+        // converts once and the image is only read up to the conversion to
+        // HSV, so it is not copied.
         Mat hsvROI = new Mat();
-        Imgproc.cvtColor(imageROI, hsvROI, Imgproc.COLOR_BGR2HSV);
+        VisionParameters.ImageParameters imageParameters;
+        try {
+            Mat imgOriginal = frame.getBGRImage();
+
+            String imageFilename = outputFilenamePreamble + "_IMG.png";
+            VisionLog.d(TAG, "Writing original image {}", imageFilename);
+            DebugImageWriter.write(imageFilename, imgOriginal);
+
+            VisionLog.d(TAG, "Image width {}, height {}", imgOriginal.cols(), imgOriginal.rows());
+            imageParameters = pRingParameters.imageParameters.forFrame(frame);
+
+            // Crop the image to reduce distractions.
+            Mat imageROI = imageUtils.getImageROI(imgOriginal,
+                    new Rect(imageParameters.image_roi.x,
+                            imageParameters.image_roi.y,
+                            imageParameters.image_roi.width,
+                            imageParameters.image_roi.height));
+            imageFilename = outputFilenamePreamble + "_ROI.png";
+            VisionLog.d(TAG, "Writing image ROI {}", imageFilename);
+            DebugImageWriter.write(imageFilename, imageROI);
+
+            // Adapted from ...\OpenCV_Projects\OpenCVTestbed2\OpenCVTestbed2\GeneralTarget.cpp
+            // We're on the HSV path.
+            Imgproc.cvtColor(imageROI, hsvROI, Imgproc.COLOR_BGR2HSV);
+        } finally {
+            frame.release();
+        }
 
         // Adjust the HSV saturation and value levels in the image to match the targets.
         int goldHueLow = pRingParameters.hsvParameters.hue_low;
@@ -86,11 +79,11 @@ public class RingRecognition {
         int goldSatHigh = 255;
         int goldValTarget = pRingParameters.hsvParameters.value_target;
         int goldValHigh = 255;
-        RobotLogCommon.d(TAG, "Target hue levels: low " + goldHueLow + ", high " + goldHueHigh);
+        VisionLog.d(TAG, "Target hue levels: low {}, high {}", goldHueLow, goldHueHigh);
 
         // Adjust saturation and value to the target levels.
         Mat adjusted = imageUtils.adjustSaturationAndValue(hsvROI, goldSatTarget, goldValTarget);
-        RobotLogCommon.d(TAG, "Adjusted image levels: saturation low " + goldSatTarget + ", value low " + goldValTarget);
+        VisionLog.d(TAG, "Adjusted image levels: saturation low {}, value low {}", goldSatTarget, goldValTarget);
 
         // Convert back to BGR.
         //## This debugging step will not be needed in production.
@@ -103,34 +96,37 @@ public class RingRecognition {
         Mat thresholded = new Mat();
         int inRangeSatLow = pRingParameters.hsvParameters.saturation_low_threshold;
         int inrangeValLow = pRingParameters.hsvParameters.value_low_threshold;
-        RobotLogCommon.d(TAG, "Actual inRange HSV levels: hue low " + goldHueLow + ", hue high " + goldHueHigh);
-        RobotLogCommon.d(TAG, "Actual inRange HSV levels: saturation low " + inRangeSatLow + ", value low " + inrangeValLow);
+        VisionLog.d(TAG, "Actual inRange HSV levels: hue low {}, hue high {}", goldHueLow, goldHueHigh);
+        VisionLog.d(TAG, "Actual inRange HSV levels: saturation low {}, value low {}", inRangeSatLow, inrangeValLow);
 
         Core.inRange(adjusted, new Scalar(goldHueLow, inRangeSatLow, inrangeValLow), new Scalar(goldHueHigh, goldSatHigh, goldValHigh), thresholded);
-        Imgcodecs.imwrite(outputFilenamePreamble + "_ADJ_THR.png", thresholded);
-        RobotLogCommon.d(TAG, "Writing " + outputFilenamePreamble + "_ADJ_THR.png");
+        DebugImageWriter.write(outputFilenamePreamble + "_ADJ_THR.png", thresholded);
+        VisionLog.d(TAG, "Writing {}_ADJ_THR.png", outputFilenamePreamble);
 
         // Instead of trying to find contours, just count the number of white pixels,
         // which are those that are in range for the gold color.
         int white_pixels = Core.countNonZero(thresholded);
-        RobotLogCommon.d(TAG, "Number of white pixels " + white_pixels);
+        VisionLog.d(TAG, "Number of white pixels {}", white_pixels);
 
         // If the number of white pixels is less than the minimum for a single
         // ring then assume there are no rings on the field.
+        // The minimum pixel counts are areas at the resolution of the XML.
+        double minimumPixelCount1Ring = pRingParameters.imageParameters.scalePixelCount(pRingParameters.minimum_pixel_count_1_ring, imageParameters);
+        double minimumPixelCount4Rings = pRingParameters.imageParameters.scalePixelCount(pRingParameters.minimum_pixel_count_4_rings, imageParameters);
         RobotConstantsUltimateGoal.TargetZone targetZone;
-        if (white_pixels < pRingParameters.minimum_pixel_count_1_ring) {
+        if (white_pixels < minimumPixelCount1Ring) {
             targetZone = RobotConstantsUltimateGoal.TargetZone.TARGET_ZONE_A;
-            RobotLogCommon.d(TAG, "No rings detected: set Target Zone Goal A");
+            VisionLog.d(TAG, "No rings detected: set Target Zone Goal A");
         } else
 
             // If the number of white pixels is greater than the minimum for a stack
             // of  4 rings then the target is Goal C.
-            if (white_pixels > pRingParameters.minimum_pixel_count_4_rings) {
+            if (white_pixels > minimumPixelCount4Rings) {
                 targetZone = RobotConstantsUltimateGoal.TargetZone.TARGET_ZONE_C;
-                RobotLogCommon.d(TAG, "Found four rings: set Target Zone Goal C");
+                VisionLog.d(TAG, "Found four rings: set Target Zone Goal C");
             } else { // Must be 1 ring.
                 targetZone = RobotConstantsUltimateGoal.TargetZone.TARGET_ZONE_B;
-                RobotLogCommon.d(TAG, "Found one ring: set Target Zone Goal B");
+                VisionLog.d(TAG, "Found one ring: set Target Zone Goal B");
             }
 
         return new RingReturn(false, targetZone);
@@ -0,0 +1,298 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.firstinspires.ftc.ftcdevcommon.Pair;
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Supplies a sequence of frames, one per call to getImage(), from
+//   a directory of png, jpg and capture bundle files, in file name order;
+//   a single capture bundle; or
+//   a video file, read through OpenCV's VideoCapture.
+// A background thread decodes ahead of the caller into a bounded queue so
+// that decoding the next frame overlaps the recognition of this one and
+// getImage() returns at once unless the decoder has fallen behind. When
+// the queue is full the drop policy decides what happens:
+//   BLOCK       the decoder waits; every frame is delivered
+//   DROP_OLDEST the oldest queued frame is discarded, as for a live camera
+//   DROP_NEWEST the frame just decoded is discarded
+// getImage() returns null at the end of the sequence. The caller owns
+// each Mat it receives and may modify and release it; for a capture
+// bundle it is a copy of the mapped file (see CaptureBundle). With
+// getFrame() instead the image is read-only and is returned when the
+// frame is released: the decoder reads later video frames into it, and a
+// frame from a capture bundle shares the mapped file without copying it.
+//
+// Close the provider to stop the decoder if the sequence is abandoned
+// before its end.
+public class SequenceImageProvider implements ImageProvider, AutoCloseable {
+
+    private static final String TAG = SequenceImageProvider.class.getSimpleName();
+
+    public enum DropPolicy {BLOCK, DROP_OLDEST, DROP_NEWEST}
+
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+    private static class SequenceFrame {
+        private final Mat image;
+        private final LocalDateTime timestamp;
+        private final String source;
+        private final boolean mapped; // a read-only capture bundle
+
+        private SequenceFrame(Mat pImage, LocalDateTime pTimestamp, String pSource, boolean pMapped) {
+            image = pImage;
+            timestamp = pTimestamp;
+            source = pSource;
+            mapped = pMapped;
+        }
+    }
+
+    private static final SequenceFrame END_OF_SEQUENCE = new SequenceFrame(null, null, null, false);
+
+    private final String sequenceSource;
+    private final DropPolicy dropPolicy;
+    private final BlockingQueue<SequenceFrame> frames;
+    private final boolean videoSource;
+    private final BlockingQueue<Mat> recycledImages; // video frame buffers
+    private final Thread decoder;
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Exception decoderException;
+
+    // Accessed only by the caller's thread.
+    private boolean ended;
+    private String currentSource;
+
+    // The decoder starts at once.
+    public SequenceImageProvider(String pSequenceSource, int pQueueDepth, DropPolicy pDropPolicy) {
+        if (pQueueDepth < 1)
+            throw new AutonomousRobotException(TAG, "The queue depth must be at least 1");
+        if (!Files.exists(Paths.get(pSequenceSource)))
+            throw new AutonomousRobotException(TAG, "Image sequence not found: " + pSequenceSource);
+
+        sequenceSource = pSequenceSource;
+        dropPolicy = pDropPolicy;
+        frames = new ArrayBlockingQueue<>(pQueueDepth);
+        videoSource = isVideo(Paths.get(pSequenceSource));
+        recycledImages = new ArrayBlockingQueue<>(pQueueDepth + 2);
+        decoder = new Thread(this::decode, TAG);
+        decoder.setDaemon(true);
+        decoder.start();
+    }
+
+    public SequenceImageProvider(String pSequenceSource) {
+        this(pSequenceSource, DEFAULT_QUEUE_DEPTH, DropPolicy.BLOCK);
+    }
+
+    // True for a file that is neither an image nor a capture bundle, which
+    // the provider therefore reads as a video.
+    public static boolean isVideo(Path pPath) {
+        return Files.isRegularFile(pPath) && !isSequenceFile(pPath);
+    }
+
+    @Override
+    public Pair<Mat, LocalDateTime> getImage() throws InterruptedException {
+        SequenceFrame frame = nextFrame();
+        if (frame == null)
+            return null;
+
+        if (!frame.mapped)
+            return Pair.create(frame.image, frame.timestamp);
+
+        Mat image = frame.image.clone();
+        frame.image.release();
+        return Pair.create(image, frame.timestamp);
+    }
+
+    @Override
+    public ImageFrame getFrame() throws InterruptedException {
+        SequenceFrame frame = nextFrame();
+        if (frame == null)
+            return null;
+        return new ImageFrame(frame.image, frame.timestamp, ImageFormat.BGR, this::recycle);
+    }
+
+    @Override
+    public ImageFormat getImageFormat() {
+        return ImageFormat.BGR;
+    }
+
+    // The file that the frame last returned by getImage() came from; for a
+    // video, the video file with the frame number appended, e.g.
+    // match.mp4#17. Null before the first frame and after the last.
+    public String getCurrentSource() {
+        return currentSource;
+    }
+
+    public String getStatistics() {
+        return TAG + " " + sequenceSource + ": decoded " + decoded.get() + ", dropped " + dropped.get() +
+                ", queued " + frames.size() + ", policy " + dropPolicy;
+    }
+
+    @Override
+    public void close() {
+        decoder.interrupt();
+        try {
+            decoder.join();
+        } catch (InterruptedException iex) {
+            // The decoder has been told to stop; keep the caller's interrupt.
+            Thread.currentThread().interrupt();
+        }
+        SequenceFrame frame;
+        while ((frame = frames.poll()) != null)
+            if (frame.image != null)
+                frame.image.release();
+        Mat image;
+        while ((image = recycledImages.poll()) != null)
+            image.release();
+        ended = true;
+    }
+
+    // Null at the end of the sequence.
+    private SequenceFrame nextFrame() throws InterruptedException {
+        if (ended)
+            return null;
+
+        SequenceFrame frame = frames.take();
+        if (frame == END_OF_SEQUENCE) {
+            ended = true;
+            currentSource = null;
+            if (decoderException != null)
+                throw new AutonomousRobotException(TAG, "Error reading " + sequenceSource + ": " + decoderException.getMessage());
+            return null;
+        }
+
+        currentSource = frame.source;
+        return frame;
+    }
+
+    private void decode() {
+        try {
+            Path sourcePath = Paths.get(sequenceSource);
+            if (Files.isDirectory(sourcePath))
+                decodeFiles(sourcePath);
+            else if (isSequenceFile(sourcePath))
+                enqueue(readFile(sourcePath));
+            else
+                decodeVideo();
+        } catch (InterruptedException iex) {
+            return; // closed; no one is waiting for the end
+        } catch (Exception ex) {
+            decoderException = ex;
+        }
+
+        try {
+            frames.put(END_OF_SEQUENCE); // never dropped
+        } catch (InterruptedException iex) {
+            // closed
+        }
+    }
+
+    private void decodeFiles(Path pDirectory) throws IOException, InterruptedException {
+        List<Path> files;
+        try (Stream<Path> directory = Files.list(pDirectory)) {
+            files = directory.filter(path -> Files.isRegularFile(path) && isSequenceFile(path))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        for (Path file : files)
+            enqueue(readFile(file));
+    }
+
+    private SequenceFrame readFile(Path pFile) throws IOException {
+        String filename = pFile.toString();
+        if (filename.endsWith(CaptureBundle.EXTENSION)) {
+            CaptureBundle bundle = CaptureBundle.open(filename);
+            return new SequenceFrame(bundle.getColorMat(), bundle.timestamp, filename, true);
+        }
+
+        Mat image = ImageUtils.loadImage(filename);
+        if (image == null)
+            throw new AutonomousRobotException(TAG, "Could not read image " + filename);
+        return new SequenceFrame(image, LocalDateTime.now(), filename, false);
+    }
+
+    private void decodeVideo() throws InterruptedException {
+        VideoCapture video = new VideoCapture(sequenceSource);
+        try {
+            if (!video.isOpened())
+                throw new AutonomousRobotException(TAG, "Could not open video " + sequenceSource);
+
+            long frameNumber = 0;
+            while (true) {
+                Mat image = recycledImages.poll();
+                if (image == null)
+                    image = new Mat();
+                if (!video.read(image) || image.empty()) {
+                    image.release();
+                    break;
+                }
+                enqueue(new SequenceFrame(image, LocalDateTime.now(), sequenceSource + "#" + frameNumber++, false));
+            }
+        } finally {
+            video.release();
+        }
+    }
+
+    private void enqueue(SequenceFrame pFrame) throws InterruptedException {
+        if (Thread.currentThread().isInterrupted()) {
+            pFrame.image.release();
+            throw new InterruptedException();
+        }
+
+        decoded.incrementAndGet();
+        switch (dropPolicy) {
+            case BLOCK -> {
+                try {
+                    frames.put(pFrame);
+                } catch (InterruptedException iex) {
+                    pFrame.image.release();
+                    throw iex;
+                }
+            }
+            case DROP_OLDEST -> {
+                // The caller may take a frame at any time, so retry until
+                // there is room.
+                while (!frames.offer(pFrame)) {
+                    SequenceFrame oldest = frames.poll();
+                    if (oldest != null) {
+                        recycle(oldest.image);
+                        dropped.incrementAndGet();
+                    }
+                }
+            }
+            case DROP_NEWEST -> {
+                if (!frames.offer(pFrame)) {
+                    recycle(pFrame.image);
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Keep a video frame buffer for the decoder to read into; release any
+    // other image, including a capture bundle's mapped Mat.
+    private void recycle(Mat pImage) {
+        if (!videoSource || pImage.isSubmatrix() || !recycledImages.offer(pImage))
+            pImage.release();
+    }
+
+    private static boolean isSequenceFile(Path pPath) {
+        String filename = pPath.getFileName().toString();
+        return filename.endsWith(".png") || filename.endsWith(".jpg") || filename.endsWith(CaptureBundle.EXTENSION);
+    }
+
+}
@@ -2,18 +2,13 @@ package org.firstinspires.ftc.teamcode.auto.vision;
 
 //!! IntelliJ only
 
-import org.firstinspires.ftc.ftcdevcommon.Pair;
-import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
 import org.firstinspires.ftc.ftcdevcommon.intellij.TimeStamp;
 import org.firstinspires.ftc.ftcdevcommon.intellij.WorkingDirectory;
 import org.firstinspires.ftc.teamcode.common.RobotConstants;
 import org.opencv.core.*;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
-import java.time.LocalDateTime;
 import java.util.List;
-import java.util.Optional;
 
 public class ShippingHubRecognition {
 
@@ -49,7 +44,7 @@ public class ShippingHubRecognition {
                                                               VisionParameters.HSVParameters pHSVParameters,
                                                               ShippingHubParameters pShippingHubParameters) throws InterruptedException {
 
-        RobotLogCommon.d(TAG, "In ShippingHubRecognition.getAngleAndDistanceToShippingHub");
+        VisionLog.d(TAG, "In ShippingHubRecognition.getAngleAndDistanceToShippingHub");
 
         // The largest bounding rectangle in the image should be the Level 2
         // platter of the Shipping Hub.
@@ -61,26 +56,26 @@ public class ShippingHubRecognition {
         // The centroid of the bounding rectangle is relative to the entire image, not
         // just the ROI.
         double angleFromCameraToShippingHub = imageUtils.computeAngleToObjectCenter(pImageParameters.resolution_width, pImageParameters.image_roi.x + largestBoundingRect.x + (largestBoundingRect.width / 2), LOGITECH_BRIO_FIELD_OF_VIEW);
-        RobotLogCommon.d(TAG, "Angle from camera to Shipping Hub " + angleFromCameraToShippingHub);
+        VisionLog.d(TAG, "Angle from camera to Shipping Hub {}", angleFromCameraToShippingHub);
 
         // Test for calibration run.
         double distanceFromCameraToShippingHub;
         if (pShippingHubParameters.distanceParameters.focalLength == 0.0) {
-            RobotLogCommon.d(TAG, "Calibration run");
+            VisionLog.d(TAG, "Calibration run");
             double focalLength = (largestBoundingRect.width * pShippingHubParameters.distanceParameters.calibrationObjectDistance) / pShippingHubParameters.distanceParameters.calibrationObjectWidth;
-            RobotLogCommon.d(TAG, "Calculated focal length " + focalLength);
+            VisionLog.d(TAG, "Calculated focal length {}", focalLength);
             distanceFromCameraToShippingHub = pShippingHubParameters.distanceParameters.calibrationObjectDistance;
-            RobotLogCommon.d(TAG, "Calibration distance from camera to Shipping Hub " + distanceFromCameraToShippingHub);
+            VisionLog.d(TAG, "Calibration distance from camera to Shipping Hub {}", distanceFromCameraToShippingHub);
         } else {
             // Distance determination (non-calibration) path.
-            RobotLogCommon.d(TAG, "Using focal length from calibration run of " + pShippingHubParameters.distanceParameters.focalLength);
+            VisionLog.d(TAG, "Using focal length from calibration run of {}", pShippingHubParameters.distanceParameters.focalLength);
             distanceFromCameraToShippingHub = (pShippingHubParameters.distanceParameters.calibrationObjectWidth * pShippingHubParameters.distanceParameters.focalLength) / largestBoundingRect.width;
-            RobotLogCommon.d(TAG, "Calculated distance from camera to Shipping Hub " + distanceFromCameraToShippingHub + " inches");
+            VisionLog.d(TAG, "Calculated distance from camera to Shipping Hub {} inches", distanceFromCameraToShippingHub);
         }
 
         // Calculate the angle from the robot center to the Shipping Hub.
         double trueBearing = TrueBearing.computeTrueBearing(distanceFromCameraToShippingHub, angleFromCameraToShippingHub, pShippingHubParameters.distanceParameters.cameraToRobotCenter);
-        RobotLogCommon.d(TAG, "Angle from robot center to Shipping Hub  " + trueBearing);
+        VisionLog.d(TAG, "Angle from robot center to Shipping Hub  {}", trueBearing);
 
         return new ShippingHubReturn(RobotConstants.OpenCVResults.RECOGNITION_SUCCESSFUL, trueBearing, distanceFromCameraToShippingHub);
     }
@@ -89,53 +84,64 @@ public class ShippingHubRecognition {
                                              VisionParameters.ImageParameters pImageParameters,
                                              VisionParameters.HSVParameters pHSVParameters) throws InterruptedException {
 
-        // LocalDateTime requires Android minSdkVersion 26  public Pair<Mat, LocalDateTime> getImage() throws InterruptedException;
-        Pair<Mat, LocalDateTime> shippingHubImage = pImageProvider.getImage();
-        if (shippingHubImage.first == null)
+        ImageFrame frame = pImageProvider.getFrame();
+        if (frame == null)
             return null; // don't crash
 
         // The image may be RGB (from a camera) or BGR (OpenCV imread from a file).
-        Mat imgOriginal = shippingHubImage.first.clone();
-
-        String fileDate = TimeStamp.getLocalDateTimeStamp(shippingHubImage.second);
-        String outputFilenamePreamble = imageUtils.createOutputFilePreamble(pImageParameters.image_source, workingDirectory, fileDate);
-        Mat imageROI = imageUtils.preProcessImage(pImageProvider, imgOriginal, outputFilenamePreamble, pImageParameters);
-
-        List<MatOfPoint> contours = imageUtils.applyInRangeAndFindContours(imageROI, outputFilenamePreamble, pHSVParameters);
-        if (contours.size() == 0) {
-            RobotLogCommon.d(TAG, "No contours found");
-            return null;
+        // It is not copied: the ROI is only read.
+        try {
+            String fileDate = TimeStamp.getLocalDateTimeStamp(frame.timestamp);
+            String outputFilenamePreamble = imageUtils.createOutputFilePreamble(pImageParameters.image_source, workingDirectory, fileDate);
+            VisionParameters.ImageParameters imageParameters = pImageParameters.forFrame(frame);
+            Mat imageROI = imageUtils.preProcessImage(frame, outputFilenamePreamble, imageParameters);
+
+            List<MatOfPoint> contours = imageUtils.applyInRangeAndFindContours(imageROI, outputFilenamePreamble, pHSVParameters);
+            if (contours.size() == 0) {
+                VisionLog.d(TAG, "No contours found");
+                return null;
+            }
+
+            Diagnostics.writeOverlay(outputFilenamePreamble + "_CON.png", imageROI,
+                    overlay -> drawShapeContours(contours, overlay));
+
+            // The largest contour should be the level 2 platter of the Shipping Hub.
+            ContourIndex contourIndex = new ContourIndex(contours);
+            int largestContourIndex = contourIndex.largest();
+            if (largestContourIndex == -1)
+                return null;
+
+            // Get its bounding rectangle.
+            Rect largestBoundingRect = contourIndex.getBoundingRect(largestContourIndex);
+
+            // Because the shaft is the same color as the level 2 platter the bounding
+            // rectangle will be too high. But we only care about its width.
+            VisionLog.d(TAG, "Width of largest contour {}", largestBoundingRect.width);
+
+            // Draw a rectangle around the largest contour.
+            Diagnostics.writeOverlay(outputFilenamePreamble + "_BRECT.png", imageROI,
+                    overlay -> drawOneRectangle(largestBoundingRect, overlay));
+
+            if (imageParameters == pImageParameters)
+                return largestBoundingRect;
+
+            // The angle and the focal length are calibrated at the reference
+            // resolution, so return the rectangle in the reference ROI.
+            Rect fullImageRect = new Rect(imageParameters.image_roi.x + largestBoundingRect.x,
+                    imageParameters.image_roi.y + largestBoundingRect.y,
+                    largestBoundingRect.width, largestBoundingRect.height);
+            Rect referenceRect = imageParameters.scale(fullImageRect, pImageParameters);
+            referenceRect.x -= pImageParameters.image_roi.x;
+            referenceRect.y -= pImageParameters.image_roi.y;
+            return referenceRect;
+        } finally {
+            frame.release();
         }
-
-        Mat contoursDrawn = imageROI.clone();
-        drawShapeContours(contours, contoursDrawn);
-        Imgcodecs.imwrite(outputFilenamePreamble + "_CON.png", contoursDrawn);
-        RobotLogCommon.d(TAG, "Writing " + outputFilenamePreamble + "_CON.png");
-
-        // The largest contour should be the level 2 platter of the Shipping Hub.
-        Optional<MatOfPoint> largestContour = imageUtils.getLargestContour(contours);
-        if (largestContour.isEmpty())
-            return null;
-
-        // Get its bounding rectangle.
-        Rect largestBoundingRect = Imgproc.boundingRect(largestContour.get());
-
-        // Because the shaft is the same color as the level 2 platter the bounding
-        // rectangle will be too high. But we only care about its width.
-        RobotLogCommon.d(TAG, "Width of largest contour " + largestBoundingRect.width);
-
-        // Draw a rectangle around the largest contour.
-        Mat drawnRectangle = imageROI.clone();
-        drawOneRectangle(largestBoundingRect, drawnRectangle);
-        Imgcodecs.imwrite(outputFilenamePreamble + "_BRECT.png", drawnRectangle);
-        RobotLogCommon.d(TAG, "Writing " + outputFilenamePreamble + "_BRECT.png");
-
-        return largestBoundingRect;
     }
 
     // The parameters pContours is the output of a call to findContours.
     private void drawShapeContours(List<MatOfPoint> pContours, Mat pImageOut) {
-        RobotLogCommon.d(TAG, "drawContours: number of contours " + pContours.size());
+        VisionLog.d(TAG, "drawContours: number of contours {}", pContours.size());
         Scalar color = new Scalar(0, 255, 0); // BGR green - good against dark background
 
         for (int i = 0; i < pContours.size(); i++) {
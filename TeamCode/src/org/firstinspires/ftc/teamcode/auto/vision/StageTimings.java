@@ -0,0 +1,52 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+// Per-thread elapsed times of the stages of a recognition, in nanoseconds.
+// Each stage records itself, e.g.
+//   long startNanos = System.nanoTime();
+//   ... the work of the stage ...
+//   StageTimings.record(StageTimings.Stage.REMOVE_BACKGROUND, startNanos);
+// A stage that runs more than once in a recognition accumulates. The
+// times are kept in a long array indexed by stage so that recording does
+// not allocate; the caller that owns the recognition, e.g. the batch
+// runner, calls reset() before it starts and reads the times when it has
+// finished. Work done on another thread for the recognition, e.g. by a
+// RecognitionEnsemble, is handed back with snapshot() and add().
+public class StageTimings {
+
+    public enum Stage {PREPROCESS, DEPTH_READ, REMOVE_BACKGROUND, THRESHOLD, ANGLE_AND_DISTANCE}
+
+    private static final Stage[] stages = Stage.values();
+    private static final ThreadLocal<long[]> timings = ThreadLocal.withInitial(() -> new long[stages.length]);
+
+    public static void reset() {
+        long[] nanos = timings.get();
+        for (int i = 0; i < nanos.length; i++)
+            nanos[i] = 0;
+    }
+
+    public static void record(Stage pStage, long pStartNanos) {
+        timings.get()[pStage.ordinal()] += System.nanoTime() - pStartNanos;
+    }
+
+    // A copy of this thread's times, indexed by Stage.ordinal().
+    public static long[] snapshot() {
+        return timings.get().clone();
+    }
+
+    // Add times taken on another thread (see snapshot) to this thread's.
+    public static void add(long[] pNanos) {
+        long[] nanos = timings.get();
+        for (int i = 0; i < nanos.length; i++)
+            nanos[i] += pNanos[i];
+    }
+
+    // Returns 0 for a stage that did not run.
+    public static long getNanos(Stage pStage) {
+        return timings.get()[pStage.ordinal()];
+    }
+
+    public static double getMillis(Stage pStage) {
+        return getNanos(pStage) / 1_000_000.0;
+    }
+
+}
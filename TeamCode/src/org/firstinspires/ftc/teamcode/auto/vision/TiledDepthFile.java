@@ -0,0 +1,242 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.opencv.core.Rect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// A compressed depth file (.tdepth) that can be read one region at a time.
+// The frame is divided into tiles, each compressed on its own, and an index
+// of the tiles follows the header so that a reader can find, read and
+// decompress only those tiles that overlap the image ROI.
+//
+// The layout, all values little-endian:
+//   header   int magic "TDEP", int version, int width, int height,
+//            int tile width, int tile height
+//   index    for each tile in row order: long offset of the tile's data
+//            in the file, int length of the tile's data
+//   data     for each tile: its depth values in row order, each stored as
+//            the 16-bit difference from the one before it (the first from
+//            0), compressed with Deflater
+// Depth changes slowly across a surface, so the differences are mostly
+// small and compress much better than the raw values.
+//
+// Use TiledDepthConverter to convert .depth files.
+public class TiledDepthFile {
+
+    private static final String TAG = TiledDepthFile.class.getSimpleName();
+
+    public static final String EXTENSION = ".tdepth";
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    private static final int MAGIC = 0x50454454; // "TDEP" little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 6 * 4;
+    private static final int INDEX_ENTRY_BYTES = 8 + 4;
+
+    // Write the depth values of a full frame, 16 bits per pixel in row
+    // order, to pFilename. The file is written under a temporary name and
+    // then renamed so that a reader never sees a partial file.
+    public static void write(ShortBuffer pDepth, int pWidth, int pHeight, int pTileWidth, int pTileHeight,
+                             String pFilename) throws IOException {
+        if (pDepth.remaining() != pWidth * pHeight)
+            throw new AutonomousRobotException(TAG, "Depth data has " + pDepth.remaining() +
+                    " values, expected " + (pWidth * pHeight) + " for resolution " + pWidth + "x" + pHeight);
+        if (pTileWidth < 1 || pTileHeight < 1)
+            throw new AutonomousRobotException(TAG, "Invalid tile size " + pTileWidth + "x" + pTileHeight);
+
+        int tilesX = (pWidth + pTileWidth - 1) / pTileWidth;
+        int tilesY = (pHeight + pTileHeight - 1) / pTileHeight;
+        int tileCount = tilesX * tilesY;
+        byte[][] tileData = new byte[tileCount][];
+        int[] tileLengths = new int[tileCount];
+
+        ByteBuffer deltas = ByteBuffer.allocate(pTileWidth * pTileHeight * 2).order(ByteOrder.LITTLE_ENDIAN);
+        Deflater deflater = new Deflater();
+        try {
+            for (int tile = 0; tile < tileCount; tile++) {
+                Rect tileRect = getTileRect(tile % tilesX, tile / tilesX, pWidth, pHeight, pTileWidth, pTileHeight);
+                deltas.clear();
+                int previous = 0;
+                for (int y = tileRect.y; y < tileRect.y + tileRect.height; y++)
+                    for (int x = tileRect.x; x < tileRect.x + tileRect.width; x++) {
+                        int value = pDepth.get(pDepth.position() + (y * pWidth) + x) & 0xFFFF;
+                        deltas.putShort((short) (value - previous));
+                        previous = value;
+                    }
+
+                deflater.reset();
+                deflater.setInput(deltas.array(), 0, deltas.position());
+                deflater.finish();
+                byte[] compressed = new byte[deltas.position() + 64];
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == compressed.length)
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+                tileData[tile] = compressed;
+                tileLengths[tile] = length;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        ByteBuffer headerAndIndex = ByteBuffer.allocate(HEADER_BYTES + (tileCount * INDEX_ENTRY_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+        headerAndIndex.putInt(MAGIC).putInt(VERSION).putInt(pWidth).putInt(pHeight).putInt(pTileWidth).putInt(pTileHeight);
+        long offset = headerAndIndex.capacity();
+        for (int tile = 0; tile < tileCount; tile++) {
+            headerAndIndex.putLong(offset).putInt(tileLengths[tile]);
+            offset += tileLengths[tile];
+        }
+        headerAndIndex.flip();
+
+        Path target = Paths.get(pFilename);
+        Path temporary = Paths.get(pFilename + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, headerAndIndex);
+            for (int tile = 0; tile < tileCount; tile++)
+                writeFully(channel, ByteBuffer.wrap(tileData[tile], 0, tileLengths[tile]));
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Read the tiles of pFilename that overlap pRegion (the full image if
+    // null) into a direct, little-endian buffer that holds the full frame,
+    // as in a .depth file, for use with DepthFrame. The pixels of the
+    // tiles that are not read are 0, which the D405 uses for "no depth".
+    public static ByteBuffer readRegion(String pFilename, int pWidth, int pHeight, Rect pRegion) throws IOException {
+        long startNanos = System.nanoTime();
+        ByteBuffer depthBytes = ByteBuffer.allocateDirect(pWidth * pHeight * 2).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(Paths.get(pFilename), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0, pFilename);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new AutonomousRobotException(TAG, "Not a tiled depth file: " + pFilename);
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new AutonomousRobotException(TAG, "Unsupported tiled depth file version " + version + " in " + pFilename);
+            int width = header.getInt();
+            int height = header.getInt();
+            if (width != pWidth || height != pHeight)
+                throw new AutonomousRobotException(TAG, "Depth file " + pFilename + " has resolution " + width + "x" + height +
+                        ", expected " + pWidth + "x" + pHeight);
+            int tileWidth = header.getInt();
+            int tileHeight = header.getInt();
+            if (tileWidth < 1 || tileHeight < 1)
+                throw new AutonomousRobotException(TAG, "Invalid tile size " + tileWidth + "x" + tileHeight + " in " + pFilename);
+
+            int tilesX = (width + tileWidth - 1) / tileWidth;
+            int tilesY = (height + tileHeight - 1) / tileHeight;
+            ByteBuffer index = ByteBuffer.allocate(tilesX * tilesY * INDEX_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, index, HEADER_BYTES, pFilename);
+
+            // The range of tiles that overlap the region.
+            Rect region = pRegion != null ? pRegion : new Rect(0, 0, width, height);
+            if (region.x < 0 || region.y < 0 || region.width < 1 || region.height < 1 ||
+                    region.x + region.width > width || region.y + region.height > height)
+                throw new AutonomousRobotException(TAG, "Region " + region + " is outside the " + width + "x" + height + " depth frame");
+            int firstTileX = region.x / tileWidth;
+            int lastTileX = (region.x + region.width - 1) / tileWidth;
+            int firstTileY = region.y / tileHeight;
+            int lastTileY = (region.y + region.height - 1) / tileHeight;
+
+            // A tile is no larger than the frame, whatever the header says.
+            byte[] deltas = new byte[Math.min(tileWidth, width) * Math.min(tileHeight, height) * 2];
+            int maxTileBytes = getMaxCompressedBytes(deltas.length);
+            long dataStart = HEADER_BYTES + (long) index.capacity();
+            long fileBytes = channel.size();
+            ByteBuffer compressed = ByteBuffer.allocate(0);
+            Inflater inflater = new Inflater();
+            try {
+                for (int tileY = firstTileY; tileY <= lastTileY; tileY++)
+                    for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+                        int entry = ((tileY * tilesX) + tileX) * INDEX_ENTRY_BYTES;
+                        long offset = index.getLong(entry);
+                        int length = index.getInt(entry + 8);
+                        if (length < 0 || length > maxTileBytes || offset < dataStart || offset + length > fileBytes)
+                            throw new AutonomousRobotException(TAG, "Tile " + tileX + "," + tileY + " of " + pFilename + " is corrupt");
+                        if (compressed.capacity() < length)
+                            compressed = ByteBuffer.allocate(length);
+                        compressed.clear().limit(length);
+                        readFully(channel, compressed, offset, pFilename);
+
+                        Rect tileRect = getTileRect(tileX, tileY, width, height, tileWidth, tileHeight);
+                        int deltaBytes = tileRect.width * tileRect.height * 2;
+                        inflater.reset();
+                        inflater.setInput(compressed.array(), 0, length);
+                        int inflated = 0;
+                        while (inflated < deltaBytes) {
+                            int bytesInflated = inflater.inflate(deltas, inflated, deltaBytes - inflated);
+                            if (bytesInflated == 0)
+                                break; // finished early or out of input
+                            inflated += bytesInflated;
+                        }
+                        if (inflated != deltaBytes)
+                            throw new AutonomousRobotException(TAG, "Tile " + tileX + "," + tileY + " of " + pFilename + " is corrupt");
+
+                        int previous = 0;
+                        int deltaIndex = 0;
+                        for (int y = tileRect.y; y < tileRect.y + tileRect.height; y++)
+                            for (int x = tileRect.x; x < tileRect.x + tileRect.width; x++) {
+                                previous = (previous + ((deltas[deltaIndex] & 0xFF) | (deltas[deltaIndex + 1] << 8))) & 0xFFFF;
+                                deltaIndex += 2;
+                                depthBytes.putShort(((y * width) + x) * 2, (short) previous);
+                            }
+                    }
+            } catch (DataFormatException dfx) {
+                throw new AutonomousRobotException(TAG, "Corrupt tile data in " + pFilename + ": " + dfx.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+
+        StageTimings.record(StageTimings.Stage.DEPTH_READ, startNanos);
+        return depthBytes;
+    }
+
+    // The pixels covered by a tile; the tiles in the last column and row
+    // may be smaller.
+    private static Rect getTileRect(int pTileX, int pTileY, int pWidth, int pHeight, int pTileWidth, int pTileHeight) {
+        int x = pTileX * pTileWidth;
+        int y = pTileY * pTileHeight;
+        return new Rect(x, y, Math.min(pTileWidth, pWidth - x), Math.min(pTileHeight, pHeight - y));
+    }
+
+    // The most that Deflater can produce from pBytes of input, as zlib's
+    // deflateBound, including the zlib header and checksum.
+    private static int getMaxCompressedBytes(int pBytes) {
+        return pBytes + (pBytes >> 12) + (pBytes >> 14) + (pBytes >> 25) + 13;
+    }
+
+    private static void readFully(FileChannel pChannel, ByteBuffer pBuffer, long pPosition, String pFilename) throws IOException {
+        long position = pPosition;
+        while (pBuffer.hasRemaining()) {
+            int bytesRead = pChannel.read(pBuffer, position);
+            if (bytesRead < 0)
+                throw new AutonomousRobotException(TAG, "Tiled depth file " + pFilename + " is truncated");
+            position += bytesRead;
+        }
+    }
+
+    private static void writeFully(FileChannel pChannel, ByteBuffer pBuffer) throws IOException {
+        while (pBuffer.hasRemaining())
+            pChannel.write(pBuffer);
+    }
+
+}
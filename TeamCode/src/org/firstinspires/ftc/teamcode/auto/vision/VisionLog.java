@@ -0,0 +1,500 @@
+package org.firstinspires.ftc.teamcode.auto.vision;
+
+import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+// Logging facade for the per-frame paths of the recognizers.
+//
+// Messages are templates with {} placeholders, e.g.
+//   VisionLog.d(TAG, "Image width {}, height {}", cols, rows);
+// A call records the template and its arguments in a preallocated ring
+// buffer without taking a lock (see Ring); primitive arguments are stored without boxing and nothing is
+// formatted on the calling thread. A background thread formats the
+// records and passes them on to RobotLogCommon. If a call is below both
+// the log level and the capture level (see below) it returns after a
+// single comparison.
+//
+// The ring keeps the most recent records even after they have been
+// written to the log. Records at the capture level are kept even if they
+// are below the log level, so after a failed recognition dumpFrames() can
+// write out the detail of the last few frames although debug logging was
+// off at the time.
+//
+// Because the records reach the log asynchronously, lines written with
+// VisionLog may appear slightly later than lines written directly with
+// RobotLogCommon; call flush() to catch up.
+public class VisionLog {
+
+    private static final String TAG = VisionLog.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final int MAX_ARGS = 3;
+    private static final long FLUSH_INTERVAL_MS = 100;
+
+    // Argument types.
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte OBJECT = 3;
+
+    private static final int SEVERE = Level.SEVERE.intValue();
+    private static final int CONFIG = Level.CONFIG.intValue();
+    private static final int INFO = Level.INFO.intValue();
+    private static final int FINE = Level.FINE.intValue();
+    private static final int FINER = Level.FINER.intValue();
+    private static final int FINEST = Level.FINEST.intValue();
+
+    // The most detailed level written to the log and the most detailed
+    // level kept in the ring for dumpFrames(); the lesser of the two is
+    // the threshold below which a call does nothing.
+    private static volatile int logLevel = FINE;
+    private static volatile int captureLevel = FINE;
+    private static volatile int threshold = FINE;
+
+    private static final AtomicInteger frameCounter = new AtomicInteger();
+    private static final ThreadLocal<int[]> currentFrame = ThreadLocal.withInitial(() -> new int[1]);
+
+    private static final Ring ring = new Ring(DEFAULT_CAPACITY);
+
+    // The progress of the flusher thread, for flush().
+    private static final Object flushLock = new Object();
+    private static long nextToLog; // sequence number of the next record to write to the log; guarded by flushLock
+    private static long flushTarget; // the records before this one are wanted now; guarded by flushLock
+
+    static {
+        Thread flusher = new Thread(VisionLog::flushLoop, TAG);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // The most detailed level that is written to the log, e.g. Level.FINE
+    // for "d". Levels below INFO are formatted only if they are enabled.
+    public static void setLogLevel(Level pLevel) {
+        logLevel = pLevel.intValue();
+        threshold = Math.min(logLevel, captureLevel);
+    }
+
+    // The most detailed level that is kept in the ring for dumpFrames()
+    // even if it is not written to the log. Level.OFF disables capture.
+    public static void setCaptureLevel(Level pLevel) {
+        captureLevel = pLevel.intValue();
+        threshold = Math.min(logLevel, captureLevel);
+    }
+
+    public static boolean isDebugEnabled() {
+        return FINE >= threshold;
+    }
+
+    public static boolean isVerboseEnabled() {
+        return FINER >= threshold;
+    }
+
+    // Mark the start of a new frame (one recognition) on the current thread.
+    public static void beginFrame(String pLabel) {
+        currentFrame.get()[0] = frameCounter.incrementAndGet();
+        if (INFO >= threshold)
+            append(INFO, TAG, "Begin frame {}", OBJECT, 0, 0.0, pLabel);
+    }
+
+    // The frame of the current thread, for a thread that helps with the
+    // same recognition, see joinFrame().
+    public static int getCurrentFrame() {
+        return currentFrame.get()[0];
+    }
+
+    // Attribute the records of the current thread to a frame that was
+    // begun on another thread.
+    public static void joinFrame(int pFrame) {
+        currentFrame.get()[0] = pFrame;
+    }
+
+    public static void e(String pTag, String pFormat, Object... pArgs) {
+        appendVarargs(SEVERE, pTag, pFormat, pArgs);
+    }
+
+    public static void c(String pTag, String pFormat, Object... pArgs) {
+        appendVarargs(CONFIG, pTag, pFormat, pArgs);
+    }
+
+    public static void i(String pTag, String pFormat, Object... pArgs) {
+        appendVarargs(INFO, pTag, pFormat, pArgs);
+    }
+
+    public static void v(String pTag, String pFormat, Object... pArgs) {
+        appendVarargs(FINER, pTag, pFormat, pArgs);
+    }
+
+    // The debug level has overloads for up to three primitive arguments so
+    // that the common cases (coordinates, medians, pixel counts) neither
+    // box nor allocate a varargs array. ints are stored as longs. Note that
+    // a float argument is widened to double and is printed with double
+    // precision; wrap it in Float.toString() to get the float rendering.
+    public static void d(String pTag, String pMessage) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pMessage, (byte) 0, 0, 0.0, null);
+    }
+
+    public static void d(String pTag, String pFormat, long pArg0) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pFormat, LONG, pArg0, 0.0, null);
+    }
+
+    public static void d(String pTag, String pFormat, double pArg0) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pFormat, DOUBLE, 0, pArg0, null);
+    }
+
+    public static void d(String pTag, String pFormat, Object pArg0) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pFormat, OBJECT, 0, 0.0, pArg0);
+    }
+
+    public static void d(String pTag, String pFormat, long pArg0, long pArg1) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pFormat, LONG, pArg0, 0.0, null, LONG, pArg1, 0.0, null);
+    }
+
+    public static void d(String pTag, String pFormat, double pArg0, double pArg1) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pFormat, DOUBLE, 0, pArg0, null, DOUBLE, 0, pArg1, null);
+    }
+
+    public static void d(String pTag, String pFormat, long pArg0, double pArg1) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pFormat, LONG, pArg0, 0.0, null, DOUBLE, 0, pArg1, null);
+    }
+
+    public static void d(String pTag, String pFormat, double pArg0, long pArg1) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pFormat, DOUBLE, 0, pArg0, null, LONG, pArg1, 0.0, null);
+    }
+
+    public static void d(String pTag, String pFormat, long pArg0, long pArg1, long pArg2) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pFormat, LONG, pArg0, 0.0, null, LONG, pArg1, 0.0, null, LONG, pArg2, 0.0, null);
+    }
+
+    public static void d(String pTag, String pFormat, long pArg0, long pArg1, double pArg2) {
+        if (FINE >= threshold)
+            append(FINE, pTag, pFormat, LONG, pArg0, 0.0, null, LONG, pArg1, 0.0, null, DOUBLE, 0, pArg2, null);
+    }
+
+    // Any other combination of arguments. There is deliberately no
+    // three-double overload: it would also match any mix of ints and
+    // doubles and print the ints as doubles.
+    public static void d(String pTag, String pFormat, Object... pArgs) {
+        appendVarargs(FINE, pTag, pFormat, pArgs);
+    }
+
+    // Wait until every record made so far has been written to the log.
+    public static void flush() {
+        long end = ring.next.get();
+        synchronized (flushLock) {
+            flushTarget = Math.max(flushTarget, end);
+            flushLock.notifyAll();
+            while (nextToLog < end) {
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Write to the log, at the info level, every record still in the ring
+    // for the last pFrameCount frames, including records below the log
+    // level. Returns the formatted lines.
+    public static List<String> dumpFrames(int pFrameCount) {
+        List<String> lines = new ArrayList<>();
+        int firstFrame = frameCounter.get() - pFrameCount + 1;
+        long end = ring.next.get();
+        for (long seq = Math.max(end - ring.capacity, 0); seq < end; seq++) {
+            Record record = ring.read(seq);
+            if (record != null && record.frame >= firstFrame)
+                lines.add("frame " + record.frame + " " + record.tag + " " + record.format());
+        }
+
+        RobotLogCommon.i(TAG, "Dump of the last " + pFrameCount + " frame(s): " + lines.size() + " records");
+        for (String line : lines)
+            RobotLogCommon.i(TAG, line);
+        return lines;
+    }
+
+    private static void appendVarargs(int pLevel, String pTag, String pFormat, Object[] pArgs) {
+        if (pLevel < threshold)
+            return;
+
+        // Beyond MAX_ARGS the array itself is stored and formatted later.
+        if (pArgs.length <= MAX_ARGS) {
+            long seq = ring.claim(pLevel, pTag, pFormat, pArgs.length);
+            int slot = (int) (seq % ring.capacity);
+            for (int i = 0; i < pArgs.length; i++)
+                ring.set(slot, i, OBJECT, 0, 0.0, pArgs[i]);
+            ring.publish(seq);
+        } else {
+            long seq = ring.claim(pLevel, pTag, pFormat, -1);
+            ring.objectArgs[(int) (seq % ring.capacity) * MAX_ARGS] = pArgs;
+            ring.publish(seq);
+        }
+    }
+
+    private static void append(int pLevel, String pTag, String pFormat,
+                               byte pType0, long pLong0, double pDouble0, Object pObject0) {
+        long seq = ring.claim(pLevel, pTag, pFormat, pType0 == 0 ? 0 : 1);
+        int slot = (int) (seq % ring.capacity);
+        ring.set(slot, 0, pType0, pLong0, pDouble0, pObject0);
+        ring.publish(seq);
+    }
+
+    private static void append(int pLevel, String pTag, String pFormat,
+                               byte pType0, long pLong0, double pDouble0, Object pObject0,
+                               byte pType1, long pLong1, double pDouble1, Object pObject1) {
+        long seq = ring.claim(pLevel, pTag, pFormat, 2);
+        int slot = (int) (seq % ring.capacity);
+        ring.set(slot, 0, pType0, pLong0, pDouble0, pObject0);
+        ring.set(slot, 1, pType1, pLong1, pDouble1, pObject1);
+        ring.publish(seq);
+    }
+
+    private static void append(int pLevel, String pTag, String pFormat,
+                               byte pType0, long pLong0, double pDouble0, Object pObject0,
+                               byte pType1, long pLong1, double pDouble1, Object pObject1,
+                               byte pType2, long pLong2, double pDouble2, Object pObject2) {
+        long seq = ring.claim(pLevel, pTag, pFormat, 3);
+        int slot = (int) (seq % ring.capacity);
+        ring.set(slot, 0, pType0, pLong0, pDouble0, pObject0);
+        ring.set(slot, 1, pType1, pLong1, pDouble1, pObject1);
+        ring.set(slot, 2, pType2, pLong2, pDouble2, pObject2);
+        ring.publish(seq);
+    }
+
+    // Format and write out the records that have not yet been logged.
+    // Records below the log level stay in the ring for dumpFrames() only.
+    // The loop stops at a record that is still being written and picks it
+    // up on the next pass.
+    private static void flushLoop() {
+        List<Record> records = new ArrayList<>();
+        boolean writing = false;
+        while (true) {
+            long seq;
+            synchronized (flushLock) {
+                try {
+                    if (nextToLog >= flushTarget)
+                        flushLock.wait(FLUSH_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                seq = nextToLog;
+            }
+
+            if (writing)
+                Thread.yield(); // let the writer finish
+
+            long lost = 0;
+            long end = ring.next.get();
+            writing = false;
+            for (; seq < end; seq++) {
+                if (end - seq > ring.capacity) { // overwritten before it could be logged
+                    lost++;
+                    continue;
+                }
+
+                Record record = ring.read(seq);
+                if (record == null) {
+                    if (!ring.isOverwritten(seq)) {
+                        writing = true; // still being written
+                        break;
+                    }
+                    lost++;
+                } else if (record.level >= logLevel)
+                    records.add(record);
+            }
+
+            if (lost > 0)
+                RobotLogCommon.d(TAG, "Log ring overrun; " + lost + " records not logged");
+
+            for (Record record : records)
+                emit(record.level, record.tag, record.format());
+            records.clear();
+
+            synchronized (flushLock) {
+                nextToLog = seq;
+                flushLock.notifyAll(); // wake up flush()
+            }
+        }
+    }
+
+    private static void emit(int pLevel, String pTag, String pMessage) {
+        if (pLevel >= SEVERE)
+            RobotLogCommon.e(pTag, pMessage);
+        else if (pLevel >= INFO)
+            RobotLogCommon.i(pTag, pMessage);
+        else if (pLevel >= CONFIG)
+            RobotLogCommon.c(pTag, pMessage);
+        else if (pLevel >= FINE)
+            RobotLogCommon.d(pTag, pMessage);
+        else if (pLevel >= FINER)
+            RobotLogCommon.v(pTag, pMessage);
+        else
+            RobotLogCommon.vv(pTag, pMessage);
+    }
+
+    // A copy of one record, taken by the thread that logs or dumps it.
+    private static class Record {
+        private int frame;
+        private int level;
+        private String tag;
+        private String format;
+        private int argCount; // -1: varargs array in objectArgs[0]
+        private final byte[] argTypes = new byte[MAX_ARGS];
+        private final long[] longArgs = new long[MAX_ARGS];
+        private final double[] doubleArgs = new double[MAX_ARGS];
+        private final Object[] objectArgs = new Object[MAX_ARGS];
+
+        // Substitute the arguments for the {} placeholders in order. The
+        // values are rendered exactly as string concatenation would.
+        private String format() {
+            int count = argCount;
+            Object[] varargs = count == -1 ? (Object[]) objectArgs[0] : null;
+            if (varargs != null)
+                count = varargs.length;
+
+            StringBuilder builder = new StringBuilder(format.length() + 32);
+            int arg = 0;
+            int from = 0;
+            int placeholder;
+            while (arg < count && (placeholder = format.indexOf("{}", from)) != -1) {
+                builder.append(format, from, placeholder);
+                if (varargs != null)
+                    builder.append(varargs[arg]);
+                else {
+                    switch (argTypes[arg]) {
+                        case LONG -> builder.append(longArgs[arg]);
+                        case DOUBLE -> builder.append(doubleArgs[arg]);
+                        default -> builder.append(objectArgs[arg]);
+                    }
+                }
+                arg++;
+                from = placeholder + 2;
+            }
+
+            builder.append(format, from, format.length());
+            return builder.toString();
+        }
+    }
+
+    // Fixed-size storage for the records, one slot per record, laid out as
+    // parallel arrays so that recording a message allocates nothing.
+    //
+    // The ring takes no lock. A writer claims the next sequence number
+    // from an atomic counter, marks the slot for that number as being
+    // written, fills it in and then publishes the sequence number in the
+    // slot's state. A reader copies a slot and keeps the copy only if the
+    // slot held the expected sequence number both before and after the
+    // copy, so a record that is overwritten while it is read is dropped
+    // rather than mixed with its successor. Two writers contend only when
+    // the ring wraps around onto a slot that is still being written.
+    private static class Ring {
+        private static final long EMPTY = -1;
+        private static final long WRITING = -2;
+
+        private final int capacity;
+        private final AtomicLong next = new AtomicLong(); // sequence number of the next record
+        private final AtomicLongArray state; // the sequence number in each slot, EMPTY or WRITING
+        private final int[] frame;
+        private final int[] level;
+        private final String[] tag;
+        private final String[] format;
+        private final int[] argCount; // -1: varargs array in objectArgs
+        private final byte[] argTypes;
+        private final long[] longArgs;
+        private final double[] doubleArgs;
+        private final Object[] objectArgs;
+
+        private Ring(int pCapacity) {
+            capacity = pCapacity;
+            state = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++)
+                state.set(i, EMPTY);
+            frame = new int[capacity];
+            level = new int[capacity];
+            tag = new String[capacity];
+            format = new String[capacity];
+            argCount = new int[capacity];
+            argTypes = new byte[capacity * MAX_ARGS];
+            longArgs = new long[capacity * MAX_ARGS];
+            doubleArgs = new double[capacity * MAX_ARGS];
+            objectArgs = new Object[capacity * MAX_ARGS];
+        }
+
+        // Returns the sequence number of the record; the caller sets the
+        // arguments and then calls publish().
+        private long claim(int pLevel, String pTag, String pFormat, int pArgCount) {
+            long seq = next.getAndIncrement();
+            int slot = (int) (seq % capacity);
+            while (true) {
+                long slotState = state.get(slot);
+                if (slotState != WRITING && state.compareAndSet(slot, slotState, WRITING))
+                    break;
+                Thread.onSpinWait();
+            }
+
+            frame[slot] = currentFrame.get()[0];
+            level[slot] = pLevel;
+            tag[slot] = pTag;
+            format[slot] = pFormat;
+            argCount[slot] = pArgCount;
+            return seq;
+        }
+
+        private void set(int pSlot, int pIndex, byte pType, long pLong, double pDouble, Object pObject) {
+            int i = (pSlot * MAX_ARGS) + pIndex;
+            argTypes[i] = pType;
+            longArgs[i] = pLong;
+            doubleArgs[i] = pDouble;
+            objectArgs[i] = pObject; // also drops the reference to the previous occupant
+        }
+
+        private void publish(long pSeq) {
+            state.set((int) (pSeq % capacity), pSeq); // a volatile write: the record is visible to readers
+        }
+
+        // A copy of the record with the sequence number pSeq, or null if
+        // the record is still being written or has been overwritten.
+        private Record read(long pSeq) {
+            int slot = (int) (pSeq % capacity);
+            if (state.get(slot) != pSeq)
+                return null;
+
+            Record record = new Record();
+            record.frame = frame[slot];
+            record.level = level[slot];
+            record.tag = tag[slot];
+            record.format = format[slot];
+            record.argCount = argCount[slot];
+            int first = slot * MAX_ARGS;
+            System.arraycopy(argTypes, first, record.argTypes, 0, MAX_ARGS);
+            System.arraycopy(longArgs, first, record.longArgs, 0, MAX_ARGS);
+            System.arraycopy(doubleArgs, first, record.doubleArgs, 0, MAX_ARGS);
+            System.arraycopy(objectArgs, first, record.objectArgs, 0, MAX_ARGS);
+
+            VarHandle.loadLoadFence(); // the copy is complete before the state is checked again
+            return state.get(slot) == pSeq ? record : null;
+        }
+
+        // True if a later record has taken (or is taking) the slot of pSeq.
+        private boolean isOverwritten(long pSeq) {
+            long slotState = state.get((int) (pSeq % capacity));
+            return slotState > pSeq || (slotState == WRITING && next.get() - pSeq > capacity);
+        }
+    }
+
+}
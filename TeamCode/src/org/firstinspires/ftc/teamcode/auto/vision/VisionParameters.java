@@ -1,16 +1,25 @@
 // Port of CommonParameters.h
 package org.firstinspires.ftc.teamcode.auto.vision;
 
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.opencv.core.Mat;
 import org.opencv.core.Rect;
 
 // Parameters extracted from XML files.
 public class VisionParameters {
 
+    private static final String TAG = VisionParameters.class.getSimpleName();
+
     // In c++ these are structs but here we'll make all of the fields final.
     // Use public static nested classes for "packaging convenience".
     // See https://stackoverflow.com/questions/253492/static-nested-class-in-java-why
     // Create by Outer.Nested instance = new Outer.Nested();
 
+    // The pyramid scale, from the optional pyramid element of the depth
+    // recognition XML files, with which the ROI is searched at full
+    // resolution only (see RealSenseRecognition).
+    public static final int NO_PYRAMID = 1;
+
     // From the image_parameters element of any XML file.
     public static class ImageParameters {
         public final String image_source;
@@ -24,6 +33,77 @@ public class VisionParameters {
             resolution_height = pHeight;
             image_roi = pImageROI;
         }
+
+        //## The resolution in the XML is the reference resolution at which
+        // the ROI and any other pixel measures (e.g. the barcode windows or
+        // the minimum pixel counts) were tuned. A frame captured at another
+        // resolution with the same aspect ratio is recognized with all of
+        // them scaled to the frame: positions and lengths linearly and
+        // pixel counts by the square.
+
+        // These parameters with the resolution of the frame and the ROI
+        // scaled to it; this object itself if the frame is at the
+        // reference resolution.
+        public ImageParameters forFrame(ImageFrame pFrame) {
+            Mat image = pFrame.getImage();
+            return forResolution(image.cols(), image.rows());
+        }
+
+        public ImageParameters forResolution(int pWidth, int pHeight) {
+            if (pWidth == resolution_width && pHeight == resolution_height)
+                return this;
+
+            checkAspectRatio(pWidth, pHeight);
+            Rect scaledROI = scaleRect(image_roi, pWidth, pHeight);
+
+            // Rounding must not take the ROI outside the frame.
+            scaledROI.width = Math.min(scaledROI.width, pWidth - scaledROI.x);
+            scaledROI.height = Math.min(scaledROI.height, pHeight - scaledROI.y);
+            return new ImageParameters(image_source, pWidth, pHeight, scaledROI);
+        }
+
+        // A rectangle at the resolution of these parameters, e.g. a window
+        // relative to the ROI, scaled to the resolution of pTarget. The
+        // edges are scaled rather than the width and height so that
+        // adjacent rectangles stay adjacent.
+        public Rect scale(Rect pRect, ImageParameters pTarget) {
+            if (pTarget.resolution_width == resolution_width && pTarget.resolution_height == resolution_height)
+                return pRect;
+
+            checkAspectRatio(pTarget.resolution_width, pTarget.resolution_height);
+            return scaleRect(pRect, pTarget.resolution_width, pTarget.resolution_height);
+        }
+
+        // A count of pixels, i.e. an area, at the resolution of these
+        // parameters scaled to the resolution of pTarget.
+        public double scalePixelCount(double pPixelCount, ImageParameters pTarget) {
+            return pPixelCount * ((double) pTarget.resolution_width * pTarget.resolution_height) /
+                    ((double) resolution_width * resolution_height);
+        }
+
+        public int scalePixelCount(int pPixelCount, ImageParameters pTarget) {
+            return (int) Math.round(scalePixelCount((double) pPixelCount, pTarget));
+        }
+
+        private Rect scaleRect(Rect pRect, int pWidth, int pHeight) {
+            double scaleX = (double) pWidth / resolution_width;
+            double scaleY = (double) pHeight / resolution_height;
+            int left = (int) Math.round(pRect.x * scaleX);
+            int top = (int) Math.round(pRect.y * scaleY);
+            int right = (int) Math.round((pRect.x + pRect.width) * scaleX);
+            int bottom = (int) Math.round((pRect.y + pRect.height) * scaleY);
+            return new Rect(left, top, right - left, bottom - top);
+        }
+
+        // Allow for the odd pixel of rounding in the capture resolution,
+        // e.g. 424 x 240 for 848 x 480, but not for a different shape.
+        private void checkAspectRatio(int pWidth, int pHeight) {
+            double referenceAspectRatio = (double) resolution_width / resolution_height;
+            if (Math.abs((double) pWidth / pHeight - referenceAspectRatio) > referenceAspectRatio * 0.01)
+                throw new AutonomousRobotException(TAG,
+                        "Mismatch between the aspect ratio of the image width " + pWidth + ", height " + pHeight +
+                                " and that of the expected width " + resolution_width + ", height " + resolution_height);
+        }
     }
 
     // From the gray_parameters element of any XML file.
@@ -119,9 +119,12 @@ public class ConeStackParametersXML {
 
         DepthParameters depthParameters = DepthParametersXML.parseDepthParameters(depth_parameters_node);
 
+        // Optional: <pyramid scale="2"/>
+        int pyramidScale = ImageXML.parsePyramidScale(getNextElement(depth_parameters_node.getNextSibling()));
+
         return new ConeStackParameters(grayParametersRed, hsvParametersRed,
                 grayParametersBlue, hsvParametersBlue,
-                depthParameters);
+                depthParameters, pyramidScale);
     }
 
     //**TODO THIS belongs in ftcdevcommon for IntelliJ and Android -> XMLUtils
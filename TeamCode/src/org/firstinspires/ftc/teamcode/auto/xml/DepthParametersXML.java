@@ -84,9 +84,56 @@ public class DepthParametersXML {
             throw new AutonomousRobotException(TAG, "Invalid number format in attribute 'max' in element depth_filter'");
         }
 
+        // Optional: <nearest_pixels count="50" aggregation="mean" trim_percent="10"/>
+        // aggregation is one of mean, median, or trimmed_mean; trim_percent
+        // applies to trimmed_mean only.
+        int nearest_pixels = DepthParameters.DEFAULT_NEAREST_PIXELS;
+        DepthParameters.Aggregation aggregation = DepthParameters.Aggregation.MEAN;
+        double trim_percent = DepthParameters.DEFAULT_TRIM_PERCENT;
+        Node nearest_pixels_node = getNextElement(depth_filter_node.getNextSibling());
+        if (nearest_pixels_node != null) {
+            if (!nearest_pixels_node.getNodeName().equals("nearest_pixels"))
+                throw new AutonomousRobotException(TAG, "Unexpected element '" + nearest_pixels_node.getNodeName() + "'");
+
+            NamedNodeMap nearest_pixels_attributes = nearest_pixels_node.getAttributes();
+            Node count_node = nearest_pixels_attributes.getNamedItem("count");
+            if (count_node != null) {
+                try {
+                    nearest_pixels = Integer.parseInt(count_node.getTextContent());
+                } catch (NumberFormatException nex) {
+                    throw new AutonomousRobotException(TAG, "Invalid number format in attribute 'count' in element nearest_pixels");
+                }
+
+                if (nearest_pixels < 1)
+                    throw new AutonomousRobotException(TAG, "Attribute 'count' in element nearest_pixels must be at least 1");
+            }
+
+            Node aggregation_node = nearest_pixels_attributes.getNamedItem("aggregation");
+            if (aggregation_node != null) {
+                try {
+                    aggregation = DepthParameters.Aggregation.valueOf(aggregation_node.getTextContent().toUpperCase());
+                } catch (IllegalArgumentException iex) {
+                    throw new AutonomousRobotException(TAG, "Invalid value in attribute 'aggregation' in element nearest_pixels");
+                }
+            }
+
+            Node trim_percent_node = nearest_pixels_attributes.getNamedItem("trim_percent");
+            if (trim_percent_node != null) {
+                try {
+                    trim_percent = Double.parseDouble(trim_percent_node.getTextContent());
+                } catch (NumberFormatException nex) {
+                    throw new AutonomousRobotException(TAG, "Invalid number format in attribute 'trim_percent' in element nearest_pixels");
+                }
+
+                if (trim_percent < 0.0 || trim_percent >= 50.0)
+                    throw new AutonomousRobotException(TAG, "Attribute 'trim_percent' in element nearest_pixels must be >= 0 and < 50");
+            }
+        }
+
         return new DepthParameters(window_offset_x, window_offset_y,
                 window_height,
-                min_distance, max_distance);
+                min_distance, max_distance,
+                nearest_pixels, aggregation, trim_percent);
     }
 
     //**TODO THIS belongs in ftcdevcommon for IntelliJ and Android -> XMLUtils
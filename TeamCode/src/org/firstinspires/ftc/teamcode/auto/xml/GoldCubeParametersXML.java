@@ -85,7 +85,10 @@ public class GoldCubeParametersXML {
 
         DepthParameters depthParameters = DepthParametersXML.parseDepthParameters(depth_parameters_node);
 
-        return new GoldCubeParameters(grayParameters, hsvParameters, depthParameters);
+        // Optional: <pyramid scale="2"/>
+        int pyramidScale = ImageXML.parsePyramidScale(getNextElement(depth_parameters_node.getNextSibling()));
+
+        return new GoldCubeParameters(grayParameters, hsvParameters, depthParameters, pyramidScale);
     }
 
     private Node getNextElement(Node pNode) {
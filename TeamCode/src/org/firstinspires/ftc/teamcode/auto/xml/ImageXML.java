@@ -280,6 +280,35 @@ public class ImageXML {
                 value_median_target, value_threshold_low);
     }
 
+    // Parse the optional <pyramid scale="2"/> element that follows the
+    // <depth_parameters> element; pPyramidNode is null if there is none.
+    // The scale, 1 (no pyramid), 2 or 4, is the factor by which the ROI is
+    // downscaled to look for the object before the search is refined at
+    // full resolution.
+    public static int parsePyramidScale(Node pPyramidNode) {
+        if (pPyramidNode == null)
+            return VisionParameters.NO_PYRAMID;
+
+        if (!pPyramidNode.getNodeName().equals("pyramid"))
+            throw new AutonomousRobotException(TAG, "Unexpected element '" + pPyramidNode.getNodeName() + "'");
+
+        Node scale_node = pPyramidNode.getAttributes().getNamedItem("scale");
+        if (scale_node == null || scale_node.getTextContent().isEmpty())
+            throw new AutonomousRobotException(TAG, "Attribute 'scale' in element pyramid not found or empty");
+
+        int scale;
+        try {
+            scale = Integer.parseInt(scale_node.getTextContent());
+        } catch (NumberFormatException nex) {
+            throw new AutonomousRobotException(TAG, "Invalid number format in attribute 'scale' in element pyramid");
+        }
+
+        if (scale != 1 && scale != 2 && scale != 4)
+            throw new AutonomousRobotException(TAG, "Attribute 'scale' in element pyramid must be 1, 2 or 4");
+
+        return scale;
+    }
+
     //**TODO THIS belongs in ftcdevcommon for IntelliJ and Android -> XMLUtils
     private static Node getNextElement(Node pNode) {
         Node nd = pNode;
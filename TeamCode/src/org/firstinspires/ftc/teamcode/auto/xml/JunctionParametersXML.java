@@ -106,8 +106,11 @@ public class JunctionParametersXML {
 
         DepthParameters depthParameters = DepthParametersXML.parseDepthParameters(depth_parameters_node);
 
+        // Optional: <pyramid scale="2"/>
+        int pyramidScale = ImageXML.parsePyramidScale(getNextElement(depth_parameters_node.getNextSibling()));
+
         return new JunctionParameters(junctionCapGrayParameters, junctionPoleGrayParameters,
-                junctionPoleHsvParameters, depthParameters);
+                junctionPoleHsvParameters, depthParameters, pyramidScale);
     }
 
     private Node getNextElement(Node pNode) {
@@ -0,0 +1,195 @@
+package org.firstinspires.ftc.teamcode.auto.xml;
+
+import org.firstinspires.ftc.ftcdevcommon.AutonomousRobotException;
+import org.firstinspires.ftc.ftcdevcommon.intellij.RobotLogCommon;
+import org.firstinspires.ftc.teamcode.auto.RegressionManifest;
+import org.firstinspires.ftc.teamcode.auto.vision.VisionParameters;
+import org.firstinspires.ftc.teamcode.common.RobotConstants;
+import org.opencv.core.Rect;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Reads a regression manifest, e.g. RegressionManifest.xml:
+/*
+<regression_manifest>
+    <latency_baseline file="RegressionBaseline.xml" tolerance_percent="25"/>
+    <repetitions>5</repetitions>
+    <default_tolerance angle="1.0" distance="0.5"/>
+    <case id="cone_stack_red_1">
+        <action>CONE_STACK_DEPTH</action>
+        <recognition_path>COLOR</recognition_path>
+        <alliance>RED</alliance>
+        <image_parameters> ... </image_parameters>
+        <expected>
+            <result>RECOGNITION_SUCCESSFUL</result>
+            <angle tolerance="1.5">-3.2</angle>
+            <distance>24.1</distance>
+        </expected>
+    </case>
+</regression_manifest>
+*/
+// A signal sleeve case expects a <signal_sleeve_location>. A barcode case
+// has a <barcode_windows> element with a <left_window> (x, y, width,
+// height) and a <right_window> (width), as in the RobotAction XML, and
+// expects a <barcode_element_window>.
+public class RegressionManifestXML {
+    public static final String TAG = RegressionManifestXML.class.getSimpleName();
+
+    private static final int DEFAULT_REPETITIONS = 5;
+    private static final double DEFAULT_ANGLE_TOLERANCE = 1.0; // degrees
+    private static final double DEFAULT_DISTANCE_TOLERANCE = 0.5; // inches
+    private static final double DEFAULT_LATENCY_TOLERANCE_PERCENT = 25.0;
+
+    private final Document document;
+    private final XPath xpath;
+
+    public RegressionManifestXML(String pManifestFilename) {
+        try {
+            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+            dbFactory.setIgnoringComments(true);
+
+            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+            document = dBuilder.parse(new File(pManifestFilename));
+            XPathFactory xpathFactory = XPathFactory.newInstance();
+            xpath = xpathFactory.newXPath();
+
+        } catch (ParserConfigurationException pex) {
+            throw new AutonomousRobotException(TAG, "DOM parser Exception " + pex.getMessage());
+        } catch (SAXException sx) {
+            throw new AutonomousRobotException(TAG, "SAX Exception " + sx.getMessage());
+        } catch (IOException iex) {
+            throw new AutonomousRobotException(TAG, "IOException " + iex.getMessage());
+        }
+    }
+
+    public RegressionManifest getRegressionManifest() throws XPathExpressionException {
+        RobotLogCommon.d(TAG, "Parsing XML regression_manifest");
+
+        Node manifestNode = (Node) xpath.evaluate("/regression_manifest", document, XPathConstants.NODE);
+        if (manifestNode == null)
+            throw new AutonomousRobotException(TAG, "Element '/regression_manifest' not found");
+
+        String baselineFile = xpath.evaluate("latency_baseline/@file", manifestNode);
+        if (baselineFile.isEmpty())
+            throw new AutonomousRobotException(TAG, "Element 'latency_baseline' or its 'file' attribute not found");
+        double latencyTolerance = getDouble(manifestNode, "latency_baseline/@tolerance_percent", DEFAULT_LATENCY_TOLERANCE_PERCENT);
+
+        int repetitions = (int) getDouble(manifestNode, "repetitions", DEFAULT_REPETITIONS);
+        if (repetitions < 1)
+            throw new AutonomousRobotException(TAG, "Element 'repetitions' must be at least 1");
+
+        double defaultAngleTolerance = getDouble(manifestNode, "default_tolerance/@angle", DEFAULT_ANGLE_TOLERANCE);
+        double defaultDistanceTolerance = getDouble(manifestNode, "default_tolerance/@distance", DEFAULT_DISTANCE_TOLERANCE);
+
+        List<RegressionManifest.Case> cases = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        NodeList caseNodes = (NodeList) xpath.evaluate("case", manifestNode, XPathConstants.NODESET);
+        for (int i = 0; i < caseNodes.getLength(); i++) {
+            RegressionManifest.Case oneCase = parseCase(caseNodes.item(i), defaultAngleTolerance, defaultDistanceTolerance);
+            if (!ids.add(oneCase.id))
+                throw new AutonomousRobotException(TAG, "Duplicate case id " + oneCase.id);
+            cases.add(oneCase);
+        }
+
+        if (cases.isEmpty())
+            throw new AutonomousRobotException(TAG, "The manifest contains no cases");
+
+        return new RegressionManifest(baselineFile, latencyTolerance, repetitions, cases);
+    }
+
+    private RegressionManifest.Case parseCase(Node pCaseNode, double pDefaultAngleTolerance, double pDefaultDistanceTolerance) throws XPathExpressionException {
+        String id = ((Element) pCaseNode).getAttribute("id");
+        if (id.isEmpty())
+            throw new AutonomousRobotException(TAG, "Element 'case' has no 'id' attribute");
+
+        String action = getRequiredString(pCaseNode, "action", id).toUpperCase();
+        String recognitionPath = getRequiredString(pCaseNode, "recognition_path", id).toUpperCase();
+
+        RobotConstants.Alliance alliance = RobotConstants.Alliance.NONE;
+        String allianceString = xpath.evaluate("alliance", pCaseNode).trim();
+        if (!allianceString.isEmpty())
+            alliance = RobotConstants.Alliance.valueOf(allianceString.toUpperCase());
+
+        Node imageParametersNode = (Node) xpath.evaluate("image_parameters", pCaseNode, XPathConstants.NODE);
+        if (imageParametersNode == null)
+            throw new AutonomousRobotException(TAG, "Case " + id + ": element 'image_parameters' not found");
+        VisionParameters.ImageParameters imageParameters = ImageXML.parseImageParameters(imageParametersNode);
+
+        Rect barcodeLeftWindow = null;
+        int barcodeRightWindowWidth = 0;
+        if (action.equals("ANALYZE_BARCODE")) {
+            barcodeLeftWindow = new Rect(getRequiredInt(pCaseNode, "barcode_windows/left_window/x", id),
+                    getRequiredInt(pCaseNode, "barcode_windows/left_window/y", id),
+                    getRequiredInt(pCaseNode, "barcode_windows/left_window/width", id),
+                    getRequiredInt(pCaseNode, "barcode_windows/left_window/height", id));
+            barcodeRightWindowWidth = getRequiredInt(pCaseNode, "barcode_windows/right_window/width", id);
+        }
+
+        Node expectedNode = (Node) xpath.evaluate("expected", pCaseNode, XPathConstants.NODE);
+        if (expectedNode == null)
+            throw new AutonomousRobotException(TAG, "Case " + id + ": element 'expected' not found");
+
+        String result = getRequiredString(expectedNode, "result", id).toUpperCase();
+        Double angle = getOptionalDouble(expectedNode, "angle");
+        double angleTolerance = getDouble(expectedNode, "angle/@tolerance", pDefaultAngleTolerance);
+        Double distance = getOptionalDouble(expectedNode, "distance");
+        double distanceTolerance = getDouble(expectedNode, "distance/@tolerance", pDefaultDistanceTolerance);
+        String signalSleeveLocation = xpath.evaluate("signal_sleeve_location", expectedNode).trim().toUpperCase();
+        String barcodeElementWindow = xpath.evaluate("barcode_element_window", expectedNode).trim().toUpperCase();
+
+        RegressionManifest.Expected expected = new RegressionManifest.Expected(result,
+                angle, angleTolerance, distance, distanceTolerance,
+                signalSleeveLocation.isEmpty() ? null : signalSleeveLocation,
+                barcodeElementWindow.isEmpty() ? null : barcodeElementWindow);
+
+        return new RegressionManifest.Case(id, action, recognitionPath, alliance, imageParameters,
+                barcodeLeftWindow, barcodeRightWindowWidth, expected);
+    }
+
+    private String getRequiredString(Node pNode, String pPath, String pCaseId) throws XPathExpressionException {
+        String value = xpath.evaluate(pPath, pNode).trim();
+        if (value.isEmpty())
+            throw new AutonomousRobotException(TAG, "Case " + pCaseId + ": element '" + pPath + "' missing or empty");
+        return value;
+    }
+
+    private int getRequiredInt(Node pNode, String pPath, String pCaseId) throws XPathExpressionException {
+        String value = getRequiredString(pNode, pPath, pCaseId);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nex) {
+            throw new AutonomousRobotException(TAG, "Case " + pCaseId + ": invalid number format in element '" + pPath + "'");
+        }
+    }
+
+    private Double getOptionalDouble(Node pNode, String pPath) throws XPathExpressionException {
+        String value = xpath.evaluate(pPath, pNode).trim();
+        if (value.isEmpty())
+            return null;
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException nex) {
+            throw new AutonomousRobotException(TAG, "Invalid number format in '" + pPath + "'");
+        }
+    }
+
+    private double getDouble(Node pNode, String pPath, double pDefault) throws XPathExpressionException {
+        Double value = getOptionalDouble(pNode, pPath);
+        return value == null ? pDefault : value;
+    }
+}
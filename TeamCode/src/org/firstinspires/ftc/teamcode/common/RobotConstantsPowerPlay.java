@@ -45,12 +45,14 @@ public class RobotConstantsPowerPlay {
         NEUTRAL, CONES, JUNCTION
     }
 
+    // DEPTH uses only the pixels within the depth range, no color or
+    // grayscale threshold.
     public enum ConeStackRecognitionPath {
-        RED_CHANNEL_GRAYSCALE, BLUE_CHANNEL_GRAYSCALE, COLOR
+        RED_CHANNEL_GRAYSCALE, BLUE_CHANNEL_GRAYSCALE, COLOR, DEPTH
     }
 
     public enum JunctionRecognitionPath {
-        GRAYSCALE, TWO_CHANNEL_GRAYSCALE, COLOR
+        GRAYSCALE, TWO_CHANNEL_GRAYSCALE, COLOR, DEPTH
     }
 
     // Vumark identifiers